@@ -3,8 +3,10 @@ package com.example.lanchat;
 import com.example.lanchat.core.Settings;
 import com.example.lanchat.discovery.DiscoveryService;
 import com.example.lanchat.service.GroupMessageService;
+import com.example.lanchat.service.IngestPipeline;
 import com.example.lanchat.service.LamportClock;
 import com.example.lanchat.service.MessageService;
+import com.example.lanchat.service.OutboxService;
 import com.example.lanchat.service.PeerDirectory;
 import com.example.lanchat.service.RoomMembershipService;
 import com.example.lanchat.service.RoomService;
@@ -13,6 +15,7 @@ import com.example.lanchat.service.TransportService;
 import com.example.lanchat.store.Db;
 import com.example.lanchat.store.IdentityDao;
 import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.transport.TransportEngine;
 import com.example.lanchat.web.ApiRoutes;
 import com.example.lanchat.web.WebServer;
 import com.example.lanchat.store.ConversationDao;
@@ -36,6 +39,7 @@ public class Launcher {
         String name = "User-" + (System.currentTimeMillis() % 1000);
         int webPort = Settings.DEFAULT_WEB_PORT;
         String dbName = null;
+        TransportEngine transportEngine = TransportEngine.POOLED;
 
         if (args.length > 0) {
             for (int i = 0; i < args.length; i++) {
@@ -47,6 +51,8 @@ public class Launcher {
                     webPort = Integer.parseInt(args[++i]);
                 } else if ("--db".equals(args[i]) && i + 1 < args.length) {
                     dbName = args[++i];
+                } else if ("--transport".equals(args[i]) && i + 1 < args.length) {
+                    transportEngine = TransportEngine.parse(args[++i]);
                 } else if (!args[i].startsWith("--")) {
                     // Fallback to positional if first arg is not a flag
                     if (i == 0) {
@@ -80,18 +86,21 @@ public class Launcher {
             System.out.println("Name:    " + identity.displayName);
             System.out.println("P2P Port:" + identity.p2pPort);
             System.out.println("Web Port:" + identity.webPort);
+            System.out.println("Transport:" + transportEngine);
             
         } catch (SQLException e) {
             e.printStackTrace();
             return;
         }
 
-        TransportService transport = new TransportService(identity);
+        TransportService transport = new TransportService(identity, transportEngine);
         LamportClock clock = new LamportClock();
-        MessageService messageService = new MessageService(identity, clock, transport);
+        OutboxService outbox = new OutboxService(transport);
+        IngestPipeline ingest = new IngestPipeline();
+        MessageService messageService = new MessageService(identity, clock, transport, outbox, ingest);
         RoomService roomService = new RoomService(identity);
         RoomMembershipService roomMembershipService = new RoomMembershipService(identity, clock, transport);
-        GroupMessageService groupMessageService = new GroupMessageService(identity, clock, transport);
+        GroupMessageService groupMessageService = new GroupMessageService(identity, clock, transport, outbox, ingest);
         SyncService syncService = new SyncService(identity, clock, transport);
 
         transport.onMessage((remote, env) -> {
@@ -119,14 +128,18 @@ public class Launcher {
             System.err.println("Failed to start transport: " + e.getMessage());
             return;
         }
+        transport.onPeerConnected(p -> outbox.onPeerOnline(p.nodeId));
+        outbox.start();
 
         PeerDirectory peerDirectory = new PeerDirectory();
+        peerDirectory.onPeerSeen(outbox::onPeerSeen);
         
         DiscoveryService discoveryService = new DiscoveryService(identity, peerDirectory);
         discoveryService.start();
 
         roomMembershipService.onJoinAccepted(syncService::syncRoomAsync);
         syncService.syncAllRoomsAsync();
+        syncService.start();
 
         ApiRoutes apiRoutes = new ApiRoutes(
                 identity,
@@ -151,6 +164,7 @@ public class Launcher {
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutting down...");
+            outbox.shutdown();
             try {
                 webServer.close();
             } catch (Exception ignored) {
@@ -162,6 +176,7 @@ public class Launcher {
             discoveryService.stop();
             peerDirectory.shutdown();
             syncService.shutdown();
+            ingest.shutdown();
             Db.close();
         }));
 
@@ -16,6 +16,9 @@ public class Settings {
     
     // Database
     public static final String DB_NAME = "lanchat.db";
+    public static final int DB_READ_CONNECTIONS = 4;
+    // Covers every distinct statement the DAOs issue, per connection
+    public static final int DB_STATEMENT_CACHE_SIZE = 64;
     
     // Probe settings
     public static final int PROBE_TIMEOUT_MS = 2000;
@@ -24,6 +27,52 @@ public class Settings {
     public static final int MAX_MESSAGE_BYTES = 64 * 1024;
     public static final long SEEN_MSG_TTL_MS = 10 * 60 * 1000L;
     public static final int SEEN_MSG_MAX_SIZE = 50_000;
+    // seen_messages: in-memory Bloom filters in front of the table, inserts batched. Filters are
+    // kept per slice of SEEN_RETENTION_MS and dropped once the prune has passed their slice.
+    public static final int SEEN_FILTER_MIN_CAPACITY = 100_000;
+    public static final int SEEN_FILTER_GENERATIONS = 8;
+    public static final double SEEN_FILTER_FPP = 0.01;
+    public static final long SEEN_FLUSH_INTERVAL_MS = 50;
+    public static final int SEEN_FLUSH_BATCH = 500;
+    // seen_messages rows older than this are pruned; older duplicates are caught by messages.msg_id
+    public static final long SEEN_RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+    public static final int SEEN_PRUNE_CHUNK = 1000;
+    // Background prune + incremental_vacuum + WAL checkpoint
+    public static final long DB_MAINTENANCE_INTERVAL_MS = 10 * 60 * 1000L;
+    public static final int DB_VACUUM_PAGES = 2000;
+    public static final long DB_WAL_SIZE_LIMIT_BYTES = 64L * 1024 * 1024;
+    // last_msg_ts / last_seen updates are coalesced in memory and written at this interval
+    public static final long WRITE_BEHIND_FLUSH_MS = 1000;
     public static final int HELLO_TIMEOUT_MS = 5000;
     public static final int TCP_IO_THREADS = 16;
+    public static final int NIO_EVENT_LOOPS = 2;
+    public static final int TCP_ACCEPT_BACKLOG = 1024;
+    // Max concurrent dials while fanning one message out to peers without a live connection
+    public static final int FANOUT_DIAL_THREADS = 8;
+
+    // Outbox: per-peer retry with exponential backoff
+    public static final int OUTBOX_THREADS = 4;
+    public static final long OUTBOX_TICK_MS = 1000;
+    public static final long OUTBOX_BACKOFF_BASE_MS = 1000;
+    public static final long OUTBOX_BACKOFF_MAX_MS = 5 * 60 * 1000L;
+    public static final int OUTBOX_BATCH = 200;
+    // A written message that expects an ACK is sent again if none came back within this
+    public static final long OUTBOX_ACK_TIMEOUT_MS = 30_000;
+
+    // Inbound messages are committed in one transaction per batch (size or time window)
+    public static final int INGEST_BATCH = 512;
+    public static final long INGEST_WINDOW_MS = 5;
+
+    // Room sync: pages a source streams per SYNC_REQUEST (requested / accepted at most)
+    public static final int SYNC_CREDIT_PAGES = 8;
+    public static final int SYNC_MAX_CREDIT_PAGES = 32;
+    public static final long SYNC_PAGE_TIMEOUT_MS = 5000;
+    // Encoded messages per sync page; the rest of MAX_MESSAGE_BYTES is left for the envelope
+    public static final int SYNC_PAGE_BYTES = MAX_MESSAGE_BYTES - 4 * 1024;
+    // Parallel catch-up: clock ranges per source, and how long a source may go without a page
+    // before its range is handed to another one
+    public static final int SYNC_RANGES_PER_SOURCE = 4;
+    public static final long SYNC_STALL_MS = 2000;
+    // Background hash-tree repair of every room against one online member
+    public static final long ROOM_REPAIR_INTERVAL_MS = 15 * 60 * 1000; // 15 minutes
 }
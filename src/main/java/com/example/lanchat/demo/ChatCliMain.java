@@ -2,8 +2,10 @@ package com.example.lanchat.demo;
 
 import com.example.lanchat.core.Settings;
 import com.example.lanchat.service.GroupMessageService;
+import com.example.lanchat.service.IngestPipeline;
 import com.example.lanchat.service.LamportClock;
 import com.example.lanchat.service.MessageService;
+import com.example.lanchat.service.OutboxService;
 import com.example.lanchat.service.RoomMembershipService;
 import com.example.lanchat.service.RoomService;
 import com.example.lanchat.service.TransportService;
@@ -45,10 +47,12 @@ public class ChatCliMain {
 
         TransportService transport = new TransportService(identity);
         LamportClock clock = new LamportClock();
-        MessageService messageService = new MessageService(identity, clock, transport);
+        OutboxService outbox = new OutboxService(transport);
+        IngestPipeline ingest = new IngestPipeline();
+        MessageService messageService = new MessageService(identity, clock, transport, outbox, ingest);
         RoomService roomService = new RoomService(identity);
         RoomMembershipService roomMembershipService = new RoomMembershipService(identity, clock, transport);
-        GroupMessageService groupMessageService = new GroupMessageService(identity, clock, transport);
+        GroupMessageService groupMessageService = new GroupMessageService(identity, clock, transport, outbox, ingest);
         transport.onMessage((remote, env) -> {
             if (env != null) {
                 clock.observe(env.clock);
@@ -68,9 +72,13 @@ public class ChatCliMain {
             }
         });
         transport.start();
+        transport.onPeerConnected(p -> outbox.onPeerOnline(p.nodeId));
+        outbox.start();
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            outbox.shutdown();
             transport.stop();
+            ingest.shutdown();
             Db.close();
         }));
 
@@ -11,10 +11,10 @@ import com.example.lanchat.store.RoomDao;
 import com.example.lanchat.store.RoomDao.Room;
 import com.example.lanchat.store.RoomMemberDao;
 import com.example.lanchat.store.RoomMemberDao.RoomMember;
-import com.example.lanchat.store.SeenDao;
 import com.example.lanchat.transport.PeerInfo;
 import com.google.gson.JsonObject;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -23,20 +23,22 @@ public class GroupMessageService implements TransportService.Handler {
     private final Identity identity;
     private final LamportClock clock;
     private final TransportService transport;
+    private final OutboxService outbox;
+    private final IngestPipeline ingest;
     private final ConversationService conversationService;
     private final MessageDao messageDao;
-    private final SeenDao seenDao;
     private final RoomDao roomDao;
     private final RoomMemberDao roomMemberDao;
     private final PeerDao peerDao;
 
-    public GroupMessageService(Identity identity, LamportClock clock, TransportService transport) {
+    public GroupMessageService(Identity identity, LamportClock clock, TransportService transport, OutboxService outbox, IngestPipeline ingest) {
         this.identity = identity;
         this.clock = clock;
         this.transport = transport;
+        this.outbox = outbox;
+        this.ingest = ingest;
         this.conversationService = new ConversationService();
         this.messageDao = new MessageDao();
-        this.seenDao = new SeenDao();
         this.roomDao = new RoomDao();
         this.roomMemberDao = new RoomMemberDao();
         this.peerDao = new PeerDao();
@@ -69,7 +71,7 @@ public class GroupMessageService implements TransportService.Handler {
         out.clockValue = String.valueOf(clk);
         out.status = "SENT";
 
-        messageDao.insert(out);
+        messageDao.insertNumbered(out);
         conversationService.touch(conv.convId, now);
 
         MessageEnvelope env = new MessageEnvelope();
@@ -84,9 +86,11 @@ public class GroupMessageService implements TransportService.Handler {
         payload.addProperty("roomId", roomId);
         payload.addProperty("content", content);
         payload.addProperty("contentType", "text/plain");
+        payload.addProperty("originSeq", out.originSeq);
         env.payload = payload;
 
         List<RoomMember> members = roomMemberDao.listMembers(roomId);
+        List<TransportService.Recipient> recipients = new ArrayList<>();
         for (RoomMember m : members) {
             if (m.memberNodeId == null) continue;
             if (identity.nodeId.equals(m.memberNodeId)) continue;
@@ -100,8 +104,16 @@ public class GroupMessageService implements TransportService.Handler {
                 }
             }
             if (ip == null || ip.isEmpty() || port <= 0) continue;
-            transport.send(m.memberNodeId, ip, port, env);
+            recipients.add(new TransportService.Recipient(m.memberNodeId, ip, port));
         }
+        transport.fanOut(recipients, env).forEach((nodeId, outcome) -> outcome.whenComplete((v, e) -> {
+            if (e == null) return;
+            try {
+                outbox.enqueue(nodeId, env);
+            } catch (SQLException ex) {
+                System.err.println("Room message " + msgId + " to " + nodeId + " dropped: " + ex.getMessage());
+            }
+        }));
     }
 
     @Override
@@ -123,8 +135,7 @@ public class GroupMessageService implements TransportService.Handler {
 
         if (env.msgId == null) return;
         long now = System.currentTimeMillis();
-        boolean first = seenDao.markSeen(env.msgId, now);
-        if (!first) return;
+        // Marked seen by the ingest commit; a repeat is ignored there by insertIgnore.
 
         String roomId = payload.has("roomId") ? payload.get("roomId").getAsString() : null;
         if (roomId == null) return;
@@ -141,18 +152,12 @@ public class GroupMessageService implements TransportService.Handler {
         sender.lastKnownIp = remote.ip;
         sender.lastKnownP2pPort = remote.p2pPort;
         sender.lastSeen = now;
-        try {
-            roomMemberDao.upsert(sender);
-        } catch (SQLException ignored) {
-        }
 
         Room room = roomDao.getById(roomId);
         String title = room != null && room.roomName != null ? room.roomName : roomId;
-        Conversation conv = conversationService.getOrCreateRoomConv(roomId, title, now);
 
         Message in = new Message();
         in.msgId = env.msgId;
-        in.convId = conv.convId;
         in.chatType = "ROOM";
         in.roomId = roomId;
         in.direction = "IN";
@@ -164,10 +169,18 @@ public class GroupMessageService implements TransportService.Handler {
         in.updatedAt = in.ts;
         in.clockValue = String.valueOf(env.clock);
         in.status = "DELIVERED";
-
-        messageDao.insert(in);
-        conversationService.touch(conv.convId, in.ts);
-
-        System.out.println("[" + title + "] " + fromName + ": " + content);
+        in.originSeq = payload.has("originSeq") ? payload.get("originSeq").getAsLong() : 0;
+
+        IngestPipeline.Item item = new IngestPipeline.Item();
+        item.message = in;
+        item.convTitle = title;
+        item.sender = sender;
+        ingest.submit(item).whenComplete((inserted, e) -> {
+            if (e != null) {
+                System.err.println("Ingest ROOM msgId=" + env.msgId + " failed: " + e.getMessage());
+            } else if (inserted) {
+                System.out.println("[" + title + "] " + fromName + ": " + content);
+            }
+        });
     }
 }
@@ -0,0 +1,176 @@
+package com.example.lanchat.service;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.store.ConversationDao;
+import com.example.lanchat.store.ConversationDao.Conversation;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.MessageDao;
+import com.example.lanchat.store.MessageDao.Message;
+import com.example.lanchat.store.RoomMemberDao;
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import com.example.lanchat.store.SeenDao;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Group commit for inbound messages. Callers queue a message and get a future that completes
+// (true = newly stored, false = already present) once the transaction holding it is committed.
+// Up to INGEST_BATCH messages arriving within INGEST_WINDOW_MS share one transaction, which
+// also records their ids in seen_messages, so an id counts as seen only once it is durable.
+public class IngestPipeline {
+
+    public static class Item {
+        public Message message;
+        // Private conversations are keyed by peer; room conversations by message.roomId.
+        public String peerNodeId;
+        public String convTitle;
+        public RoomMember sender;
+
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+    }
+
+    private final ConversationDao conversationDao;
+    private final MessageDao messageDao;
+    private final RoomMemberDao roomMemberDao;
+    private final SeenDao seenDao;
+    private final LinkedBlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private final ExecutorService notifier;
+    private volatile boolean running = true;
+    // Committed transactions; written by the worker only.
+    private volatile long batches;
+
+    public IngestPipeline() {
+        this.conversationDao = new ConversationDao();
+        this.messageDao = new MessageDao();
+        this.roomMemberDao = new RoomMemberDao();
+        this.seenDao = new SeenDao();
+        this.notifier = Executors.newSingleThreadExecutor();
+        this.worker = new Thread(this::run, "lanchat-ingest");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public CompletableFuture<Boolean> submit(Item item) {
+        if (!running) {
+            item.done.completeExceptionally(new IllegalStateException("Ingest pipeline stopped"));
+        } else {
+            queue.add(item);
+        }
+        return item.done;
+    }
+
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        notifier.shutdown();
+    }
+
+    long batches() {
+        return batches;
+    }
+
+    private void run() {
+        List<Item> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Item first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Settings.INGEST_WINDOW_MS);
+                while (batch.size() < Settings.INGEST_BATCH) {
+                    long left = deadline - System.nanoTime();
+                    Item next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) commit(batch);
+            batch = new ArrayList<>();
+        }
+    }
+
+    private void commit(List<Item> batch) {
+        try {
+            List<Boolean> results = Db.transaction(conn -> apply(batch));
+            batches++;
+            for (int i = 0; i < batch.size(); i++) {
+                complete(batch.get(i), results.get(i), null);
+            }
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                complete(batch.get(0), null, e);
+                return;
+            }
+            // One bad message must not take the rest of the batch down with it.
+            for (Item item : batch) {
+                commit(List.of(item));
+            }
+        }
+    }
+
+    private List<Boolean> apply(List<Item> batch) throws SQLException {
+        Map<String, Conversation> convs = new HashMap<>();
+        Map<String, Long> touched = new HashMap<>();
+        List<Boolean> results = new ArrayList<>(batch.size());
+        List<String> msgIds = new ArrayList<>(batch.size());
+        long now = System.currentTimeMillis();
+        for (Item item : batch) {
+            Message m = item.message;
+            String key = m.roomId != null ? "room:" + m.roomId : "peer:" + item.peerNodeId;
+            Conversation conv = convs.get(key);
+            if (conv == null) {
+                conv = m.roomId != null
+                        ? conversationDao.getOrCreateRoom(m.roomId, item.convTitle, now)
+                        : conversationDao.getOrCreatePrivate(item.peerNodeId, item.convTitle, now);
+                convs.put(key, conv);
+            }
+            m.convId = conv.convId;
+
+            boolean inserted = messageDao.insertIgnore(m);
+            if (inserted) {
+                touched.merge(conv.convId, m.ts, Math::max);
+                if (item.sender != null) roomMemberDao.touch(item.sender);
+            }
+            msgIds.add(m.msgId);
+            results.add(inserted);
+        }
+        seenDao.markSeenAll(msgIds, now);
+        for (Map.Entry<String, Long> e : touched.entrySet()) {
+            conversationDao.updateLastMsgTs(e.getKey(), e.getValue());
+        }
+        return results;
+    }
+
+    // Completed off the worker so callbacks (ACKs, logging) never stall the next commit. They all
+    // share the one notifier thread, so they must not block either (no dialing peers).
+    private void complete(Item item, Boolean inserted, Exception error) {
+        Runnable r = () -> {
+            if (error != null) {
+                item.done.completeExceptionally(error);
+            } else {
+                item.done.complete(inserted);
+            }
+        };
+        try {
+            notifier.execute(r);
+        } catch (RejectedExecutionException e) {
+            r.run();
+        }
+    }
+}
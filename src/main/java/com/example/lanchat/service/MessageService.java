@@ -9,7 +9,6 @@ import com.example.lanchat.store.MessageDao;
 import com.example.lanchat.store.MessageDao.Message;
 import com.example.lanchat.store.PeerDao;
 import com.example.lanchat.store.PeerDao.Peer;
-import com.example.lanchat.store.SeenDao;
 import com.example.lanchat.transport.PeerInfo;
 import com.google.gson.JsonObject;
 import java.sql.SQLException;
@@ -21,17 +20,19 @@ public class MessageService implements Handler {
     private final LamportClock clock;
     private final ConversationService conversationService;
     private final MessageDao messageDao;
-    private final SeenDao seenDao;
     private final PeerDao peerDao;
     private final TransportService transport;
+    private final OutboxService outbox;
+    private final IngestPipeline ingest;
 
-    public MessageService(Identity identity, LamportClock clock, TransportService transport) {
+    public MessageService(Identity identity, LamportClock clock, TransportService transport, OutboxService outbox, IngestPipeline ingest) {
         this.identity = identity;
         this.transport = transport;
+        this.outbox = outbox;
+        this.ingest = ingest;
         this.clock = clock;
         this.conversationService = new ConversationService();
         this.messageDao = new MessageDao();
-        this.seenDao = new SeenDao();
         this.peerDao = new PeerDao();
     }
 
@@ -79,7 +80,7 @@ public class MessageService implements Handler {
         out.ts = now;
         out.updatedAt = now;
         out.clockValue = String.valueOf(clk);
-        out.status = "SENT";
+        out.status = "QUEUED";
 
         boolean inserted = false;
         try {
@@ -104,19 +105,12 @@ public class MessageService implements Handler {
         payload.addProperty("content", content);
         env.payload = payload;
 
-        try {
-            transport.send(toNodeId, ip, port, env);
-            if (inserted) {
-                System.out.println("Sent PRIVATE msgId=" + msgId + " to " + toNodeId + " status=SENT");
-            } else {
-                System.out.println("Resent PRIVATE msgId=" + msgId + " to " + toNodeId);
-            }
-        } catch (Exception e) {
-            try {
-                messageDao.updateStatus(msgId, "FAILED");
-            } catch (SQLException ignored) {
-            }
-            throw e;
+        // Delivered (and retried until the peer ACKs it) by the outbox.
+        outbox.enqueue(toNodeId, env, true);
+        if (inserted) {
+            System.out.println("Queued PRIVATE msgId=" + msgId + " to " + toNodeId + " status=QUEUED");
+        } else {
+            System.out.println("Requeued PRIVATE msgId=" + msgId + " to " + toNodeId);
         }
     }
 
@@ -138,7 +132,7 @@ public class MessageService implements Handler {
             return;
         }
         if (MessageType.ACK.equals(env.type)) {
-            handleAck(env);
+            handleAck(remote, env);
         }
     }
 
@@ -149,20 +143,16 @@ public class MessageService implements Handler {
         if (!"PRIVATE".equals(chatType)) return;
 
         if (env.msgId == null) return;
-        boolean first = seenDao.markSeen(env.msgId, now);
-        if (!first) {
-            return;
-        }
+        // Repeats are not dropped here, nor by the transport dedup: a redelivery whose ACK was
+        // lost is ACKed again (the sender's outbox keeps it until then), and insertIgnore keeps it
+        // from being stored twice. The ingest commit marks the id seen.
 
         String content = payload.has("content") ? payload.get("content").getAsString() : "";
         String fromNodeId = env.from != null ? env.from.nodeId : remote.nodeId;
         String toNodeId = payload.has("toNodeId") ? payload.get("toNodeId").getAsString() : identity.nodeId;
 
-        Conversation conv = conversationService.getOrCreatePrivateConv(fromNodeId, remote.name, now);
-
         Message in = new Message();
         in.msgId = env.msgId;
-        in.convId = conv.convId;
         in.chatType = "PRIVATE";
         in.roomId = null;
         in.direction = "IN";
@@ -175,13 +165,22 @@ public class MessageService implements Handler {
         in.clockValue = String.valueOf(env.clock);
         in.status = "DELIVERED";
 
-        messageDao.insert(in);
-        conversationService.touch(conv.convId, in.ts);
-
-        sendAck(remote, env.msgId);
+        IngestPipeline.Item item = new IngestPipeline.Item();
+        item.message = in;
+        item.peerNodeId = fromNodeId;
+        item.convTitle = remote.name;
+        // ACK only once the message is durable.
+        ingest.submit(item).whenComplete((inserted, e) -> {
+            if (e != null) {
+                System.err.println("Ingest PRIVATE msgId=" + env.msgId + " failed: " + e.getMessage());
+                return;
+            }
+            sendAck(remote, env.msgId);
+        });
     }
 
-    private void sendAck(PeerInfo remote, String ackMsgId) throws Exception {
+    // Runs on the ingest notifier, which completes every batch: must not wait on a dial.
+    private void sendAck(PeerInfo remote, String ackMsgId) {
         MessageEnvelope ack = new MessageEnvelope();
         ack.protocolVersion = 1;
         ack.type = MessageType.ACK;
@@ -195,14 +194,18 @@ public class MessageService implements Handler {
         payload.addProperty("status", "DELIVERED");
         ack.payload = payload;
 
-        transport.send(remote.nodeId, remote.ip, remote.p2pPort, ack);
+        transport.sendAsync(remote.nodeId, remote.ip, remote.p2pPort, ack).whenComplete((v, e) -> {
+            if (e != null) System.err.println("ACK for msgId=" + ackMsgId + " failed: " + e.getMessage());
+        });
     }
 
-    private void handleAck(MessageEnvelope env) throws SQLException {
+    private void handleAck(PeerInfo remote, MessageEnvelope env) throws SQLException {
         if (env.payload == null || !env.payload.isJsonObject()) return;
         JsonObject payload = env.payload.getAsJsonObject();
         if (!payload.has("ackMsgId")) return;
         String ackMsgId = payload.get("ackMsgId").getAsString();
+        String fromNodeId = env.from != null && env.from.nodeId != null ? env.from.nodeId : remote.nodeId;
+        outbox.onAck(fromNodeId, ackMsgId);
         messageDao.updateStatus(ackMsgId, "DELIVERED");
         System.out.println("ACK DELIVERED for msgId=" + ackMsgId);
     }
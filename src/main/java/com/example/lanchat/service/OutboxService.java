@@ -0,0 +1,189 @@
+package com.example.lanchat.service;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.store.MessageDao;
+import com.example.lanchat.store.OutboxDao;
+import com.example.lanchat.store.OutboxDao.Entry;
+import com.example.lanchat.store.PeerDao;
+import com.example.lanchat.store.PeerDao.Peer;
+import com.google.gson.Gson;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Durable per-peer send queue. Envelopes are stored in the outbox table first and then
+// delivered in order per peer; a peer that cannot be reached is retried with exponential
+// backoff. A completed handshake with the peer retries it right away; a discovery sighting
+// only when its backoff has run out, since a peer can answer on UDP and still not take TCP.
+//
+// A written frame has only reached the socket buffer. Envelopes the peer ACKs (private chat
+// messages) stay queued until the ACK for their msgId arrives and are written again after
+// OUTBOX_ACK_TIMEOUT_MS without one; the receiver ACKs a repeat again but stores it once.
+// Their message row moves from QUEUED to SENT once written. Other envelopes are done when
+// written.
+public class OutboxService {
+
+    private final TransportService transport;
+    private final OutboxDao outboxDao;
+    private final MessageDao messageDao;
+    private final PeerDao peerDao;
+    private final Gson gson;
+    private final ScheduledExecutorService ticker;
+    private final ExecutorService senders;
+    private final Set<String> pendingPeers = ConcurrentHashMap.newKeySet();
+    private final Set<String> draining = ConcurrentHashMap.newKeySet();
+    // Next attempt time of peers in backoff, mirroring next_attempt_at for onPeerSeen.
+    private final Map<String, Long> retryAt = new ConcurrentHashMap<>();
+    private final long ackTimeoutMs;
+
+    public OutboxService(TransportService transport) {
+        this(transport, Settings.OUTBOX_ACK_TIMEOUT_MS);
+    }
+
+    OutboxService(TransportService transport, long ackTimeoutMs) {
+        this.transport = transport;
+        this.ackTimeoutMs = ackTimeoutMs;
+        this.outboxDao = new OutboxDao();
+        this.messageDao = new MessageDao();
+        this.peerDao = new PeerDao();
+        this.gson = new Gson();
+        this.ticker = Executors.newSingleThreadScheduledExecutor();
+        this.senders = Executors.newFixedThreadPool(Settings.OUTBOX_THREADS);
+    }
+
+    public void start() {
+        try {
+            pendingPeers.addAll(outboxDao.listPeers());
+        } catch (SQLException e) {
+            System.err.println("OutboxService load failed: " + e.getMessage());
+        }
+        ticker.scheduleWithFixedDelay(this::tick, 0, Settings.OUTBOX_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    public void enqueue(String peerNodeId, MessageEnvelope env) throws SQLException {
+        enqueue(peerNodeId, env, false);
+    }
+
+    public void enqueue(String peerNodeId, MessageEnvelope env, boolean awaitAck) throws SQLException {
+        outboxDao.enqueue(peerNodeId, env.msgId, gson.toJson(env), awaitAck, System.currentTimeMillis());
+        pendingPeers.add(peerNodeId);
+        drainAsync(peerNodeId);
+    }
+
+    public void onAck(String peerNodeId, String msgId) {
+        try {
+            outboxDao.deleteAcked(peerNodeId, msgId);
+        } catch (SQLException e) {
+            System.err.println("OutboxService ack " + msgId + " failed: " + e.getMessage());
+        }
+    }
+
+    // A connection to the peer has completed its handshake.
+    public void onPeerOnline(String peerNodeId) {
+        if (peerNodeId == null) return;
+        retryAt.remove(peerNodeId);
+        if (pendingPeers.contains(peerNodeId)) drainAsync(peerNodeId);
+    }
+
+    // Cheap enough to call on every presence packet: peers with nothing queued or still in
+    // backoff are skipped.
+    public void onPeerSeen(String peerNodeId) {
+        if (peerNodeId == null || !pendingPeers.contains(peerNodeId)) return;
+        if (retryAt.getOrDefault(peerNodeId, 0L) > System.currentTimeMillis()) return;
+        drainAsync(peerNodeId);
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            for (String peerNodeId : outboxDao.listPeersDue(now, now - ackTimeoutMs)) {
+                pendingPeers.add(peerNodeId);
+                drainAsync(peerNodeId);
+            }
+        } catch (Exception e) {
+            System.err.println("OutboxService tick failed: " + e.getMessage());
+        }
+    }
+
+    private void drainAsync(String peerNodeId) {
+        if (!draining.add(peerNodeId)) return;
+        try {
+            senders.execute(() -> {
+                try {
+                    drain(peerNodeId);
+                } catch (Exception e) {
+                    System.err.println("OutboxService drain " + peerNodeId + " failed: " + e.getMessage());
+                } finally {
+                    draining.remove(peerNodeId);
+                }
+            });
+        } catch (RuntimeException e) {
+            draining.remove(peerNodeId);
+        }
+    }
+
+    private void drain(String peerNodeId) throws SQLException {
+        while (true) {
+            List<Entry> batch = outboxDao.listForPeer(peerNodeId, System.currentTimeMillis() - ackTimeoutMs,
+                    Settings.OUTBOX_BATCH);
+            if (batch.isEmpty()) {
+                pendingPeers.remove(peerNodeId);
+                if (outboxDao.countForPeer(peerNodeId) > 0) pendingPeers.add(peerNodeId);
+                return;
+            }
+            int attempts = batch.get(0).attempts;
+            Peer peer = peerDao.getPeerByNodeId(peerNodeId);
+            if (peer == null || peer.ip == null || peer.ip.isEmpty() || peer.p2pPort <= 0) {
+                backoff(peerNodeId, attempts);
+                return;
+            }
+            int delivered = 0;
+            try {
+                List<CompletableFuture<Void>> writes = new ArrayList<>();
+                for (Entry e : batch) {
+                    MessageEnvelope env = gson.fromJson(e.envelope, MessageEnvelope.class);
+                    writes.add(transport.send(peerNodeId, peer.ip, peer.p2pPort, env));
+                }
+                for (int i = 0; i < writes.size(); i++) {
+                    writes.get(i).get(Settings.HELLO_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    Entry e = batch.get(i);
+                    if (e.awaitAck) {
+                        outboxDao.markSent(e.id, System.currentTimeMillis());
+                        messageDao.updateStatus(e.msgId, "QUEUED", "SENT");
+                    } else {
+                        outboxDao.delete(e.id);
+                    }
+                    delivered++;
+                }
+            } catch (Exception e) {
+                System.out.println("Outbox: " + peerNodeId + " unreachable (" + e.getMessage() + "), "
+                        + (batch.size() - delivered) + " queued, attempt " + (attempts + 1));
+                backoff(peerNodeId, attempts);
+                return;
+            }
+            if (attempts > 0) outboxDao.reschedulePeer(peerNodeId, 0, 0);
+            retryAt.remove(peerNodeId);
+        }
+    }
+
+    private void backoff(String peerNodeId, int attempts) throws SQLException {
+        long delay = Math.min(Settings.OUTBOX_BACKOFF_MAX_MS, Settings.OUTBOX_BACKOFF_BASE_MS << Math.min(attempts, 20));
+        long next = System.currentTimeMillis() + delay;
+        retryAt.put(peerNodeId, next);
+        outboxDao.reschedulePeer(peerNodeId, attempts + 1, next);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.lanchat.service;
+
+import com.example.lanchat.core.Settings;
+
+// Sync page limit for one source, from the round trip and throughput seen on its last streams.
+// A page should take about PAGE_MS to transfer, longer if a window of SYNC_CREDIT_PAGES would
+// not cover the round trip to the next request, but well inside the stall timeout; and it asks
+// for no more messages than the server's byte budget lets through anyway. So a fast link gets
+// full pages and a slow one short pages that keep arriving. Samples are smoothed; until there
+// are any the requested limit stays at the initial value.
+final class PageSizer {
+
+    static final int MIN_LIMIT = 10;
+    static final int MAX_LIMIT = 500;
+    private static final double PAGE_MS = 100;
+    // Weight of a new sample in the moving averages.
+    private static final double ALPHA = 0.25;
+
+    private double rttMs = -1;
+    private double bytesPerMs = -1;
+    private double bytesPerMessage = -1;
+    private int limit;
+
+    PageSizer(int initialLimit) {
+        this.limit = initialLimit;
+    }
+
+    synchronized int limit() {
+        return limit;
+    }
+
+    // Time from sending a request to its first page.
+    synchronized void onFirstPage(long nanos, int messages, long bytes) {
+        rttMs = smooth(rttMs, nanos / 1e6);
+        onSize(messages, bytes);
+        resize();
+    }
+
+    // A later page of the same stream and the time since the previous one arrived.
+    synchronized void onPage(long gapNanos, int messages, long bytes) {
+        if (messages > 0) bytesPerMs = smooth(bytesPerMs, bytes / Math.max(gapNanos / 1e6, 1.0));
+        onSize(messages, bytes);
+        resize();
+    }
+
+    private void onSize(int messages, long bytes) {
+        if (messages > 0) bytesPerMessage = smooth(bytesPerMessage, (double) bytes / messages);
+    }
+
+    private void resize() {
+        if (bytesPerMessage <= 0) return;
+        double pageBytes = Settings.SYNC_PAGE_BYTES;
+        if (bytesPerMs > 0) {
+            double targetMs = Math.min(Math.max(PAGE_MS, rttMs / Settings.SYNC_CREDIT_PAGES), Settings.SYNC_STALL_MS / 4.0);
+            pageBytes = Math.min(pageBytes, Math.max(bytesPerMs * targetMs, bytesPerMessage));
+        }
+        limit = (int) Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, pageBytes / bytesPerMessage));
+    }
+
+    private static double smooth(double avg, double sample) {
+        return avg < 0 ? sample : avg + ALPHA * (sample - avg);
+    }
+}
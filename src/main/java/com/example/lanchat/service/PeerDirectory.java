@@ -11,24 +11,33 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class PeerDirectory {
 
     private final PeerDao peerDao;
     private final ExecutorService probeExecutor;
+    private volatile Consumer<String> peerSeenListener;
 
     public PeerDirectory() {
         this.peerDao = new PeerDao();
         this.probeExecutor = Executors.newFixedThreadPool(Settings.PROBE_THREADS);
     }
 
+    public void onPeerSeen(Consumer<String> listener) {
+        this.peerSeenListener = listener;
+    }
+
     public void addPeer(String nodeId, String name, String ip, int p2pPort) {
         try {
-            peerDao.upsertPeer(nodeId, name, ip, p2pPort, System.currentTimeMillis());
+            peerDao.touchPeer(nodeId, name, ip, p2pPort, System.currentTimeMillis());
             System.out.println("Updated peer: " + name + " (" + ip + ":" + p2pPort + ")");
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
         }
+        Consumer<String> listener = peerSeenListener;
+        if (listener != null) listener.accept(nodeId);
     }
 
     public List<Peer> getOnlinePeers() {
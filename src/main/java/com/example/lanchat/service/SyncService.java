@@ -4,29 +4,45 @@ import com.example.lanchat.core.Settings;
 import com.example.lanchat.protocol.Errors;
 import com.example.lanchat.protocol.MessageEnvelope;
 import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.store.ConversationDao.Conversation;
+import com.example.lanchat.store.Db;
 import com.example.lanchat.store.MessageDao;
 import com.example.lanchat.store.MessageDao.Message;
 import com.example.lanchat.store.PeerDao;
 import com.example.lanchat.store.RoomCursorDao;
 import com.example.lanchat.store.RoomDao;
 import com.example.lanchat.store.RoomDao.Room;
+import com.example.lanchat.store.RoomDigestDao;
 import com.example.lanchat.store.RoomMemberDao;
 import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import com.example.lanchat.store.RoomVectorDao;
 import com.example.lanchat.store.SeenDao;
+import com.example.lanchat.transport.Framing;
 import com.example.lanchat.transport.PeerInfo;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SyncService implements TransportService.Handler {
 
@@ -34,6 +50,8 @@ public class SyncService implements TransportService.Handler {
     private static final int MAX_SOURCES = 3;
 
     private final RoomCursorDao roomCursorDao;
+    private final RoomVectorDao roomVectorDao;
+    private final RoomDigestDao roomDigestDao;
     private final RoomDao roomDao;
     private final RoomMemberDao roomMemberDao;
     private final PeerDao peerDao;
@@ -45,33 +63,81 @@ public class SyncService implements TransportService.Handler {
     private final LamportClock clock;
     private final TransportService transport;
     private final ExecutorService syncPool;
+    // One worker per source during a parallel catch-up.
+    private final ExecutorService rangePool;
+    private final ScheduledExecutorService repairTicker;
 
     private final ConcurrentHashMap<String, Pending> pendingByRequestId = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Object> roomLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PageSizer> pageSizers = new ConcurrentHashMap<>();
 
     private static final class Pending {
         final String requestId;
         final String roomId;
         final String peerNodeId;
-        final CompletableFuture<SyncBatch> future;
-
-        Pending(String requestId, String roomId, String peerNodeId, CompletableFuture<SyncBatch> future) {
+        final long sentAt = System.nanoTime();
+        // Pages of one streamed response. They may be handed over out of order when frames are
+        // dispatched on a worker pool, so next() puts them back in page order.
+        final BlockingQueue<SyncBatch> pages = new LinkedBlockingQueue<>();
+        private final Map<Integer, SyncBatch> early = new HashMap<>();
+        private int nextPage;
+        volatile Exception error;
+
+        Pending(String requestId, String roomId, String peerNodeId) {
             this.requestId = requestId;
             this.roomId = roomId;
             this.peerNodeId = peerNodeId;
-            this.future = future;
+        }
+
+        void fail(Exception e) {
+            error = e;
+            pages.offer(SyncBatch.FAILED);
+        }
+
+        SyncBatch next(long timeoutMs) throws Exception {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (true) {
+                SyncBatch b = early.remove(nextPage);
+                if (b != null) {
+                    nextPage++;
+                    return b;
+                }
+                long left = deadline - System.nanoTime();
+                SyncBatch got = left > 0 ? pages.poll(left, TimeUnit.NANOSECONDS) : null;
+                if (got == null) throw new TimeoutException("No SYNC_RESPONSE page " + nextPage + " for " + requestId);
+                if (got == SyncBatch.FAILED) throw error;
+                early.put(got.page, got);
+            }
         }
     }
 
     private static final class SyncBatch {
+        static final SyncBatch FAILED = new SyncBatch(List.of(), false, null, null, null, -1, true, new JsonObject());
+
         final List<MessageEnvelope> messages;
         final boolean hasMore;
         final String nextSinceClockValue;
-
-        SyncBatch(List<MessageEnvelope> messages, boolean hasMore, String nextSinceClockValue) {
+        // Full keyset of the last message; null when the peer only sends clockValue.
+        final Long nextSinceTs;
+        final String nextSinceMsgId;
+        // Position within the response stream; streamEnd marks the last page the source will
+        // send for this request (always true from peers that answer one page per request).
+        final int page;
+        final boolean streamEnd;
+        // The whole response, for the headOnly and digest answers.
+        final JsonObject payload;
+        final long receivedAt = System.nanoTime();
+
+        SyncBatch(List<MessageEnvelope> messages, boolean hasMore, String nextSinceClockValue, Long nextSinceTs, String nextSinceMsgId,
+                  int page, boolean streamEnd, JsonObject payload) {
             this.messages = messages;
             this.hasMore = hasMore;
             this.nextSinceClockValue = nextSinceClockValue;
+            this.nextSinceTs = nextSinceTs;
+            this.nextSinceMsgId = nextSinceMsgId;
+            this.page = page;
+            this.streamEnd = streamEnd;
+            this.payload = payload;
         }
     }
 
@@ -80,6 +146,8 @@ public class SyncService implements TransportService.Handler {
         this.clock = clock;
         this.transport = transport;
         this.roomCursorDao = new RoomCursorDao();
+        this.roomVectorDao = new RoomVectorDao();
+        this.roomDigestDao = new RoomDigestDao();
         this.roomDao = new RoomDao();
         this.roomMemberDao = new RoomMemberDao();
         this.peerDao = new PeerDao();
@@ -87,10 +155,19 @@ public class SyncService implements TransportService.Handler {
         this.seenDao = new SeenDao();
         this.conversationService = new ConversationService();
         this.syncPool = Executors.newFixedThreadPool(2);
+        this.rangePool = Executors.newCachedThreadPool();
+        this.repairTicker = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    public void start() {
+        repairTicker.scheduleWithFixedDelay(this::repairAllRooms,
+                Settings.ROOM_REPAIR_INTERVAL_MS, Settings.ROOM_REPAIR_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     public void shutdown() {
+        repairTicker.shutdownNow();
         syncPool.shutdownNow();
+        rangePool.shutdownNow();
     }
 
     public void syncAllRoomsAsync() {
@@ -124,21 +201,24 @@ public class SyncService implements TransportService.Handler {
             if (!roomMemberDao.isMember(rid, identity.nodeId)) return 0;
 
             String cursor = roomCursorDao.getCursor(rid);
-            List<RoomMember> sources = pickOnlineSources(rid);
-            int insertedTotal = 0;
-            boolean progressed = false;
+            List<Source> sources = new ArrayList<>();
+            for (RoomMember m : pickOnlineSources(rid)) {
+                SourceAddr addr = resolveAddr(m);
+                if (addr != null) sources.add(new Source(m.memberNodeId, addr));
+            }
+            if (sources.isEmpty()) return 0;
+            List<Source> ranged = probeHeads(rid, sources);
+            if (!ranged.isEmpty()) return syncRanges(rid, cursor, ranged);
 
-            for (RoomMember src : sources) {
-                SourceAddr addr = resolveAddr(src);
-                if (addr == null) continue;
-                SyncResult r = syncFromSource(rid, cursor, src.memberNodeId, addr.ip, addr.port);
+            // Peers that predate version vectors: one source at a time, by Lamport clock.
+            int insertedTotal = 0;
+            for (Source src : sources) {
+                Range r = syncFromSource(rid, cursor, src.nodeId, src.addr.ip, src.addr.port);
                 insertedTotal += r.inserted;
-                if (r.maxCursor != null && compareClock(r.maxCursor, cursor) > 0) {
-                    cursor = r.maxCursor;
-                    roomCursorDao.updateCursorMonotonic(rid, cursor);
-                    progressed = true;
+                if (r.maxClock != null && compareClock(r.maxClock, cursor) > 0) {
+                    roomCursorDao.updateCursorMonotonic(rid, r.maxClock);
+                    break;
                 }
-                if (progressed) break;
             }
 
             return insertedTotal;
@@ -155,13 +235,55 @@ public class SyncService implements TransportService.Handler {
         }
     }
 
-    private static final class SyncResult {
-        final int inserted;
-        final String maxCursor;
+    private static final class Source {
+        final String nodeId;
+        final SourceAddr addr;
+        // From the head probe: highest clock among unnumbered messages, and highest origin_seq
+        // per sender. heads stays null for peers that don't do ranged sync.
+        long head = -1;
+        Map<String, Long> heads;
+
+        Source(String nodeId, SourceAddr addr) {
+            this.nodeId = nodeId;
+            this.addr = addr;
+        }
+    }
 
-        SyncResult(int inserted, String maxCursor) {
-            this.inserted = inserted;
-            this.maxCursor = maxCursor;
+    // A slice (since, hi] of either the room's clock order or one sender's origin_seq numbers,
+    // with the position reached in it so far. hi is Long.MAX_VALUE for an open-ended catch-up.
+    private static final class Range {
+        final int index;
+        // Sender whose numbered messages this covers; null for a slice of the clock order.
+        final String origin;
+        // Clock slice over unnumbered messages only (numbered ones go by origin).
+        final boolean legacyOnly;
+        final long hi;
+        String since;
+        Long sinceTs;
+        String sinceMsgId;
+        String maxClock;
+        int inserted;
+
+        private Range(int index, String origin, boolean legacyOnly, String since, long hi) {
+            this.index = index;
+            this.origin = origin;
+            this.legacyOnly = legacyOnly;
+            this.hi = hi;
+            this.since = since == null || since.isBlank() ? "0" : since;
+            this.maxClock = this.since;
+        }
+
+        static Range clock(int index, String since, long hi, boolean legacyOnly) {
+            return new Range(index, null, legacyOnly, since, hi);
+        }
+
+        static Range origin(int index, String origin, long sinceSeq, long untilSeq) {
+            return new Range(index, origin, false, String.valueOf(sinceSeq), untilSeq);
+        }
+
+        boolean servableBy(Source src) {
+            if (origin == null) return hi <= src.head;
+            return src.heads.getOrDefault(origin, 0L) >= hi;
         }
     }
 
@@ -197,30 +319,270 @@ public class SyncService implements TransportService.Handler {
         return null;
     }
 
-    private SyncResult syncFromSource(String roomId, String cursor, String peerNodeId, String ip, int port) throws Exception {
-        String since = cursor == null || cursor.isBlank() ? "0" : cursor;
-        int inserted = 0;
-        String maxCursor = since;
+    private Range syncFromSource(String roomId, String cursor, String peerNodeId, String ip, int port) throws Exception {
+        Range all = Range.clock(0, cursor, Long.MAX_VALUE, false);
+        fetchRange(roomId, all, peerNodeId, ip, port, Settings.SYNC_PAGE_TIMEOUT_MS);
+        return all;
+    }
 
-        while (true) {
-            SyncBatch batch = requestSync(peerNodeId, ip, port, roomId, since, DEFAULT_LIMIT);
-            if (batch == null) break;
+    // Pages arrive SYNC_CREDIT_PAGES per request. The follow-up request goes out as soon as the
+    // last page of the current one is in, before that page is applied, so applying overlaps the
+    // next transfer and a catch-up pays one round trip per window instead of per page. The range
+    // position only moves past pages that were applied, so a failed fetch can be resumed.
+    private void fetchRange(String roomId, Range range, String peerNodeId, String ip, int port, long pageTimeoutMs) throws Exception {
+        PageSizer sizer = pageSizers.computeIfAbsent(peerNodeId, k -> new PageSizer(DEFAULT_LIMIT));
+        Pending stream = requestSync(peerNodeId, ip, port, rangePayload(roomId, range, range.since, range.sinceTs, range.sinceMsgId, sizer.limit()));
+        long lastPageAt = 0;
+        try {
+            while (true) {
+                SyncBatch batch = stream.next(pageTimeoutMs);
+                if (batch.page == 0) {
+                    sizer.onFirstPage(batch.receivedAt - stream.sentAt, batch.messages.size(), pageBytes(batch));
+                } else {
+                    sizer.onPage(batch.receivedAt - lastPageAt, batch.messages.size(), pageBytes(batch));
+                }
+                lastPageAt = batch.receivedAt;
+
+                String maxClock = range.maxClock;
+                String since;
+                Long sinceTs = null;
+                String sinceMsgId = null;
+                if (batch.nextSinceClockValue != null && compareClock(batch.nextSinceClockValue, maxClock) > 0) {
+                    maxClock = batch.nextSinceClockValue;
+                }
+                if (range.origin != null) {
+                    long seq = safeParseLong(range.since);
+                    for (MessageEnvelope m : batch.messages) {
+                        seq = Math.max(seq, originSeq(m));
+                    }
+                    since = String.valueOf(seq);
+                } else if (batch.nextSinceMsgId != null && batch.nextSinceClockValue != null) {
+                    since = batch.nextSinceClockValue;
+                    sinceTs = batch.nextSinceTs;
+                    sinceMsgId = batch.nextSinceMsgId;
+                } else {
+                    since = maxClock;
+                }
 
-            int wrote = applyBatch(roomId, batch.messages);
-            inserted += wrote;
+                if (batch.hasMore && batch.streamEnd) {
+                    pendingByRequestId.remove(stream.requestId);
+                    stream = requestSync(peerNodeId, ip, port, rangePayload(roomId, range, since, sinceTs, sinceMsgId, sizer.limit()));
+                }
 
-            if (batch.nextSinceClockValue != null && compareClock(batch.nextSinceClockValue, maxCursor) > 0) {
-                maxCursor = batch.nextSinceClockValue;
+                range.inserted += applyBatch(roomId, batch.messages);
+                range.since = since;
+                range.sinceTs = sinceTs;
+                range.sinceMsgId = sinceMsgId;
+                range.maxClock = maxClock;
+                if (!batch.hasMore) return;
             }
-            since = maxCursor;
+        } finally {
+            pendingByRequestId.remove(stream.requestId);
+        }
+    }
 
-            if (!batch.hasMore) break;
+    // Asks every source what it holds: the highest clock among its unnumbered messages and the
+    // highest origin_seq per sender. Peers that predate ranged sync answer with an ordinary page
+    // and no heads, and are left out.
+    private List<Source> probeHeads(String roomId, List<Source> sources) {
+        Map<Source, Pending> probes = new LinkedHashMap<>();
+        for (Source src : sources) {
+            JsonObject payload = new JsonObject();
+            payload.addProperty("roomId", roomId);
+            payload.addProperty("headOnly", true);
+            try {
+                probes.put(src, requestSync(src.nodeId, src.addr.ip, src.addr.port, payload));
+            } catch (Exception e) {
+                System.err.println("SyncService head probe to " + src.nodeId + " failed: " + e.getMessage());
+            }
+        }
+        List<Source> out = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + Settings.SYNC_STALL_MS;
+        try {
+            for (Map.Entry<Source, Pending> e : probes.entrySet()) {
+                try {
+                    SyncBatch b = e.getValue().next(Math.max(1, deadline - System.currentTimeMillis()));
+                    if (!b.payload.has("heads") || !b.payload.get("heads").isJsonObject()) continue;
+                    Source src = e.getKey();
+                    src.head = b.payload.has("headClock") ? b.payload.get("headClock").getAsLong() : -1;
+                    src.heads = new HashMap<>();
+                    for (Map.Entry<String, JsonElement> h : b.payload.getAsJsonObject("heads").entrySet()) {
+                        src.heads.put(h.getKey(), h.getValue().getAsLong());
+                    }
+                    out.add(src);
+                } catch (Exception ignored) {
+                }
+            }
+        } finally {
+            for (Pending p : probes.values()) {
+                pendingByRequestId.remove(p.requestId);
+            }
+        }
+        return out;
+    }
+
+    // Builds the ranges still missing and lets every source work the queue at once, so a slow
+    // peer holds back at most the range it is on. Unnumbered messages past the cursor are split
+    // by clock; numbered ones go per sender from the local version vector up to the best head,
+    // so only what is actually missing is fetched. A source that goes SYNC_STALL_MS without a
+    // page, or fails, hands its range back with the progress made and drops out.
+    private int syncRanges(String roomId, String cursor, List<Source> sources) throws Exception {
+        boolean parallel = sources.size() > 1;
+        long from = safeParseLong(cursor);
+        long legacyHead = from;
+        Map<String, Long> want = new TreeMap<>();
+        for (Source src : sources) {
+            legacyHead = Math.max(legacyHead, src.head);
+            src.heads.forEach((origin, seq) -> want.merge(origin, seq, Math::max));
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        if (legacyHead > from) {
+            int count = parallel ? (int) Math.min(legacyHead - from, (long) sources.size() * Settings.SYNC_RANGES_PER_SOURCE) : 1;
+            long step = (legacyHead - from + count - 1) / count;
+            for (int i = 0; i < count && from + i * step < legacyHead; i++) {
+                ranges.add(Range.clock(ranges.size(), String.valueOf(from + i * step), Math.min(legacyHead, from + (i + 1) * step), true));
+            }
+        }
+        int clockRanges = ranges.size();
+        Map<String, Long> vector = roomVectorDao.advance(roomId);
+        long chunk = parallel ? (long) DEFAULT_LIMIT * Settings.SYNC_CREDIT_PAGES : Long.MAX_VALUE;
+        for (Map.Entry<String, Long> e : want.entrySet()) {
+            long lo = vector.getOrDefault(e.getKey(), 0L);
+            while (lo < e.getValue()) {
+                long hi = e.getValue() - lo > chunk ? lo + chunk : e.getValue();
+                ranges.add(Range.origin(ranges.size(), e.getKey(), lo, hi));
+                lo = hi;
+            }
+        }
+        if (ranges.isEmpty()) return 0;
+
+        long pageTimeout = parallel ? Settings.SYNC_STALL_MS : Settings.SYNC_PAGE_TIMEOUT_MS;
+        RangeQueue queue = new RangeQueue(ranges, clockRanges);
+        List<Future<?>> workers = new ArrayList<>();
+        for (Source src : sources) {
+            workers.add(rangePool.submit(() -> {
+                Range r;
+                while ((r = queue.take(src)) != null) {
+                    try {
+                        fetchRange(roomId, r, src.nodeId, src.addr.ip, src.addr.port, pageTimeout);
+                    } catch (Exception e) {
+                        System.err.println("SyncService range " + r.index + " from " + src.nodeId + " failed: " + e.getMessage());
+                        queue.release(r);
+                        return null;
+                    }
+                    long contiguous = queue.complete(r);
+                    if (r.origin == null && contiguous > from) roomCursorDao.updateCursorMonotonic(roomId, String.valueOf(contiguous));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> w : workers) {
+            w.get();
+        }
+        roomVectorDao.advance(roomId);
+        return queue.inserted();
+    }
+
+    private static final class RangeQueue {
+        private final List<Range> ranges;
+        private final ArrayDeque<Range> queued;
+        // The first clockRanges entries are clock slices, in order; the cursor follows their prefix.
+        private final boolean[] done;
+        private int prefix;
+        private int inFlight;
+        private int inserted;
+
+        RangeQueue(List<Range> ranges, int clockRanges) {
+            this.ranges = ranges;
+            this.queued = new ArrayDeque<>(ranges);
+            this.done = new boolean[clockRanges];
+        }
+
+        // Next range the source can serve in full, lowest first. Waits while ranges are out with
+        // other sources, since a stalled one may come back; null once nothing is left for it.
+        synchronized Range take(Source src) throws InterruptedException {
+            while (true) {
+                for (Iterator<Range> it = queued.iterator(); it.hasNext(); ) {
+                    Range r = it.next();
+                    if (r.servableBy(src)) {
+                        it.remove();
+                        inFlight++;
+                        return r;
+                    }
+                }
+                if (inFlight == 0) return null;
+                wait();
+            }
+        }
+
+        synchronized void release(Range r) {
+            inFlight--;
+            queued.addFirst(r);
+            notifyAll();
         }
 
-        return new SyncResult(inserted, maxCursor);
+        // Returns the clock the cursor may move to: the end of the completed prefix of clock slices.
+        synchronized long complete(Range r) {
+            inFlight--;
+            inserted += r.inserted;
+            if (r.origin == null) done[r.index] = true;
+            while (prefix < done.length && done[prefix]) prefix++;
+            notifyAll();
+            return prefix > 0 ? ranges.get(prefix - 1).hi : Long.MIN_VALUE;
+        }
+
+        synchronized int inserted() {
+            int n = inserted;
+            for (Range r : queued) {
+                n += r.inserted;
+            }
+            return n;
+        }
+    }
+
+    // until bounds the clock for a clock slice and origin_seq for a sender's range.
+    private static JsonObject rangePayload(String roomId, Range range, String sinceValue, Long sinceTs, String sinceMsgId, int limit) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("roomId", roomId);
+        if (range.origin != null) {
+            JsonObject vector = new JsonObject();
+            vector.addProperty(range.origin, safeParseLong(sinceValue));
+            payload.add("vector", vector);
+        } else {
+            JsonObject since = new JsonObject();
+            since.addProperty("clockValue", sinceValue == null || sinceValue.isBlank() ? "0" : sinceValue);
+            if (sinceTs != null && sinceMsgId != null) {
+                since.addProperty("ts", sinceTs);
+                since.addProperty("msgId", sinceMsgId);
+            }
+            payload.add("since", since);
+            if (range.legacyOnly) payload.addProperty("legacyOnly", true);
+        }
+        if (range.hi != Long.MAX_VALUE) payload.addProperty("until", range.hi);
+        payload.addProperty("limit", limit);
+        payload.addProperty("credit", Settings.SYNC_CREDIT_PAGES);
+        payload.addProperty("wantMembers", false);
+        return payload;
     }
 
-    private SyncBatch requestSync(String peerNodeId, String ip, int port, String roomId, String sinceClockValue, int limit) throws Exception {
+    // Encoded size of a page's messages, counted the way fillPage counts them on the source.
+    private static long pageBytes(SyncBatch batch) {
+        long bytes = 0;
+        if (batch.payload.has("messages") && batch.payload.get("messages").isJsonArray()) {
+            for (JsonElement m : batch.payload.getAsJsonArray("messages")) {
+                bytes += Framing.jsonBytes(m) + 1;
+            }
+        }
+        return bytes;
+    }
+
+    private static long originSeq(MessageEnvelope m) {
+        JsonObject payload = m.payload != null && m.payload.isJsonObject() ? m.payload.getAsJsonObject() : null;
+        return payload != null && payload.has("originSeq") ? payload.get("originSeq").getAsLong() : 0;
+    }
+
+    private Pending requestSync(String peerNodeId, String ip, int port, JsonObject payload) throws Exception {
         MessageEnvelope req = new MessageEnvelope();
         req.protocolVersion = 1;
         req.type = MessageType.SYNC_REQUEST;
@@ -228,36 +590,124 @@ public class SyncService implements TransportService.Handler {
         req.from = new MessageEnvelope.NodeInfo(identity.nodeId, identity.displayName);
         req.ts = System.currentTimeMillis();
         req.clock = clock.tick();
-
-        JsonObject payload = new JsonObject();
-        payload.addProperty("roomId", roomId);
-        JsonObject since = new JsonObject();
-        since.addProperty("clockValue", sinceClockValue == null || sinceClockValue.isBlank() ? "0" : sinceClockValue);
-        payload.add("since", since);
-        payload.addProperty("limit", Math.max(1, Math.min(limit, 500)));
-        payload.addProperty("wantMembers", false);
         req.payload = payload;
 
-        CompletableFuture<SyncBatch> f = new CompletableFuture<>();
-        pendingByRequestId.put(req.msgId, new Pending(req.msgId, roomId, peerNodeId, f));
-
+        Pending p = new Pending(req.msgId, payload.get("roomId").getAsString(), peerNodeId);
+        pendingByRequestId.put(req.msgId, p);
         try {
             transport.send(peerNodeId, ip, port, req);
-            return f.get(5, TimeUnit.SECONDS);
-        } finally {
+        } catch (Exception e) {
             pendingByRequestId.remove(req.msgId);
+            throw e;
+        }
+        return p;
+    }
+
+    public void repairAllRooms() {
+        try {
+            for (Room r : roomDao.listRooms()) {
+                if (r == null || r.roomId == null) continue;
+                try {
+                    repairRoom(r.roomId);
+                } catch (Exception e) {
+                    System.err.println("SyncService repair of " + r.roomId + " failed: " + e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("SyncService repairAllRooms failed: " + e.getMessage());
+        }
+    }
+
+    // Anti-entropy: walks the room's hash tree against one online member, top level first,
+    // descending only into nodes that differ, then fetches just the clock buckets whose leaves
+    // differ. Finds holes anywhere in the history, including below the cursor and the vector.
+    public int repairRoom(String roomId) throws Exception {
+        if (roomId == null || roomId.isBlank()) return 0;
+        String rid = roomId.trim();
+        Object lock = roomLocks.computeIfAbsent(rid, k -> new Object());
+        synchronized (lock) {
+            if (!roomMemberDao.isMember(rid, identity.nodeId)) return 0;
+            for (RoomMember m : pickOnlineSources(rid)) {
+                SourceAddr addr = resolveAddr(m);
+                if (addr == null) continue;
+                try {
+                    return repairFrom(rid, new Source(m.memberNodeId, addr));
+                } catch (Exception e) {
+                    System.err.println("SyncService repair of " + rid + " from " + m.memberNodeId + " failed: " + e.getMessage());
+                }
+            }
+            return 0;
+        }
+    }
+
+    private int repairFrom(String roomId, Source src) throws Exception {
+        List<Long> differing = null;
+        for (int level = RoomDigestDao.LEVELS - 1; level >= 0; level--) {
+            Map<Long, RoomDigestDao.Node> theirs = requestDigest(roomId, src, level, differing);
+            Map<Long, RoomDigestDao.Node> ours = roomDigestDao.level(roomId, level, differing);
+            TreeSet<Long> ids = new TreeSet<>(theirs.keySet());
+            ids.addAll(ours.keySet());
+            differing = new ArrayList<>();
+            for (long id : ids) {
+                if (!Objects.equals(theirs.get(id), ours.get(id))) differing.add(id);
+            }
+            if (differing.isEmpty()) return 0;
+        }
+
+        // Runs of adjacent leaves become one clock range: bucket b holds clocks [b * W, (b + 1) * W).
+        int inserted = 0;
+        for (int i = 0; i < differing.size(); ) {
+            int j = i;
+            while (j + 1 < differing.size() && differing.get(j + 1) == differing.get(j) + 1) j++;
+            long since = differing.get(i) * RoomDigestDao.BUCKET_CLOCKS - 1;
+            long until = (differing.get(j) + 1) * RoomDigestDao.BUCKET_CLOCKS - 1;
+            Range r = Range.clock(0, String.valueOf(since), until, false);
+            fetchRange(roomId, r, src.nodeId, src.addr.ip, src.addr.port, Settings.SYNC_PAGE_TIMEOUT_MS);
+            inserted += r.inserted;
+            i = j + 1;
+        }
+        return inserted;
+    }
+
+    private Map<Long, RoomDigestDao.Node> requestDigest(String roomId, Source src, int level, List<Long> parents) throws Exception {
+        JsonObject digest = new JsonObject();
+        digest.addProperty("level", level);
+        if (parents != null) {
+            JsonArray arr = new JsonArray();
+            parents.forEach(arr::add);
+            digest.add("parents", arr);
+        }
+        JsonObject payload = new JsonObject();
+        payload.addProperty("roomId", roomId);
+        payload.add("digest", digest);
+        Pending p = requestSync(src.nodeId, src.addr.ip, src.addr.port, payload);
+        try {
+            SyncBatch b = p.next(Settings.SYNC_PAGE_TIMEOUT_MS);
+            if (!b.payload.has("digest") || !b.payload.get("digest").isJsonObject()) {
+                throw new IllegalStateException(src.nodeId + " does not answer digest requests");
+            }
+            Map<Long, RoomDigestDao.Node> out = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> e : b.payload.getAsJsonObject("digest").entrySet()) {
+                out.put(Long.parseLong(e.getKey()), RoomDigestDao.Node.parse(e.getValue().getAsString()));
+            }
+            return out;
+        } finally {
+            pendingByRequestId.remove(p.requestId);
         }
     }
 
+    // One transaction per page: batched INSERT OR IGNORE for seen ids and messages, one upsert
+    // per distinct sender, one conversation touch. Returns the number of new messages.
     private int applyBatch(String roomId, List<MessageEnvelope> messages) throws Exception {
         if (messages == null || messages.isEmpty()) return 0;
         long now = System.currentTimeMillis();
 
         Room room = roomDao.getById(roomId);
         String title = room != null && room.roomName != null ? room.roomName : roomId;
-        com.example.lanchat.store.ConversationDao.Conversation conv = conversationService.getOrCreateRoomConv(roomId, title, now);
 
-        int inserted = 0;
+        List<Message> rows = new ArrayList<>();
+        List<String> msgIds = new ArrayList<>();
+        Map<String, RoomMember> senders = new LinkedHashMap<>();
         long lastTouchTs = 0;
         for (MessageEnvelope env : messages) {
             if (env == null || env.msgId == null) continue;
@@ -268,11 +718,8 @@ public class SyncService implements TransportService.Handler {
             String rid = payload.has("roomId") ? payload.get("roomId").getAsString() : null;
             if (!Objects.equals(roomId, rid)) continue;
 
-            seenDao.markSeen(env.msgId, now);
-
             Message in = new Message();
             in.msgId = env.msgId;
-            in.convId = conv.convId;
             in.chatType = "ROOM";
             in.roomId = roomId;
             in.direction = "IN";
@@ -284,12 +731,9 @@ public class SyncService implements TransportService.Handler {
             in.updatedAt = now;
             in.clockValue = String.valueOf(env.clock);
             in.status = "DELIVERED";
-
-            try {
-                messageDao.insert(in);
-                inserted += 1;
-            } catch (SQLException ignored) {
-            }
+            in.originSeq = payload.has("originSeq") ? payload.get("originSeq").getAsLong() : 0;
+            rows.add(in);
+            msgIds.add(env.msgId);
 
             if (env.from != null && env.from.nodeId != null) {
                 RoomMember sender = new RoomMember();
@@ -297,21 +741,24 @@ public class SyncService implements TransportService.Handler {
                 sender.memberNodeId = env.from.nodeId;
                 sender.memberName = env.from.name != null ? env.from.name : env.from.nodeId;
                 sender.lastSeen = now;
-                try {
-                    roomMemberDao.upsert(sender);
-                } catch (SQLException ignored) {
-                }
+                senders.put(sender.memberNodeId, sender);
             }
-
             lastTouchTs = Math.max(lastTouchTs, in.ts);
         }
-        if (lastTouchTs > 0) {
-            try {
-                conversationService.touch(conv.convId, lastTouchTs);
-            } catch (SQLException ignored) {
+        if (rows.isEmpty()) return 0;
+
+        long touchTs = lastTouchTs;
+        return Db.transaction(conn -> {
+            Conversation conv = conversationService.getOrCreateRoomConv(roomId, title, now);
+            for (Message m : rows) {
+                m.convId = conv.convId;
             }
-        }
-        return inserted;
+            seenDao.markSeenAll(msgIds, now);
+            int inserted = messageDao.insertAllIgnore(rows);
+            roomMemberDao.upsertAll(new ArrayList<>(senders.values()));
+            conversationService.touch(conv.convId, touchTs);
+            return inserted;
+        });
     }
 
     @Override
@@ -350,55 +797,166 @@ public class SyncService implements TransportService.Handler {
             return;
         }
 
+        if (payload.has("headOnly") && payload.get("headOnly").getAsBoolean()) {
+            MessageEnvelope resp = buildSyncResponse(env, roomId, new JsonArray(), false, "0", null, 0, true);
+            JsonObject heads = new JsonObject();
+            messageDao.originHeads(roomId).forEach(heads::addProperty);
+            resp.payload.getAsJsonObject().addProperty("headClock", messageDao.maxRoomClock(roomId, true));
+            resp.payload.getAsJsonObject().add("heads", heads);
+            transport.send(remote.nodeId, remote.ip, remote.p2pPort, resp);
+            return;
+        }
+
+        if (payload.has("digest") && payload.get("digest").isJsonObject()) {
+            JsonObject req = payload.getAsJsonObject("digest");
+            int level = req.get("level").getAsInt();
+            List<Long> parents = null;
+            if (req.has("parents") && req.get("parents").isJsonArray()) {
+                parents = new ArrayList<>();
+                for (JsonElement e : req.getAsJsonArray("parents")) {
+                    parents.add(e.getAsLong());
+                }
+            }
+            JsonObject nodes = new JsonObject();
+            roomDigestDao.level(roomId, level, parents).forEach((id, node) -> nodes.addProperty(String.valueOf(id), node.toString()));
+            MessageEnvelope resp = buildSyncResponse(env, roomId, new JsonArray(), false, "0", null, 0, true);
+            resp.payload.getAsJsonObject().add("digest", nodes);
+            transport.send(remote.nodeId, remote.ip, remote.p2pPort, resp);
+            return;
+        }
+
+        long until = payload.has("until") ? payload.get("until").getAsLong() : Long.MAX_VALUE;
+        int limit = payload.has("limit") ? payload.get("limit").getAsInt() : DEFAULT_LIMIT;
+        limit = Math.max(1, Math.min(limit, 500));
+        // Requesters that predate streaming send no credit and get exactly one page.
+        int credit = payload.has("credit") ? payload.get("credit").getAsInt() : 1;
+        credit = Math.max(1, Math.min(credit, Settings.SYNC_MAX_CREDIT_PAGES));
+
+        if (payload.has("vector") && payload.get("vector").isJsonObject()) {
+            streamMissing(remote, env, roomId, payload.getAsJsonObject("vector"), until, limit, credit);
+            return;
+        }
+        boolean legacyOnly = payload.has("legacyOnly") && payload.get("legacyOnly").getAsBoolean();
+
         String sinceClockValue = "0";
+        Long sinceTs = null;
+        String sinceMsgId = null;
         if (payload.has("since") && payload.get("since").isJsonObject()) {
             JsonObject sinceObj = payload.getAsJsonObject("since");
             if (sinceObj.has("clockValue")) {
                 JsonElement cv = sinceObj.get("clockValue");
                 sinceClockValue = cv.isJsonPrimitive() ? cv.getAsString() : "0";
             }
+            if (sinceObj.has("ts") && sinceObj.has("msgId")) {
+                sinceTs = sinceObj.get("ts").getAsLong();
+                sinceMsgId = sinceObj.get("msgId").getAsString();
+            }
         }
-        int limit = payload.has("limit") ? payload.get("limit").getAsInt() : DEFAULT_LIMIT;
-        limit = Math.max(1, Math.min(limit, 500));
+        for (int page = 0; page < credit; page++) {
+            List<Message> list = sinceMsgId != null
+                    ? messageDao.listRoomMessagesAfter(roomId, safeParseLong(sinceClockValue), sinceTs, sinceMsgId, until, legacyOnly, limit + 1)
+                    : messageDao.listRoomMessagesAfterClock(roomId, sinceClockValue, until, legacyOnly, limit + 1);
+            JsonArray arr = new JsonArray();
+            int n = fillPage(roomId, list, limit, arr);
+            boolean hasMore = list.size() > n;
+            list = list.subList(0, n);
+
+            String nextSince = sinceClockValue == null || sinceClockValue.isBlank() ? "0" : sinceClockValue;
+            Message last = list.isEmpty() ? null : list.get(list.size() - 1);
+            if (last != null && last.clockValue != null && !last.clockValue.isBlank()) nextSince = last.clockValue;
+
+            boolean streamEnd = !hasMore || page == credit - 1;
+            transport.send(remote.nodeId, remote.ip, remote.p2pPort, buildSyncResponse(env, roomId, arr, hasMore, nextSince, last, page, streamEnd));
+            if (streamEnd) break;
+
+            sinceClockValue = nextSince;
+            sinceTs = last.ts;
+            sinceMsgId = last.msgId;
+        }
+    }
 
-        List<Message> list = messageDao.listRoomMessagesAfterClock(roomId, sinceClockValue, limit + 1);
-        boolean hasMore = list.size() > limit;
-        if (hasMore) list = list.subList(0, limit);
+    // Numbered messages the requester lacks: for each sender in its vector, origin_seq above the
+    // mark and at most until, senders in name order. The marks follow the pages as they go out.
+    private void streamMissing(PeerInfo remote, MessageEnvelope env, String roomId, JsonObject vectorObj, long until, int limit, int credit)
+            throws Exception {
+        Map<String, Long> vector = new TreeMap<>();
+        for (Map.Entry<String, JsonElement> e : vectorObj.entrySet()) {
+            vector.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for (int page = 0; page < credit; page++) {
+            List<Message> list = new ArrayList<>();
+            for (Map.Entry<String, Long> e : vector.entrySet()) {
+                list.addAll(messageDao.listRoomMessagesFromOrigin(roomId, e.getKey(), e.getValue(), until, limit + 1 - list.size()));
+                if (list.size() > limit) break;
+            }
+            JsonArray arr = new JsonArray();
+            int n = fillPage(roomId, list, limit, arr);
+            boolean hasMore = list.size() > n;
+            list = list.subList(0, n);
+            for (Message m : list) {
+                vector.put(m.fromNodeId, m.originSeq);
+            }
 
-        String nextSince = sinceClockValue == null || sinceClockValue.isBlank() ? "0" : sinceClockValue;
-        if (!list.isEmpty()) {
-            Message last = list.get(list.size() - 1);
-            if (last.clockValue != null && !last.clockValue.isBlank()) nextSince = last.clockValue;
+            Message last = list.isEmpty() ? null : list.get(list.size() - 1);
+            String nextSince = last != null && last.clockValue != null ? last.clockValue : "0";
+            boolean streamEnd = !hasMore || page == credit - 1;
+            transport.send(remote.nodeId, remote.ip, remote.p2pPort, buildSyncResponse(env, roomId, arr, hasMore, nextSince, last, page, streamEnd));
+            if (streamEnd) break;
         }
+    }
 
-        JsonArray arr = new JsonArray();
+    // Encodes the longest prefix of list, up to limit messages, that fits in SYNC_PAGE_BYTES and
+    // returns its length. A count limit alone lets long messages build a page no frame can carry,
+    // which stalls that room's sync for good. The first message always goes in: one message that
+    // fitted a frame when it was live fits a page of its own.
+    private int fillPage(String roomId, List<Message> list, int limit, JsonArray out) {
+        long bytes = 0;
         for (Message m : list) {
-            JsonObject msg = new JsonObject();
-            msg.addProperty("msgId", m.msgId);
-            JsonObject from = new JsonObject();
-            String fromNodeId = m.fromNodeId;
-            from.addProperty("nodeId", fromNodeId);
-            String fromName = resolveName(roomId, fromNodeId);
-            if (fromName != null) from.addProperty("name", fromName);
-            msg.add("from", from);
-            msg.addProperty("ts", m.ts);
-            msg.addProperty("clock", safeParseLong(m.clockValue));
-            JsonObject p = new JsonObject();
-            p.addProperty("chatType", "ROOM");
-            p.addProperty("roomId", roomId);
-            p.addProperty("content", m.content != null ? m.content : "");
-            if (m.contentType != null) p.addProperty("contentType", m.contentType);
-            msg.add("payload", p);
-            arr.add(msg);
+            if (out.size() == limit) break;
+            JsonObject msg = messageJson(roomId, m);
+            bytes += Framing.jsonBytes(msg) + 1;
+            if (bytes > Settings.SYNC_PAGE_BYTES && out.size() > 0) break;
+            out.add(msg);
         }
+        return out.size();
+    }
 
+    private JsonObject messageJson(String roomId, Message m) {
+        JsonObject msg = new JsonObject();
+        msg.addProperty("msgId", m.msgId);
+        JsonObject from = new JsonObject();
+        String fromNodeId = m.fromNodeId;
+        from.addProperty("nodeId", fromNodeId);
+        String fromName = resolveName(roomId, fromNodeId);
+        if (fromName != null) from.addProperty("name", fromName);
+        msg.add("from", from);
+        msg.addProperty("ts", m.ts);
+        msg.addProperty("clock", safeParseLong(m.clockValue));
+        JsonObject p = new JsonObject();
+        p.addProperty("chatType", "ROOM");
+        p.addProperty("roomId", roomId);
+        p.addProperty("content", m.content != null ? m.content : "");
+        if (m.contentType != null) p.addProperty("contentType", m.contentType);
+        if (m.originSeq > 0) p.addProperty("originSeq", m.originSeq);
+        msg.add("payload", p);
+        return msg;
+    }
+
+    private MessageEnvelope buildSyncResponse(MessageEnvelope request, String roomId, JsonArray arr, boolean hasMore, String nextSince,
+                                              Message last, int page, boolean streamEnd) {
         JsonObject outPayload = new JsonObject();
         outPayload.addProperty("roomId", roomId);
-        outPayload.addProperty("requestId", env.msgId);
+        outPayload.addProperty("requestId", request.msgId);
         outPayload.add("messages", arr);
         outPayload.addProperty("hasMore", hasMore);
+        outPayload.addProperty("page", page);
+        outPayload.addProperty("streamEnd", streamEnd);
         JsonObject next = new JsonObject();
         next.addProperty("clockValue", nextSince);
+        if (last != null) {
+            next.addProperty("ts", last.ts);
+            next.addProperty("msgId", last.msgId);
+        }
         outPayload.add("nextSince", next);
 
         MessageEnvelope resp = new MessageEnvelope();
@@ -409,8 +967,7 @@ public class SyncService implements TransportService.Handler {
         resp.ts = System.currentTimeMillis();
         resp.clock = clock.tick();
         resp.payload = outPayload;
-
-        transport.send(remote.nodeId, remote.ip, remote.p2pPort, resp);
+        return resp;
     }
 
     private void handleSyncResponse(PeerInfo remote, MessageEnvelope env) {
@@ -448,12 +1005,20 @@ public class SyncService implements TransportService.Handler {
 
         boolean hasMore = payload.has("hasMore") && payload.get("hasMore").getAsBoolean();
         String nextSince = null;
+        Long nextSinceTs = null;
+        String nextSinceMsgId = null;
         if (payload.has("nextSince") && payload.get("nextSince").isJsonObject()) {
             JsonObject ns = payload.getAsJsonObject("nextSince");
             if (ns.has("clockValue")) nextSince = ns.get("clockValue").getAsString();
+            if (ns.has("ts") && ns.has("msgId")) {
+                nextSinceTs = ns.get("ts").getAsLong();
+                nextSinceMsgId = ns.get("msgId").getAsString();
+            }
         }
 
-        p.future.complete(new SyncBatch(messages, hasMore, nextSince));
+        int page = payload.has("page") ? payload.get("page").getAsInt() : 0;
+        boolean streamEnd = !payload.has("streamEnd") || payload.get("streamEnd").getAsBoolean();
+        p.pages.offer(new SyncBatch(messages, hasMore, nextSince, nextSinceTs, nextSinceMsgId, page, streamEnd, payload));
     }
 
     private void handleError(MessageEnvelope env) {
@@ -464,7 +1029,7 @@ public class SyncService implements TransportService.Handler {
         Pending p = pendingByRequestId.get(requestId);
         if (p == null) return;
         String message = payload.has("message") ? payload.get("message").getAsString() : "ERROR";
-        p.future.completeExceptionally(new IllegalStateException(message));
+        p.fail(new IllegalStateException(message));
     }
 
     private MessageEnvelope buildSyncError(MessageEnvelope request, String roomId, String code, String message) {
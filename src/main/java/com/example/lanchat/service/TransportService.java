@@ -4,15 +4,24 @@ import com.example.lanchat.core.Settings;
 import com.example.lanchat.protocol.MessageEnvelope;
 import com.example.lanchat.transport.Connection;
 import com.example.lanchat.transport.ConnectionManager;
+import com.example.lanchat.transport.EncodedEnvelope;
+import com.example.lanchat.transport.NioEventLoopGroup;
 import com.example.lanchat.transport.PeerInfo;
 import com.example.lanchat.transport.TcpServer;
+import com.example.lanchat.transport.TransportEngine;
+import com.example.lanchat.transport.TransportMetrics;
 import com.example.lanchat.store.IdentityDao.Identity;
 import com.example.lanchat.store.PeerDao;
-import com.example.lanchat.util.LruTtlSet;
+import com.example.lanchat.util.BucketedTtlSet;
 import com.google.gson.JsonElement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TransportService {
@@ -21,38 +30,78 @@ public class TransportService {
         void onMessage(PeerInfo remotePeerInfo, MessageEnvelope message);
     }
 
+    public static class Recipient {
+        public final String nodeId;
+        public final String ip;
+        public final int port;
+
+        public Recipient(String nodeId, String ip, int port) {
+            this.nodeId = nodeId;
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
     private final Identity identity;
+    private final TransportEngine engine;
     private final PeerDao peerDao;
     private final ExecutorService ioPool;
-    private final LruTtlSet seenMsgIds;
+    private final NioEventLoopGroup eventLoops;
+    private final BucketedTtlSet seenMsgIds;
     private final ConnectionManager connectionManager;
     private final TcpServer tcpServer;
+    private final ExecutorService fanOutDialer;
     private final AtomicBoolean started = new AtomicBoolean(false);
 
     private volatile Handler handler;
 
     public TransportService(Identity identity) {
+        this(identity, TransportEngine.POOLED);
+    }
+
+    public TransportService(Identity identity, TransportEngine engine) {
         this.identity = identity;
+        this.engine = engine;
         this.peerDao = new PeerDao();
-        this.ioPool = Executors.newFixedThreadPool(Settings.TCP_IO_THREADS);
-        this.seenMsgIds = new LruTtlSet(Settings.SEEN_MSG_MAX_SIZE, Settings.SEEN_MSG_TTL_MS);
-        this.connectionManager = new ConnectionManager(identity, peerDao, seenMsgIds, ioPool);
+        this.ioPool = engine.newIoExecutor();
+        this.eventLoops = engine == TransportEngine.NIO ? new NioEventLoopGroup(Settings.NIO_EVENT_LOOPS, ioPool) : null;
+        this.seenMsgIds = new BucketedTtlSet(Settings.SEEN_MSG_MAX_SIZE, Settings.SEEN_MSG_TTL_MS);
+        this.connectionManager = new ConnectionManager(identity, peerDao, seenMsgIds, ioPool, eventLoops);
         this.tcpServer = new TcpServer(
                 identity.p2pPort,
                 identity,
                 peerDao,
                 seenMsgIds,
                 ioPool,
+                eventLoops,
                 this::dispatchInbound,
                 connectionManager
         );
         connectionManager.setMessageHandler(this::dispatchInbound);
+        this.fanOutDialer = Executors.newFixedThreadPool(Settings.FANOUT_DIAL_THREADS);
+    }
+
+    public TransportEngine engine() {
+        return engine;
+    }
+
+    public int connectionCount() {
+        return connectionManager.connectionCount();
+    }
+
+    public TransportMetrics.Snapshot metrics() {
+        return TransportMetrics.snapshot();
     }
 
     public void onMessage(Handler handler) {
         this.handler = handler;
     }
 
+    // Called on the I/O thread right after a handshake; must not block.
+    public void onPeerConnected(Consumer<PeerInfo> listener) {
+        connectionManager.setConnectedListener(listener);
+    }
+
     public void start() throws Exception {
         if (!started.compareAndSet(false, true)) return;
         tcpServer.start();
@@ -62,14 +111,13 @@ public class TransportService {
         if (!started.compareAndSet(true, false)) return;
         tcpServer.stop();
         connectionManager.closeAll();
+        if (eventLoops != null) eventLoops.close();
         ioPool.shutdownNow();
+        fanOutDialer.shutdownNow();
     }
 
     public PeerInfo connectToAddr(String ip, int port) throws Exception {
-        Connection conn = connectionManager.getByAddr(ip, port);
-        if (conn == null) {
-            conn = connectionManager.connectTo(ip, port);
-        }
+        Connection conn = connectionManager.getOrConnectAddr(ip, port);
         PeerInfo remote = conn.remotePeer();
         if (remote == null) {
             throw new IllegalStateException("Handshake failed");
@@ -77,17 +125,64 @@ public class TransportService {
         return remote;
     }
 
-    public void sendToAddr(String ip, int port, MessageEnvelope message) throws Exception {
+    // Returns once the frame is queued; the future completes when it was written to the socket.
+    public CompletableFuture<Void> sendToAddr(String ip, int port, MessageEnvelope message) throws Exception {
         MessageEnvelope env = normalizeOutbound(message);
-        Connection conn = connectionManager.getByAddr(ip, port);
-        if (conn == null) conn = connectionManager.connectTo(ip, port);
-        conn.send(env);
+        Connection conn = connectionManager.getOrConnectAddr(ip, port);
+        return conn.send(env);
     }
 
-    public void send(String peerNodeId, String ip, int port, MessageEnvelope message) throws Exception {
+    public CompletableFuture<Void> send(String peerNodeId, String ip, int port, MessageEnvelope message) throws Exception {
         MessageEnvelope env = normalizeOutbound(message);
         Connection conn = connectionManager.getOrConnect(peerNodeId, ip, port);
-        conn.send(env);
+        return conn.send(env);
+    }
+
+    // Like send, but never blocks: without a live connection the peer is dialed on the fan-out
+    // pool. For callers on shared threads, where one unreachable peer must not hold up the rest.
+    public CompletableFuture<Void> sendAsync(String peerNodeId, String ip, int port, MessageEnvelope message) {
+        return fanOut(List.of(new Recipient(peerNodeId, ip, port)), message).get(peerNodeId);
+    }
+
+    // Sends one envelope to many peers without waiting on any of them. The frame is encoded once;
+    // peers with a live connection get it queued right away, the rest are dialed on a small pool.
+    // Each recipient's future completes when its frame was written, or fails with the reason.
+    public Map<String, CompletableFuture<Void>> fanOut(List<Recipient> recipients, MessageEnvelope message) {
+        EncodedEnvelope encoded = new EncodedEnvelope(normalizeOutbound(message));
+        Map<String, CompletableFuture<Void>> outcomes = new LinkedHashMap<>();
+        for (Recipient r : recipients) {
+            Connection live = connectionManager.getByPeerNodeId(r.nodeId);
+            if (live != null && !live.isClosed() && live.remotePeer() != null) {
+                outcomes.put(r.nodeId, sendEncoded(live, encoded));
+                continue;
+            }
+            CompletableFuture<Void> outcome = new CompletableFuture<>();
+            outcomes.put(r.nodeId, outcome);
+            try {
+                fanOutDialer.execute(() -> {
+                    try {
+                        Connection conn = connectionManager.getOrConnect(r.nodeId, r.ip, r.port);
+                        sendEncoded(conn, encoded).whenComplete((v, e) -> {
+                            if (e != null) outcome.completeExceptionally(e);
+                            else outcome.complete(null);
+                        });
+                    } catch (Exception e) {
+                        outcome.completeExceptionally(e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                outcome.completeExceptionally(e);
+            }
+        }
+        return outcomes;
+    }
+
+    private static CompletableFuture<Void> sendEncoded(Connection conn, EncodedEnvelope encoded) {
+        try {
+            return conn.send(encoded);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
     private MessageEnvelope normalizeOutbound(MessageEnvelope message) {
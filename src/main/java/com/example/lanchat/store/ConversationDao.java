@@ -5,7 +5,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class ConversationDao {
@@ -21,43 +23,45 @@ public class ConversationDao {
     }
 
     public Conversation getByPeer(String convType, String peerNodeId) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM conversations WHERE conv_type = ? AND peer_node_id = ? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        Map<String, Long> pending = Db.writeBehind().conversationLastMsgTs.snapshot();
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM conversations WHERE conv_type = ? AND peer_node_id = ? LIMIT 1";
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, convType);
             ps.setString(2, peerNodeId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return mapRow(rs);
+                    return mapRow(rs, pending);
                 }
             }
-        }
-        return null;
+            return null;
+        });
     }
 
     public Conversation getByRoom(String roomId) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM conversations WHERE conv_type = ? AND room_id = ? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        Map<String, Long> pending = Db.writeBehind().conversationLastMsgTs.snapshot();
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM conversations WHERE conv_type = ? AND room_id = ? LIMIT 1";
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, "ROOM");
             ps.setString(2, roomId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return mapRow(rs);
+                    return mapRow(rs, pending);
                 }
             }
-        }
-        return null;
+            return null;
+        });
     }
 
     public Conversation getOrCreatePrivate(String peerNodeId, String title, long now) throws SQLException {
         Conversation existing = getByPeer("PRIVATE", peerNodeId);
         if (existing != null) return existing;
 
-        Connection conn = Db.getConnection();
-        String convId = UUID.randomUUID().toString();
-        String sql = "INSERT OR IGNORE INTO conversations (conv_id, conv_type, peer_node_id, title, created_at, last_msg_ts) VALUES (?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return Db.write(conn -> {
+            String convId = UUID.randomUUID().toString();
+            String sql = "INSERT OR IGNORE INTO conversations (conv_id, conv_type, peer_node_id, title, created_at, last_msg_ts) VALUES (?, ?, ?, ?, ?, ?)";
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, convId);
             ps.setString(2, "PRIVATE");
             ps.setString(3, peerNodeId);
@@ -65,18 +69,18 @@ public class ConversationDao {
             ps.setLong(5, now);
             ps.setLong(6, now);
             ps.executeUpdate();
-        }
-        return getByPeer("PRIVATE", peerNodeId);
+            return getByPeer("PRIVATE", peerNodeId);
+        });
     }
 
     public Conversation getOrCreateRoom(String roomId, String title, long now) throws SQLException {
         Conversation existing = getByRoom(roomId);
         if (existing != null) return existing;
 
-        Connection conn = Db.getConnection();
-        String convId = UUID.randomUUID().toString();
-        String sql = "INSERT OR IGNORE INTO conversations (conv_id, conv_type, peer_node_id, room_id, title, created_at, last_msg_ts) VALUES (?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return Db.write(conn -> {
+            String convId = UUID.randomUUID().toString();
+            String sql = "INSERT OR IGNORE INTO conversations (conv_id, conv_type, peer_node_id, room_id, title, created_at, last_msg_ts) VALUES (?, ?, ?, ?, ?, ?, ?)";
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, convId);
             ps.setString(2, "ROOM");
             ps.setString(3, null);
@@ -85,34 +89,44 @@ public class ConversationDao {
             ps.setLong(6, now);
             ps.setLong(7, now);
             ps.executeUpdate();
-        }
-        return getByRoom(roomId);
+            return getByRoom(roomId);
+        });
     }
 
+    // Buffered in WriteBehind; reads through this DAO see the new value immediately.
     public void updateLastMsgTs(String convId, long lastMsgTs) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "UPDATE conversations SET last_msg_ts = ? WHERE conv_id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, lastMsgTs);
-            ps.setString(2, convId);
-            ps.executeUpdate();
+        Db.writeBehind().conversationLastMsgTs.put(convId, lastMsgTs);
+    }
+
+    static void writeLastMsgTs(Connection conn, List<Map.Entry<String, Long>> batch) throws SQLException {
+        PreparedStatement ps = Db.prepare(conn, "UPDATE conversations SET last_msg_ts = ? WHERE conv_id = ?");
+        for (Map.Entry<String, Long> e : batch) {
+            ps.setLong(1, e.getValue());
+            ps.setString(2, e.getKey());
+            ps.addBatch();
         }
+        ps.executeBatch();
     }
 
     public List<Conversation> listConversations() throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM conversations ORDER BY last_msg_ts DESC";
-        List<Conversation> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                out.add(mapRow(rs));
+        Map<String, Long> pending = Db.writeBehind().conversationLastMsgTs.snapshot();
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM conversations ORDER BY last_msg_ts DESC";
+            List<Conversation> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(mapRow(rs, pending));
+                }
             }
-        }
-        return out;
+            if (!pending.isEmpty()) {
+                out.sort(Comparator.comparingLong((Conversation c) -> c.lastMsgTs).reversed());
+            }
+            return out;
+        });
     }
 
-    private Conversation mapRow(ResultSet rs) throws SQLException {
+    private Conversation mapRow(ResultSet rs, Map<String, Long> pending) throws SQLException {
         Conversation c = new Conversation();
         c.convId = rs.getString("conv_id");
         c.convType = rs.getString("conv_type");
@@ -120,7 +134,7 @@ public class ConversationDao {
         c.roomId = rs.getString("room_id");
         c.title = rs.getString("title");
         c.createdAt = rs.getLong("created_at");
-        c.lastMsgTs = rs.getLong("last_msg_ts");
+        c.lastMsgTs = pending.getOrDefault(c.convId, rs.getLong("last_msg_ts"));
         return c;
     }
 }
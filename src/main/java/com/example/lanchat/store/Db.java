@@ -2,14 +2,34 @@ package com.example.lanchat.store;
 
 import com.example.lanchat.core.Settings;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
+// Entry point for all storage access. Queries run on a pool of read-only connections
+// (WAL lets them proceed while a write is in flight); every write is handed to a single
+// writer thread that owns the only read-write connection.
 public class Db {
-    
-    private static Connection connection;
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface SqlAction {
+        void run(Connection conn) throws SQLException;
+    }
+
+    private static volatile Storage storage;
     private static String currentDbName;
+    private static SeenLog seenLog;
+    private static Maintenance maintenance;
+    private static volatile WriteBehind writeBehind;
+    private static volatile DirectoryCache directory;
+    // Touched only on the writer thread, which runs every transaction.
+    private static final List<Runnable> afterCommit = new ArrayList<>();
 
     public static synchronized void init(String dbName) throws SQLException {
         currentDbName = dbName;
@@ -18,38 +38,143 @@ public class Db {
         } catch (ClassNotFoundException e) {
             throw new SQLException("SQLite JDBC Driver not found", e);
         }
-        
-        // Enable WAL mode and busy timeout for better concurrency
-        String url = "jdbc:sqlite:" + dbName;
-        connection = DriverManager.getConnection(url);
-        
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute("PRAGMA journal_mode=WAL;");
-            stmt.execute("PRAGMA busy_timeout=5000;");
+
+        if (maintenance != null) maintenance.close();
+        if (seenLog != null) seenLog.close();
+        if (writeBehind != null) writeBehind.close();
+        if (storage != null) storage.close();
+        storage = new Storage("jdbc:sqlite:" + dbName, Settings.DB_READ_CONNECTIONS);
+        seenLog = new SeenLog();
+        writeBehind = new WriteBehind();
+        directory = new DirectoryCache();
+        maintenance = new Maintenance();
+    }
+
+    public static <T> T read(SqlWork<T> work) throws SQLException {
+        return storage().read(work);
+    }
+
+    public static <T> T write(SqlWork<T> work) throws SQLException {
+        return storage().write(work);
+    }
+
+    // Separate name for work with no result, so a lambda never picks its overload by shape.
+    public static void execute(SqlAction action) throws SQLException {
+        storage().write(conn -> {
+            action.run(conn);
+            return null;
+        });
+    }
+
+    // Statements are cached per connection and stay open: callers must not close them.
+    public static PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        return storage().prepare(conn, sql);
+    }
+
+    public static long statementCacheHits() {
+        return StatementCache.HITS.sum();
+    }
+
+    public static long statementCacheMisses() {
+        return StatementCache.MISSES.sum();
+    }
+
+    // Runs the work as one transaction on the writer; nested calls join the outer transaction.
+    public static <T> T transaction(SqlWork<T> work) throws SQLException {
+        return write(conn -> {
+            if (!conn.getAutoCommit()) return work.run(conn);
+            conn.setAutoCommit(false);
+            try {
+                T result = work.run(conn);
+                conn.commit();
+                for (Runnable r : afterCommit) {
+                    r.run();
+                }
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                afterCommit.clear();
+                conn.setAutoCommit(true);
+            }
+        });
+    }
+
+    // Runs r once the caller's write is visible to readers: right away in autocommit, otherwise
+    // after the enclosing transaction commits (and never if it rolls back). Writer thread only.
+    static void afterCommit(Connection conn, Runnable r) throws SQLException {
+        if (conn.getAutoCommit()) {
+            r.run();
+        } else {
+            afterCommit.add(r);
         }
-        
-        Schema.createTables(connection);
     }
 
-    public static synchronized Connection getConnection() throws SQLException {
-        if (connection == null || connection.isClosed()) {
-            if (currentDbName == null) {
+    private static Storage storage() throws SQLException {
+        Storage s = storage;
+        if (s != null) return s;
+        synchronized (Db.class) {
+            if (storage == null) {
                 // Fallback to default if not initialized (though Launcher should call init)
-                init(Settings.DB_NAME);
-            } else {
-                init(currentDbName);
+                init(currentDbName == null ? Settings.DB_NAME : currentDbName);
             }
+            return storage;
         }
-        return connection;
     }
-    
+
+    static synchronized SeenLog seenLog() throws SQLException {
+        storage();
+        return seenLog;
+    }
+
+    // Not synchronized: DAOs reach it from inside writes on the writer thread.
+    static WriteBehind writeBehind() throws SQLException {
+        storage();
+        return writeBehind;
+    }
+
+    static DirectoryCache directory() throws SQLException {
+        storage();
+        return directory;
+    }
+
+    // Writes buffered last_msg_ts / last_seen values now instead of on the next tick.
+    public static void flushWriteBehind() throws SQLException {
+        writeBehind().flush();
+    }
+
+    // Runs retention, incremental vacuum and a WAL checkpoint now instead of on the next tick.
+    public static Maintenance.Snapshot runMaintenance(long now) throws SQLException {
+        return maintenance().run(now);
+    }
+
+    public static Maintenance.Snapshot maintenanceMetrics() throws SQLException {
+        return maintenance().snapshot();
+    }
+
+    private static synchronized Maintenance maintenance() throws SQLException {
+        storage();
+        return maintenance;
+    }
+
     public static synchronized void close() {
-        if (connection != null) {
-            try {
-                connection.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+        if (maintenance != null) {
+            maintenance.close();
+            maintenance = null;
+        }
+        if (seenLog != null) {
+            seenLog.close();
+            seenLog = null;
+        }
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
+        }
+        directory = null;
+        if (storage != null) {
+            storage.close();
+            storage = null;
         }
     }
 }
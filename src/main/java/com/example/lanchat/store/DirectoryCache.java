@@ -0,0 +1,101 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.PeerDao.Peer;
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+// Peers by node id and room member sets by room id, loaded on first use. PeerDao and
+// RoomMemberDao are the only writers of those tables and apply every change here too (after
+// commit, or straight away for write-behind updates), so entries never need to expire; only
+// the set of known-absent peers is capped.
+//
+// A load that overlaps any update is returned but not cached: the generation counter moves on
+// every update, and the check-and-insert runs inside compute() for the key.
+class DirectoryCache {
+
+    interface Loader<T> {
+        T load() throws SQLException;
+    }
+
+    // Node ids known to have no peers row, so unknown senders don't hit the table on every
+    // message either. Those ids come off the wire rather than from the table, so only the
+    // MISS_CAP most recently asked are kept. Guarded by itself, which also orders a miss being
+    // recorded against updatePeer.
+    static final int MISS_CAP = 1024;
+    private final LinkedHashMap<String, Boolean> misses = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    // Values are never mutated: updates swap in a new map.
+    private final Map<String, Map<String, RoomMember>> rooms = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    Peer peer(String nodeId, Loader<Peer> loader) throws SQLException {
+        Peer p = peers.get(nodeId);
+        if (p != null) return p;
+        synchronized (misses) {
+            if (misses.get(nodeId) != null) return null;
+        }
+        long g = generation.get();
+        Peer loaded = loader.load();
+        if (loaded == null) {
+            synchronized (misses) {
+                if (generation.get() == g) {
+                    misses.put(nodeId, Boolean.TRUE);
+                    if (misses.size() > MISS_CAP) {
+                        Iterator<String> it = misses.keySet().iterator();
+                        it.next();
+                        it.remove();
+                    }
+                }
+            }
+            return null;
+        }
+        p = peers.compute(nodeId, (k, cur) -> cur != null ? cur : generation.get() == g ? loaded : null);
+        return p != null ? p : loaded;
+    }
+
+    // update gets the cached peer (null if known to be absent) and must return a new object.
+    void updatePeer(String nodeId, UnaryOperator<Peer> update) {
+        boolean wasMiss;
+        synchronized (misses) {
+            generation.incrementAndGet();
+            wasMiss = misses.remove(nodeId) != null;
+        }
+        peers.compute(nodeId, (k, cur) -> {
+            generation.incrementAndGet();
+            if (cur == null && !wasMiss) return null;
+            return update.apply(cur);
+        });
+    }
+
+    int cachedMisses() {
+        synchronized (misses) {
+            return misses.size();
+        }
+    }
+
+    Map<String, RoomMember> room(String roomId, Loader<Map<String, RoomMember>> loader) throws SQLException {
+        Map<String, RoomMember> members = rooms.get(roomId);
+        if (members == null) {
+            long g = generation.get();
+            Map<String, RoomMember> loaded = loader.load();
+            members = rooms.compute(roomId, (k, cur) -> cur != null ? cur : generation.get() == g ? loaded : null);
+            if (members == null) return loaded;
+        }
+        return members;
+    }
+
+    // update gets the cached member map and must return a new one.
+    void updateRoom(String roomId, UnaryOperator<Map<String, RoomMember>> update) {
+        rooms.compute(roomId, (k, cur) -> {
+            generation.incrementAndGet();
+            return cur == null ? null : update.apply(cur);
+        });
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.core.Settings;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Periodic housekeeping on the writer: prunes seen_messages past SEEN_RETENTION_MS (and the
+// SeenLog filters that covered it), hands free pages back to the OS and checkpoints the WAL.
+// Every step is its own short write, so regular writes interleave with a long prune instead of
+// queueing behind it.
+public class Maintenance {
+
+    private static final String PRUNE_SQL = "DELETE FROM seen_messages WHERE rowid IN " +
+            "(SELECT rowid FROM seen_messages WHERE first_seen_ts < ? LIMIT ?)";
+
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder seenPruned = new LongAdder();
+    private final LongAdder pagesReclaimed = new LongAdder();
+    private final LongAdder walFramesCheckpointed = new LongAdder();
+    private final AtomicLong lastRunMs = new AtomicLong();
+
+    Maintenance() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lanchat-db-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runQuietly,
+                Settings.DB_MAINTENANCE_INTERVAL_MS, Settings.DB_MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void runQuietly() {
+        try {
+            Snapshot before = snapshot();
+            Snapshot s = run(System.currentTimeMillis());
+            // Quiet runs stay out of the log; the totals are in snapshot() either way.
+            if (s.seenPruned > before.seenPruned || s.pagesReclaimed > before.pagesReclaimed) {
+                System.out.println("DB maintenance: " + s);
+            }
+        } catch (SQLException e) {
+            System.err.println("DB maintenance failed: " + e.getMessage());
+        }
+    }
+
+    synchronized Snapshot run(long now) throws SQLException {
+        long start = System.nanoTime();
+        long cutoff = now - Settings.SEEN_RETENTION_MS;
+        int deleted;
+        do {
+            deleted = Db.write(conn -> {
+                PreparedStatement ps = Db.prepare(conn, PRUNE_SQL);
+                ps.setLong(1, cutoff);
+                ps.setInt(2, Settings.SEEN_PRUNE_CHUNK);
+                return ps.executeUpdate();
+            });
+            seenPruned.add(deleted);
+        } while (deleted >= Settings.SEEN_PRUNE_CHUNK);
+        Db.seenLog().expire(cutoff);
+
+        // A no-op unless the file was created with auto_vacuum=INCREMENTAL (see Storage).
+        long reclaimed = Db.write(conn -> {
+            long before = pragmaLong(conn, "PRAGMA freelist_count");
+            try (Statement st = conn.createStatement()) {
+                // executeUpdate steps the pragma to completion; execute() would free a single page.
+                st.executeUpdate("PRAGMA incremental_vacuum(" + Settings.DB_VACUUM_PAGES + ")");
+            }
+            return before - pragmaLong(conn, "PRAGMA freelist_count");
+        });
+        pagesReclaimed.add(Math.max(0, reclaimed));
+
+        // PASSIVE never waits on readers; journal_size_limit trims the file once it is reset.
+        long checkpointed = Db.write(conn -> {
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA wal_checkpoint(PASSIVE)")) {
+                return rs.next() ? Math.max(0, rs.getLong(3)) : 0L;
+            }
+        });
+        walFramesCheckpointed.add(checkpointed);
+
+        runs.increment();
+        lastRunMs.set((System.nanoTime() - start) / 1_000_000);
+        return snapshot();
+    }
+
+    private static long pragmaLong(Connection conn, String sql) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.runs = runs.sum();
+        s.seenPruned = seenPruned.sum();
+        s.pagesReclaimed = pagesReclaimed.sum();
+        s.walFramesCheckpointed = walFramesCheckpointed.sum();
+        s.lastRunMs = lastRunMs.get();
+        return s;
+    }
+
+    void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static class Snapshot {
+        public long runs;
+        public long seenPruned;
+        public long pagesReclaimed;
+        public long walFramesCheckpointed;
+        public long lastRunMs;
+
+        @Override
+        public String toString() {
+            return String.format("runs=%d seenPruned=%d pagesReclaimed=%d walFramesCheckpointed=%d lastRunMs=%d",
+                    runs, seenPruned, pagesReclaimed, walFramesCheckpointed, lastRunMs);
+        }
+    }
+}
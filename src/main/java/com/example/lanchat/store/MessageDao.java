@@ -5,7 +5,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MessageDao {
 
@@ -23,45 +25,131 @@ public class MessageDao {
         public long updatedAt;
         public String clockValue;
         public String status;
+        // Assigned by the database on insert and on every status change; read-only here.
+        public long seq;
+        // Sender-assigned position among its messages in the room; 0 if the sender doesn't number them.
+        public long originSeq;
     }
 
+    // Paging queries whose plans are pinned by tests. The LEGACY_ variants keep to unnumbered
+    // rows (origin_seq = 0) and run on the partial idx_messages_room_legacy_clock.
+    static final String CHANGED_AFTER_SQL = "SELECT * FROM messages WHERE conv_id = ? AND seq > ? ORDER BY seq ASC LIMIT ?";
+    static final String ROOM_AFTER_CLOCK_SQL = "SELECT * FROM messages WHERE room_id = ? AND clock > ? AND clock <= ? " +
+            "ORDER BY clock ASC, ts ASC, msg_id ASC LIMIT ?";
+    static final String LEGACY_ROOM_AFTER_CLOCK_SQL = "SELECT * FROM messages WHERE room_id = ? AND clock > ? AND clock <= ? " +
+            "AND origin_seq = 0 ORDER BY clock ASC, ts ASC, msg_id ASC LIMIT ?";
+    static final String ROOM_AFTER_KEYSET_SQL = "SELECT * FROM messages WHERE room_id = ? AND (clock, ts, msg_id) > (?, ?, ?) " +
+            "AND clock <= ? ORDER BY clock ASC, ts ASC, msg_id ASC LIMIT ?";
+    static final String LEGACY_ROOM_AFTER_KEYSET_SQL = "SELECT * FROM messages WHERE room_id = ? AND (clock, ts, msg_id) > (?, ?, ?) " +
+            "AND clock <= ? AND origin_seq = 0 ORDER BY clock ASC, ts ASC, msg_id ASC LIMIT ?";
+    static final String ROOM_FROM_ORIGIN_SQL = "SELECT * FROM messages " +
+            "WHERE room_id = ? AND from_node_id = ? AND origin_seq > ? AND origin_seq <= ? ORDER BY origin_seq ASC LIMIT ?";
+
+    private static final String INSERT_COLUMNS = "INTO messages (msg_id, conv_id, chat_type, room_id, direction, from_node_id, to_node_id, content, content_type, ts, updated_at, clock_value, clock, status, origin_seq) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     public void insert(Message m) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "INSERT INTO messages (msg_id, conv_id, chat_type, room_id, direction, from_node_id, to_node_id, content, content_type, ts, updated_at, clock_value, status) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, m.msgId);
-            ps.setString(2, m.convId);
-            ps.setString(3, m.chatType);
-            ps.setString(4, m.roomId);
-            ps.setString(5, m.direction);
-            ps.setString(6, m.fromNodeId);
-            ps.setString(7, m.toNodeId);
-            ps.setString(8, m.content);
-            ps.setString(9, m.contentType);
-            ps.setLong(10, m.ts);
-            ps.setLong(11, m.updatedAt > 0 ? m.updatedAt : m.ts);
-            ps.setString(12, m.clockValue);
-            ps.setString(13, m.status);
+        Db.execute(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "INSERT " + INSERT_COLUMNS);
+            bindInsert(ps, m);
             ps.executeUpdate();
-        }
+            RoomDigestDao.add(conn, List.of(m));
+        });
+    }
+
+    // Numbers an outgoing room message after the sender's last one in the room. Runs as one write,
+    // so two sends can't be given the same number.
+    public void insertNumbered(Message m) throws SQLException {
+        Db.execute(conn -> {
+            PreparedStatement next = Db.prepare(conn,
+                    "SELECT COALESCE(MAX(origin_seq), 0) + 1 FROM messages WHERE room_id = ? AND from_node_id = ?");
+            next.setString(1, m.roomId);
+            next.setString(2, m.fromNodeId);
+            try (ResultSet rs = next.executeQuery()) {
+                m.originSeq = rs.next() ? rs.getLong(1) : 1;
+            }
+            PreparedStatement ps = Db.prepare(conn, "INSERT " + INSERT_COLUMNS);
+            bindInsert(ps, m);
+            ps.executeUpdate();
+            RoomDigestDao.add(conn, List.of(m));
+        });
+    }
+
+    public boolean insertIgnore(Message m) throws SQLException {
+        return Db.write(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "INSERT OR IGNORE " + INSERT_COLUMNS);
+            bindInsert(ps, m);
+            if (ps.executeUpdate() == 0) return false;
+            RoomDigestDao.add(conn, List.of(m));
+            return true;
+        });
+    }
+
+    // One executeBatch; duplicates are skipped and the result is the number of new rows.
+    public int insertAllIgnore(List<Message> messages) throws SQLException {
+        if (messages.isEmpty()) return 0;
+        return Db.write(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "INSERT OR IGNORE " + INSERT_COLUMNS);
+            for (Message m : messages) {
+                bindInsert(ps, m);
+                ps.addBatch();
+            }
+            int[] changed = ps.executeBatch();
+            List<Message> inserted = new ArrayList<>();
+            for (int i = 0; i < changed.length; i++) {
+                if (changed[i] > 0) inserted.add(messages.get(i));
+            }
+            RoomDigestDao.add(conn, inserted);
+            return inserted.size();
+        });
+    }
+
+    private static void bindInsert(PreparedStatement ps, Message m) throws SQLException {
+        ps.setString(1, m.msgId);
+        ps.setString(2, m.convId);
+        ps.setString(3, m.chatType);
+        ps.setString(4, m.roomId);
+        ps.setString(5, m.direction);
+        ps.setString(6, m.fromNodeId);
+        ps.setString(7, m.toNodeId);
+        ps.setString(8, m.content);
+        ps.setString(9, m.contentType);
+        ps.setLong(10, m.ts);
+        ps.setLong(11, m.updatedAt > 0 ? m.updatedAt : m.ts);
+        ps.setString(12, m.clockValue);
+        ps.setLong(13, parseClock(m.clockValue));
+        ps.setString(14, m.status);
+        ps.setLong(15, m.originSeq);
     }
 
     public void updateStatus(String msgId, String status) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "UPDATE messages SET status = ?, updated_at = ? WHERE msg_id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        Db.execute(conn -> {
+            String sql = "UPDATE messages SET status = ?, updated_at = ? WHERE msg_id = ?";
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, status);
             ps.setLong(2, System.currentTimeMillis());
             ps.setString(3, msgId);
             ps.executeUpdate();
-        }
+        });
+    }
+
+    // Compare-and-set on status, so a late transition can't undo a later one.
+    public boolean updateStatus(String msgId, String from, String to) throws SQLException {
+        return Db.write(conn -> {
+            String sql = "UPDATE messages SET status = ?, updated_at = ? WHERE msg_id = ? AND status = ?";
+            PreparedStatement ps = Db.prepare(conn, sql);
+            ps.setString(1, to);
+            ps.setLong(2, System.currentTimeMillis());
+            ps.setString(3, msgId);
+            ps.setString(4, from);
+            return ps.executeUpdate() > 0;
+        });
     }
 
     public List<Message> listMessages(String convId, long beforeTs, int limit) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM messages WHERE conv_id = ? AND ts < ? ORDER BY ts DESC LIMIT ?";
-        List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM messages WHERE conv_id = ? AND ts < ? ORDER BY ts DESC LIMIT ?";
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, convId);
             ps.setLong(2, beforeTs);
             ps.setInt(3, limit);
@@ -70,15 +158,15 @@ public class MessageDao {
                     out.add(mapRow(rs));
                 }
             }
-        }
-        return out;
+            return out;
+        });
     }
 
     public List<Message> listLatestMessages(String convId, int limit) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM messages WHERE conv_id = ? ORDER BY ts DESC LIMIT ?";
-        List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM messages WHERE conv_id = ? ORDER BY ts DESC LIMIT ?";
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, convId);
             ps.setInt(2, limit);
             try (ResultSet rs = ps.executeQuery()) {
@@ -86,15 +174,15 @@ public class MessageDao {
                     out.add(mapRow(rs));
                 }
             }
-        }
-        return out;
+            return out;
+        });
     }
 
     public List<Message> listLatestRoomMessages(String roomId, int limit) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM messages WHERE room_id = ? ORDER BY ts DESC LIMIT ?";
-        List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM messages WHERE room_id = ? ORDER BY ts DESC LIMIT ?";
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, roomId);
             ps.setInt(2, limit);
             try (ResultSet rs = ps.executeQuery()) {
@@ -102,55 +190,165 @@ public class MessageDao {
                     out.add(mapRow(rs));
                 }
             }
-        }
-        return out;
+            return out;
+        });
     }
 
     public List<Message> listMessagesUpdatedAfter(long sinceTs, String convId, int limit) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM messages WHERE updated_at > ? AND conv_id = ? ORDER BY updated_at ASC LIMIT ?";
-        List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM messages WHERE updated_at > ? AND conv_id = ? ORDER BY updated_at ASC LIMIT ?";
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setLong(1, sinceTs);
             ps.setString(2, convId);
             ps.setInt(3, limit);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) out.add(mapRow(rs));
             }
-        }
-        return out;
+            return out;
+        });
+    }
+
+    // Every insert or status change in the conversation after sinceSeq, in commit order.
+    public List<Message> listMessagesChangedAfter(long sinceSeq, String convId, int limit) throws SQLException {
+        return Db.read(conn -> {
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, CHANGED_AFTER_SQL);
+            ps.setString(1, convId);
+            ps.setLong(2, sinceSeq);
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(mapRow(rs));
+            }
+            return out;
+        });
     }
 
     public List<Message> listRoomMessages(String roomId, long beforeTs, int limit) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM messages WHERE room_id = ? AND ts < ? ORDER BY ts DESC LIMIT ?";
-        List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM messages WHERE room_id = ? AND ts < ? ORDER BY ts DESC LIMIT ?";
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, roomId);
             ps.setLong(2, beforeTs);
             ps.setInt(3, limit);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) out.add(mapRow(rs));
             }
-        }
-        return out;
+            return out;
+        });
     }
 
     public List<Message> listRoomMessagesAfterClock(String roomId, String sinceClockValue, int limitPlusOne) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM messages " +
-                "WHERE room_id = ? AND clock_value IS NOT NULL AND CAST(clock_value AS INTEGER) > CAST(? AS INTEGER) " +
-                "ORDER BY CAST(clock_value AS INTEGER) ASC, ts ASC LIMIT ?";
-        List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        return listRoomMessagesAfterClock(roomId, sinceClockValue, Long.MAX_VALUE, false, limitPlusOne);
+    }
+
+    // Messages with sinceClock < clock <= untilClock, for one range of a parallel catch-up;
+    // legacyOnly keeps to unnumbered rows (origin_seq = 0), which sync by clock.
+    public List<Message> listRoomMessagesAfterClock(String roomId, String sinceClockValue, long untilClock, boolean legacyOnly,
+                                                    int limitPlusOne) throws SQLException {
+        return Db.read(conn -> {
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, legacyOnly ? LEGACY_ROOM_AFTER_CLOCK_SQL : ROOM_AFTER_CLOCK_SQL);
+            ps.setString(1, roomId);
+            ps.setLong(2, parseClock(sinceClockValue));
+            ps.setLong(3, untilClock);
+            ps.setInt(4, limitPlusOne);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(mapRow(rs));
+            }
+            return out;
+        });
+    }
+
+    public List<Message> listRoomMessagesAfter(String roomId, long sinceClock, long sinceTs, String sinceMsgId, int limitPlusOne) throws SQLException {
+        return listRoomMessagesAfter(roomId, sinceClock, sinceTs, sinceMsgId, Long.MAX_VALUE, false, limitPlusOne);
+    }
+
+    // Keyset page strictly after (clock, ts, msgId) and up to untilClock; an index seek on
+    // idx_messages_room_clock, or idx_messages_room_legacy_clock for legacyOnly.
+    public List<Message> listRoomMessagesAfter(String roomId, long sinceClock, long sinceTs, String sinceMsgId, long untilClock,
+                                               boolean legacyOnly, int limitPlusOne) throws SQLException {
+        return Db.read(conn -> {
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, legacyOnly ? LEGACY_ROOM_AFTER_KEYSET_SQL : ROOM_AFTER_KEYSET_SQL);
             ps.setString(1, roomId);
-            ps.setString(2, sinceClockValue == null || sinceClockValue.isBlank() ? "0" : sinceClockValue);
-            ps.setInt(3, limitPlusOne);
+            ps.setLong(2, sinceClock);
+            ps.setLong(3, sinceTs);
+            ps.setString(4, sinceMsgId);
+            ps.setLong(5, untilClock);
+            ps.setInt(6, limitPlusOne);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) out.add(mapRow(rs));
             }
+            return out;
+        });
+    }
+
+    // Highest clock held for the room (0 when empty); one seek to the end of the clock index.
+    public long maxRoomClock(String roomId, boolean legacyOnly) throws SQLException {
+        return Db.read(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "SELECT MAX(clock) FROM messages WHERE room_id = ?" +
+                    (legacyOnly ? " AND origin_seq = 0" : ""));
+            ps.setString(1, roomId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+
+    // One sender's numbered messages in the room with sinceSeq < origin_seq <= untilSeq.
+    public List<Message> listRoomMessagesFromOrigin(String roomId, String originNodeId, long sinceSeq, long untilSeq, int limit) throws SQLException {
+        return Db.read(conn -> {
+            List<Message> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, ROOM_FROM_ORIGIN_SQL);
+            ps.setString(1, roomId);
+            ps.setString(2, originNodeId);
+            ps.setLong(3, Math.max(0, sinceSeq));
+            ps.setLong(4, untilSeq);
+            ps.setInt(5, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(mapRow(rs));
+            }
+            return out;
+        });
+    }
+
+    // Highest origin_seq per sender in the room. Skips from sender to sender on
+    // idx_messages_room_origin, so the cost is two seeks per sender rather than a room scan.
+    public Map<String, Long> originHeads(String roomId) throws SQLException {
+        return Db.read(conn -> originHeads(conn, roomId));
+    }
+
+    static Map<String, Long> originHeads(Connection conn, String roomId) throws SQLException {
+        Map<String, Long> out = new LinkedHashMap<>();
+        PreparedStatement nextOrigin = Db.prepare(conn,
+                "SELECT from_node_id FROM messages WHERE room_id = ? AND from_node_id > ? ORDER BY from_node_id LIMIT 1");
+        PreparedStatement head = Db.prepare(conn, "SELECT MAX(origin_seq) FROM messages WHERE room_id = ? AND from_node_id = ?");
+        String origin = "";
+        while (true) {
+            nextOrigin.setString(1, roomId);
+            nextOrigin.setString(2, origin);
+            try (ResultSet rs = nextOrigin.executeQuery()) {
+                if (!rs.next()) return out;
+                origin = rs.getString(1);
+            }
+            head.setString(1, roomId);
+            head.setString(2, origin);
+            try (ResultSet rs = head.executeQuery()) {
+                long seq = rs.next() ? rs.getLong(1) : 0;
+                if (seq > 0) out.put(origin, seq);
+            }
+        }
+    }
+
+    static long parseClock(String clockValue) {
+        if (clockValue == null || clockValue.isBlank()) return 0;
+        try {
+            return Long.parseLong(clockValue.trim());
+        } catch (NumberFormatException e) {
+            return 0;
         }
-        return out;
     }
 
     private Message mapRow(ResultSet rs) throws SQLException {
@@ -168,6 +366,8 @@ public class MessageDao {
         m.updatedAt = rs.getLong("updated_at");
         m.clockValue = rs.getString("clock_value");
         m.status = rs.getString("status");
+        m.originSeq = rs.getLong("origin_seq");
+        m.seq = rs.getLong("seq");
         return m;
     }
 }
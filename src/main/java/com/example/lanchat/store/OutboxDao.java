@@ -0,0 +1,145 @@
+package com.example.lanchat.store;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class OutboxDao {
+
+    public static class Entry {
+        public long id;
+        public String peerNodeId;
+        public String msgId;
+        public String envelope;
+        public long createdAt;
+        public int attempts;
+        public long nextAttemptAt;
+        public boolean awaitAck;
+        public long sentAt;
+    }
+
+    public boolean enqueue(String peerNodeId, String msgId, String envelope, boolean awaitAck, long now) throws SQLException {
+        return Db.write(conn -> {
+            String sql = "INSERT OR IGNORE INTO outbox (peer_node_id, msg_id, envelope, created_at, attempts, next_attempt_at, await_ack) " +
+                    "VALUES (?, ?, ?, ?, 0, 0, ?)";
+            PreparedStatement ps = Db.prepare(conn, sql);
+            ps.setString(1, peerNodeId);
+            ps.setString(2, msgId);
+            ps.setString(3, envelope);
+            ps.setLong(4, now);
+            ps.setInt(5, awaitAck ? 1 : 0);
+            return ps.executeUpdate() > 0;
+        });
+    }
+
+    // Rows to (re)send: never written, or written no later than sentBefore and still not ACKed.
+    public List<Entry> listForPeer(String peerNodeId, long sentBefore, int limit) throws SQLException {
+        return Db.read(conn -> {
+            String sql = "SELECT * FROM outbox WHERE peer_node_id = ? AND sent_at <= ? ORDER BY id ASC LIMIT ?";
+            List<Entry> list = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
+            ps.setString(1, peerNodeId);
+            ps.setLong(2, sentBefore);
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    list.add(mapRow(rs));
+                }
+            }
+            return list;
+        });
+    }
+
+    public List<String> listPeers() throws SQLException {
+        return Db.read(conn -> {
+            List<String> list = new ArrayList<>();
+            try (Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT DISTINCT peer_node_id FROM outbox")) {
+                while (rs.next()) {
+                    list.add(rs.getString(1));
+                }
+            }
+            return list;
+        });
+    }
+
+    public List<String> listPeersDue(long now, long sentBefore) throws SQLException {
+        return Db.read(conn -> {
+            String sql = "SELECT peer_node_id FROM outbox WHERE sent_at <= ? GROUP BY peer_node_id HAVING MIN(next_attempt_at) <= ?";
+            List<String> list = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
+            ps.setLong(1, sentBefore);
+            ps.setLong(2, now);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    list.add(rs.getString(1));
+                }
+            }
+            return list;
+        });
+    }
+
+    public void delete(long id) throws SQLException {
+        Db.execute(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "DELETE FROM outbox WHERE id = ?");
+            ps.setLong(1, id);
+            ps.executeUpdate();
+        });
+    }
+
+    public void markSent(long id, long now) throws SQLException {
+        Db.execute(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "UPDATE outbox SET sent_at = ? WHERE id = ?");
+            ps.setLong(1, now);
+            ps.setLong(2, id);
+            ps.executeUpdate();
+        });
+    }
+
+    public boolean deleteAcked(String peerNodeId, String msgId) throws SQLException {
+        return Db.write(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "DELETE FROM outbox WHERE peer_node_id = ? AND msg_id = ?");
+            ps.setString(1, peerNodeId);
+            ps.setString(2, msgId);
+            return ps.executeUpdate() > 0;
+        });
+    }
+
+    public void reschedulePeer(String peerNodeId, int attempts, long nextAttemptAt) throws SQLException {
+        Db.execute(conn -> {
+            String sql = "UPDATE outbox SET attempts = ?, next_attempt_at = ? WHERE peer_node_id = ?";
+            PreparedStatement ps = Db.prepare(conn, sql);
+            ps.setInt(1, attempts);
+            ps.setLong(2, nextAttemptAt);
+            ps.setString(3, peerNodeId);
+            ps.executeUpdate();
+        });
+    }
+
+    public int countForPeer(String peerNodeId) throws SQLException {
+        return Db.read(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "SELECT COUNT(*) FROM outbox WHERE peer_node_id = ?");
+            ps.setString(1, peerNodeId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+
+    private static Entry mapRow(ResultSet rs) throws SQLException {
+        Entry e = new Entry();
+        e.id = rs.getLong("id");
+        e.peerNodeId = rs.getString("peer_node_id");
+        e.msgId = rs.getString("msg_id");
+        e.envelope = rs.getString("envelope");
+        e.createdAt = rs.getLong("created_at");
+        e.attempts = rs.getInt("attempts");
+        e.nextAttemptAt = rs.getLong("next_attempt_at");
+        e.awaitAck = rs.getInt("await_ack") != 0;
+        e.sentAt = rs.getLong("sent_at");
+        return e;
+    }
+}
@@ -2,7 +2,10 @@ package com.example.lanchat.store;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class PeerDao {
 
@@ -20,68 +23,142 @@ public class PeerDao {
         }
     }
 
+    private static final String UPSERT_SQL = "INSERT INTO peers (peer_node_id, peer_name, last_ip, last_p2p_port, last_seen) VALUES (?, ?, ?, ?, ?) " +
+            "ON CONFLICT(peer_node_id) DO UPDATE SET " +
+            "peer_name = excluded.peer_name, " +
+            "last_ip = excluded.last_ip, " +
+            "last_p2p_port = excluded.last_p2p_port, " +
+            "last_seen = excluded.last_seen";
+
     public void upsertPeer(String nodeId, String name, String ip, int p2pPort, long lastSeen) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "INSERT INTO peers (peer_node_id, peer_name, last_ip, last_p2p_port, last_seen) VALUES (?, ?, ?, ?, ?) " +
-                     "ON CONFLICT(peer_node_id) DO UPDATE SET " +
-                     "peer_name = excluded.peer_name, " +
-                     "last_ip = excluded.last_ip, " +
-                     "last_p2p_port = excluded.last_p2p_port, " +
-                     "last_seen = excluded.last_seen";
-                     
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, nodeId);
-            ps.setString(2, name);
-            ps.setString(3, ip);
-            ps.setInt(4, p2pPort);
-            ps.setLong(5, lastSeen);
+        Db.execute(conn -> {
+            // A direct write supersedes anything still buffered for this peer.
+            Db.writeBehind().peers.remove(nodeId);
+            Peer p = peer(nodeId, name, ip, p2pPort, lastSeen);
+            PreparedStatement ps = Db.prepare(conn, UPSERT_SQL);
+            bindUpsert(ps, p);
             ps.executeUpdate();
+            DirectoryCache directory = Db.directory();
+            Db.afterCommit(conn, () -> directory.updatePeer(nodeId, cur -> overlay(cur, p)));
+        });
+    }
+
+    // Same effect as upsertPeer, coalesced in WriteBehind: discovery and handshakes refresh
+    // every peer every few seconds. Reads through this DAO see it immediately.
+    public void touchPeer(String nodeId, String name, String ip, int p2pPort, long lastSeen) throws SQLException {
+        Peer p = peer(nodeId, name, ip, p2pPort, lastSeen);
+        Db.writeBehind().peers.put(nodeId, p);
+        Db.directory().updatePeer(nodeId, cur -> overlay(cur, p));
+    }
+
+    static void writePeers(Connection conn, List<Map.Entry<String, Peer>> batch) throws SQLException {
+        PreparedStatement ps = Db.prepare(conn, UPSERT_SQL);
+        for (Map.Entry<String, Peer> e : batch) {
+            bindUpsert(ps, e.getValue());
+            ps.addBatch();
         }
+        ps.executeBatch();
+    }
+
+    private static void bindUpsert(PreparedStatement ps, Peer p) throws SQLException {
+        ps.setString(1, p.nodeId);
+        ps.setString(2, p.name);
+        ps.setString(3, p.ip);
+        ps.setInt(4, p.p2pPort);
+        ps.setLong(5, p.lastSeen);
+    }
+
+    private static Peer peer(String nodeId, String name, String ip, int p2pPort, long lastSeen) {
+        Peer p = new Peer();
+        p.nodeId = nodeId;
+        p.name = name;
+        p.ip = ip;
+        p.p2pPort = p2pPort;
+        p.lastSeen = lastSeen;
+        return p;
     }
 
     public List<Peer> listOnlinePeers(long now, long ttlMs) throws SQLException {
-        Connection conn = Db.getConnection();
         long threshold = now - ttlMs;
-        String sql = "SELECT * FROM peers WHERE last_seen > ? ORDER BY last_seen DESC";
+        Map<String, Peer> pending = Db.writeBehind().peers.snapshot();
+        List<Peer> list = Db.read(conn -> {
+            String sql = "SELECT * FROM peers WHERE last_seen > ? ORDER BY last_seen DESC";
         
-        List<Peer> list = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            List<Peer> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setLong(1, threshold);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    list.add(mapRow(rs));
+                    out.add(mapRow(rs));
                 }
             }
+            return out;
+        });
+        if (pending.isEmpty()) return list;
+        List<Peer> out = new ArrayList<>();
+        for (Peer p : withPending(list, pending)) {
+            if (p.lastSeen > threshold) out.add(p);
         }
-        return list;
+        return out;
     }
 
     public List<Peer> listAllPeers() throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM peers ORDER BY last_seen DESC";
+        Map<String, Peer> pending = Db.writeBehind().peers.snapshot();
+        List<Peer> list = Db.read(conn -> {
+            String sql = "SELECT * FROM peers ORDER BY last_seen DESC";
         
-        List<Peer> list = new ArrayList<>();
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                list.add(mapRow(rs));
+            List<Peer> out = new ArrayList<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    out.add(mapRow(rs));
+                }
             }
-        }
-        return list;
+            return out;
+        });
+        return pending.isEmpty() ? list : withPending(list, pending);
     }
 
+    // Served from DirectoryCache after the first lookup; callers get their own copy.
     public Peer getPeerByNodeId(String nodeId) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM peers WHERE peer_node_id = ? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        Peer cached = Db.directory().peer(nodeId, () -> loadPeer(nodeId));
+        return cached != null ? overlay(cached, cached) : null;
+    }
+
+    private Peer loadPeer(String nodeId) throws SQLException {
+        Peer pending = Db.writeBehind().peers.get(nodeId);
+        Peer row = Db.read(conn -> {
+            String sql = "SELECT * FROM peers WHERE peer_node_id = ? LIMIT 1";
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, nodeId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
                     return mapRow(rs);
                 }
             }
+            return null;
+        });
+        return pending != null ? overlay(row, pending) : row;
+    }
+
+    // Buffered peers replace (or add to) the table rows, newest first; remark only lives in the table.
+    private static List<Peer> withPending(List<Peer> rows, Map<String, Peer> pending) {
+        Map<String, Peer> merged = new LinkedHashMap<>();
+        for (Peer p : rows) {
+            merged.put(p.nodeId, p);
+        }
+        for (Peer p : pending.values()) {
+            merged.put(p.nodeId, overlay(merged.get(p.nodeId), p));
         }
-        return null;
+        List<Peer> out = new ArrayList<>(merged.values());
+        out.sort(Comparator.comparingLong((Peer p) -> p.lastSeen).reversed());
+        return out;
+    }
+
+    private static Peer overlay(Peer row, Peer pending) {
+        Peer p = peer(pending.nodeId, pending.name, pending.ip, pending.p2pPort, pending.lastSeen);
+        p.remark = row != null ? row.remark : null;
+        return p;
     }
     
     private Peer mapRow(ResultSet rs) throws SQLException {
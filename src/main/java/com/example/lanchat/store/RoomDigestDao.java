@@ -0,0 +1,163 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.MessageDao.Message;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Hash tree over each room's message ids for anti-entropy repair. Leaves are clock buckets of
+// BUCKET_CLOCKS; a node at level L covers 16^L leaves, up to level LEVELS - 1. A node's digest
+// is the XOR of its messages' id hashes plus their count, so it is order-independent and a leaf
+// is updated in place on every insert (MessageDao calls add in the same write). Inner levels
+// are folded from the leaves on demand. All of this is wire format: peers must agree on it.
+public class RoomDigestDao {
+
+    public static final long BUCKET_CLOCKS = 64;
+    public static final int FANOUT_BITS = 4;
+    public static final int LEVELS = 4;
+
+    // XOR written as (a | b) - (a & b): SQLite has no XOR operator. Hashes are kept non-negative
+    // so the subtraction can't overflow into a REAL.
+    private static final String ADD_SQL = "INSERT INTO room_digest (room_id, bucket, hash, count) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT(room_id, bucket) DO UPDATE SET " +
+            "hash = (hash | excluded.hash) - (hash & excluded.hash), count = count + excluded.count";
+
+    public static final class Node {
+        public long hash;
+        public long count;
+
+        void add(long h, long n) {
+            hash ^= h;
+            count += n;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Node && ((Node) o).hash == hash && ((Node) o).count == count;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash) * 31 + Long.hashCode(count);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(hash) + ":" + count;
+        }
+
+        public static Node parse(String s) {
+            int colon = s.indexOf(':');
+            Node n = new Node();
+            n.hash = Long.parseUnsignedLong(s.substring(0, colon), 16);
+            n.count = Long.parseLong(s.substring(colon + 1));
+            return n;
+        }
+    }
+
+    public static long bucket(long clock) {
+        return Math.floorDiv(clock, BUCKET_CLOCKS);
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a splitmix finalizer; stable across nodes and JVMs.
+    static long hash(String msgId) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : msgId.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h & Long.MAX_VALUE;
+    }
+
+    // Folds newly inserted room messages into their leaves. Must run on the connection that
+    // inserted them, inside the same write.
+    static void add(Connection conn, Collection<Message> inserted) throws SQLException {
+        Map<String, Map<Long, Node>> byRoom = new HashMap<>();
+        for (Message m : inserted) {
+            if (m.roomId == null || m.msgId == null) continue;
+            byRoom.computeIfAbsent(m.roomId, k -> new HashMap<>())
+                    .computeIfAbsent(bucket(MessageDao.parseClock(m.clockValue)), k -> new Node())
+                    .add(hash(m.msgId), 1);
+        }
+        if (byRoom.isEmpty()) return;
+        PreparedStatement ps = Db.prepare(conn, ADD_SQL);
+        for (Map.Entry<String, Map<Long, Node>> room : byRoom.entrySet()) {
+            for (Map.Entry<Long, Node> leaf : room.getValue().entrySet()) {
+                ps.setString(1, room.getKey());
+                ps.setLong(2, leaf.getKey());
+                ps.setLong(3, leaf.getValue().hash);
+                ps.setLong(4, leaf.getValue().count);
+                ps.addBatch();
+            }
+        }
+        ps.executeBatch();
+    }
+
+    // Nodes at level whose parent (at level + 1) is one of parents; every node of the level when
+    // parents is null. Empty nodes are left out.
+    public Map<Long, Node> level(String roomId, int level, List<Long> parents) throws SQLException {
+        return Db.read(conn -> {
+            Map<Long, Node> out = new TreeMap<>();
+            PreparedStatement ps = Db.prepare(conn,
+                    "SELECT bucket, hash, count FROM room_digest WHERE room_id = ? AND bucket >= ? AND bucket < ?");
+            int span = FANOUT_BITS * (level + 1);
+            if (parents == null) {
+                fold(ps, roomId, Long.MIN_VALUE, Long.MAX_VALUE, level, out);
+            } else {
+                for (long p : parents) {
+                    fold(ps, roomId, p << span, (p + 1) << span, level, out);
+                }
+            }
+            return out;
+        });
+    }
+
+    private static void fold(PreparedStatement ps, String roomId, long from, long to, int level, Map<Long, Node> out) throws SQLException {
+        ps.setString(1, roomId);
+        ps.setLong(2, from);
+        ps.setLong(3, to);
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                out.computeIfAbsent(rs.getLong(1) >> (FANOUT_BITS * level), k -> new Node()).add(rs.getLong(2), rs.getLong(3));
+            }
+        }
+    }
+
+    // Leaves rebuilt from scratch; for the migration that introduces the table.
+    static void rebuild(Connection conn) throws SQLException {
+        try (PreparedStatement clear = conn.prepareStatement("DELETE FROM room_digest")) {
+            clear.executeUpdate();
+        }
+        Map<String, Map<Long, Node>> leaves = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT room_id, clock, msg_id FROM messages WHERE room_id IS NOT NULL");
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                leaves.computeIfAbsent(rs.getString(1), k -> new HashMap<>())
+                        .computeIfAbsent(bucket(rs.getLong(2)), k -> new Node())
+                        .add(hash(rs.getString(3)), 1);
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(ADD_SQL)) {
+            for (Map.Entry<String, Map<Long, Node>> room : leaves.entrySet()) {
+                for (Map.Entry<Long, Node> leaf : room.getValue().entrySet()) {
+                    ps.setString(1, room.getKey());
+                    ps.setLong(2, leaf.getKey());
+                    ps.setLong(3, leaf.getValue().hash);
+                    ps.setLong(4, leaf.getValue().count);
+                    ps.addBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+}
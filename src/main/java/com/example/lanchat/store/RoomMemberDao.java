@@ -5,7 +5,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class RoomMemberDao {
 
@@ -19,73 +22,180 @@ public class RoomMemberDao {
         public String role;
     }
 
+    private static final String UPSERT_SQL = "INSERT INTO room_members (room_id, member_node_id, member_name, last_known_ip, last_known_p2p_port, last_seen, role) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT(room_id, member_node_id) DO UPDATE SET " +
+            "member_name = excluded.member_name, " +
+            "last_known_ip = COALESCE(excluded.last_known_ip, room_members.last_known_ip), " +
+            "last_known_p2p_port = CASE WHEN excluded.last_known_p2p_port > 0 THEN excluded.last_known_p2p_port ELSE room_members.last_known_p2p_port END, " +
+            "last_seen = CASE WHEN excluded.last_seen > 0 THEN excluded.last_seen ELSE room_members.last_seen END, " +
+            "role = COALESCE(excluded.role, room_members.role)";
+
     public void upsert(RoomMember m) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "INSERT INTO room_members (room_id, member_node_id, member_name, last_known_ip, last_known_p2p_port, last_seen, role) VALUES (?, ?, ?, ?, ?, ?, ?) " +
-                "ON CONFLICT(room_id, member_node_id) DO UPDATE SET " +
-                "member_name = excluded.member_name, " +
-                "last_known_ip = COALESCE(excluded.last_known_ip, room_members.last_known_ip), " +
-                "last_known_p2p_port = CASE WHEN excluded.last_known_p2p_port > 0 THEN excluded.last_known_p2p_port ELSE room_members.last_known_p2p_port END, " +
-                "last_seen = CASE WHEN excluded.last_seen > 0 THEN excluded.last_seen ELSE room_members.last_seen END, " +
-                "role = COALESCE(excluded.role, room_members.role)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, m.roomId);
-            ps.setString(2, m.memberNodeId);
-            ps.setString(3, m.memberName);
-            ps.setString(4, m.lastKnownIp);
-            ps.setInt(5, m.lastKnownP2pPort);
-            ps.setLong(6, m.lastSeen);
-            ps.setString(7, m.role);
+        Db.execute(conn -> {
+            PreparedStatement ps = Db.prepare(conn, UPSERT_SQL);
+            bindUpsert(ps, withPending(m));
             ps.executeUpdate();
-        }
+            cacheAfterCommit(conn, List.of(m));
+        });
     }
 
-    public boolean isMember(String roomId, String memberNodeId) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT 1 FROM room_members WHERE room_id = ? AND member_node_id = ? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, roomId);
-            ps.setString(2, memberNodeId);
-            try (ResultSet rs = ps.executeQuery()) {
-                return rs.next();
+    public void upsertAll(List<RoomMember> members) throws SQLException {
+        if (members.isEmpty()) return;
+        Db.execute(conn -> {
+            PreparedStatement ps = Db.prepare(conn, UPSERT_SQL);
+            for (RoomMember m : members) {
+                bindUpsert(ps, withPending(m));
+                ps.addBatch();
             }
-        }
+            ps.executeBatch();
+            cacheAfterCommit(conn, members);
+        });
     }
 
-    public RoomMember getMember(String roomId, String memberNodeId) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM room_members WHERE room_id = ? AND member_node_id = ? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, roomId);
-            ps.setString(2, memberNodeId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return mapRow(rs);
+    // Same effect as upsert, but coalesced in WriteBehind: for the per-message refresh of a
+    // sender's last_seen / address. Reads through this DAO see it once the caller's write
+    // commits, and never if it rolls back.
+    public void touch(RoomMember m) throws SQLException {
+        RoomMember copy = merge(null, m);
+        WriteBehind writeBehind = Db.writeBehind();
+        DirectoryCache directory = Db.directory();
+        Db.execute(conn -> Db.afterCommit(conn, () -> {
+            writeBehind.roomMembers.put(key(m.roomId, m.memberNodeId), copy);
+            directory.updateRoom(m.roomId, members -> applied(members, copy));
+        }));
+    }
+
+    private static void cacheAfterCommit(Connection conn, List<RoomMember> members) throws SQLException {
+        List<RoomMember> copies = new ArrayList<>(members.size());
+        for (RoomMember m : members) {
+            copies.add(merge(null, m));
+        }
+        DirectoryCache directory = Db.directory();
+        Db.afterCommit(conn, () -> {
+            for (RoomMember m : copies) {
+                directory.updateRoom(m.roomId, cur -> applied(cur, m));
             }
+        });
+    }
+
+    // New member map with the upsert merged in, in listMembers order.
+    private static Map<String, RoomMember> applied(Map<String, RoomMember> members, RoomMember upsert) {
+        Map<String, RoomMember> out = new LinkedHashMap<>(members);
+        out.put(upsert.memberNodeId, merge(members.get(upsert.memberNodeId), upsert));
+        return byNodeId(new ArrayList<>(out.values()));
+    }
+
+    private static Map<String, RoomMember> byNodeId(List<RoomMember> members) {
+        members.sort(Comparator.comparing((RoomMember m) -> m.memberName, Comparator.nullsFirst(Comparator.naturalOrder())));
+        Map<String, RoomMember> out = new LinkedHashMap<>();
+        for (RoomMember m : members) {
+            out.put(m.memberNodeId, m);
         }
-        return null;
+        return out;
+    }
+
+    static void writeMembers(Connection conn, List<Map.Entry<String, RoomMember>> batch) throws SQLException {
+        PreparedStatement ps = Db.prepare(conn, UPSERT_SQL);
+        for (Map.Entry<String, RoomMember> e : batch) {
+            bindUpsert(ps, e.getValue());
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    // Applies newer on top of older with UPSERT_SQL's rules; always returns a new object.
+    static RoomMember merge(RoomMember older, RoomMember newer) {
+        RoomMember m = new RoomMember();
+        m.roomId = newer.roomId;
+        m.memberNodeId = newer.memberNodeId;
+        m.memberName = newer.memberName;
+        m.lastKnownIp = newer.lastKnownIp != null || older == null ? newer.lastKnownIp : older.lastKnownIp;
+        m.lastKnownP2pPort = newer.lastKnownP2pPort > 0 || older == null ? newer.lastKnownP2pPort : older.lastKnownP2pPort;
+        m.lastSeen = newer.lastSeen > 0 || older == null ? newer.lastSeen : older.lastSeen;
+        m.role = newer.role != null || older == null ? newer.role : older.role;
+        return m;
+    }
+
+    // Runs on the writer: a direct write takes over the buffered value so a later flush can't undo it.
+    private static RoomMember withPending(RoomMember m) throws SQLException {
+        RoomMember pending = Db.writeBehind().roomMembers.remove(key(m.roomId, m.memberNodeId));
+        return pending != null ? merge(pending, m) : m;
+    }
+
+    private static String key(String roomId, String memberNodeId) {
+        return roomId + '\n' + memberNodeId;
+    }
+
+    private static void bindUpsert(PreparedStatement ps, RoomMember m) throws SQLException {
+        ps.setString(1, m.roomId);
+        ps.setString(2, m.memberNodeId);
+        ps.setString(3, m.memberName);
+        ps.setString(4, m.lastKnownIp);
+        ps.setInt(5, m.lastKnownP2pPort);
+        ps.setLong(6, m.lastSeen);
+        ps.setString(7, m.role);
+    }
+
+    public boolean isMember(String roomId, String memberNodeId) throws SQLException {
+        return members(roomId).containsKey(memberNodeId);
+    }
+
+    public RoomMember getMember(String roomId, String memberNodeId) throws SQLException {
+        RoomMember m = members(roomId).get(memberNodeId);
+        return m != null ? merge(null, m) : null;
     }
 
     public void removeMember(String roomId, String memberNodeId) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "DELETE FROM room_members WHERE room_id = ? AND member_node_id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        Db.execute(conn -> {
+            Db.writeBehind().roomMembers.remove(key(roomId, memberNodeId));
+            String sql = "DELETE FROM room_members WHERE room_id = ? AND member_node_id = ?";
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, roomId);
             ps.setString(2, memberNodeId);
             ps.executeUpdate();
-        }
+            DirectoryCache directory = Db.directory();
+            Db.afterCommit(conn, () -> directory.updateRoom(roomId, cur -> {
+                Map<String, RoomMember> out = new LinkedHashMap<>(cur);
+                out.remove(memberNodeId);
+                return out;
+            }));
+        });
     }
 
     public List<RoomMember> listMembers(String roomId) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "SELECT * FROM room_members WHERE room_id = ? ORDER BY member_name ASC";
         List<RoomMember> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        for (RoomMember m : members(roomId).values()) {
+            out.add(merge(null, m));
+        }
+        return out;
+    }
+
+    // The room's member set from DirectoryCache, loaded from the table on first use.
+    private Map<String, RoomMember> members(String roomId) throws SQLException {
+        return Db.directory().room(roomId, () -> byNodeId(loadMembers(roomId)));
+    }
+
+    private List<RoomMember> loadMembers(String roomId) throws SQLException {
+        Map<String, RoomMember> pending = Db.writeBehind().roomMembers.snapshot();
+        List<RoomMember> rows = Db.read(conn -> {
+            String sql = "SELECT * FROM room_members WHERE room_id = ? ORDER BY member_name ASC";
+            List<RoomMember> out = new ArrayList<>();
+            PreparedStatement ps = Db.prepare(conn, sql);
             ps.setString(1, roomId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) out.add(mapRow(rs));
             }
+            return out;
+        });
+        if (pending.isEmpty()) return rows;
+        Map<String, RoomMember> merged = new LinkedHashMap<>();
+        for (RoomMember row : rows) {
+            merged.put(row.memberNodeId, row);
         }
-        return out;
+        for (RoomMember p : pending.values()) {
+            if (roomId.equals(p.roomId)) merged.put(p.memberNodeId, merge(merged.get(p.memberNodeId), p));
+        }
+        return new ArrayList<>(merged.values());
     }
 
     private RoomMember mapRow(ResultSet rs) throws SQLException {
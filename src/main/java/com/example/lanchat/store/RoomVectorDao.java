@@ -0,0 +1,76 @@
+package com.example.lanchat.store;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Version vector per room: for each sender, every origin_seq up to the stored value is held
+// locally. A gap holds the mark back, so the missing message keeps being asked for until it
+// arrives, and nothing above the mark is fetched twice.
+public class RoomVectorDao {
+
+    private static final int WALK_CHUNK = 500;
+
+    // Moves each sender's mark over the messages that arrived since the last call (live or
+    // synced) and returns the vector, sorted by sender.
+    public Map<String, Long> advance(String roomId) throws SQLException {
+        Map<String, Long> vector = new TreeMap<>();
+        Map<String, Long> moved = new HashMap<>();
+        Db.read(conn -> {
+            PreparedStatement stored = Db.prepare(conn, "SELECT origin_node_id, seq FROM room_vector WHERE room_id = ?");
+            stored.setString(1, roomId);
+            try (ResultSet rs = stored.executeQuery()) {
+                while (rs.next()) vector.put(rs.getString(1), rs.getLong(2));
+            }
+
+            PreparedStatement walk = Db.prepare(conn, "SELECT origin_seq FROM messages " +
+                    "WHERE room_id = ? AND from_node_id = ? AND origin_seq > ? ORDER BY origin_seq LIMIT ?");
+            for (Map.Entry<String, Long> head : MessageDao.originHeads(conn, roomId).entrySet()) {
+                long have = vector.getOrDefault(head.getKey(), 0L);
+                boolean contiguous = true;
+                while (contiguous && have < head.getValue()) {
+                    walk.setString(1, roomId);
+                    walk.setString(2, head.getKey());
+                    walk.setLong(3, have);
+                    walk.setInt(4, WALK_CHUNK);
+                    int rows = 0;
+                    try (ResultSet rs = walk.executeQuery()) {
+                        while (rs.next()) {
+                            rows++;
+                            long seq = rs.getLong(1);
+                            if (seq != have + 1) {
+                                contiguous = false;
+                                break;
+                            }
+                            have = seq;
+                        }
+                    }
+                    if (rows < WALK_CHUNK) break;
+                }
+                if (have > vector.getOrDefault(head.getKey(), 0L)) {
+                    vector.put(head.getKey(), have);
+                    moved.put(head.getKey(), have);
+                }
+            }
+            return null;
+        });
+
+        if (!moved.isEmpty()) {
+            Db.execute(conn -> {
+                PreparedStatement ps = Db.prepare(conn, "INSERT INTO room_vector (room_id, origin_node_id, seq) VALUES (?, ?, ?) " +
+                        "ON CONFLICT(room_id, origin_node_id) DO UPDATE SET seq = excluded.seq WHERE excluded.seq > room_vector.seq");
+                for (Map.Entry<String, Long> e : moved.entrySet()) {
+                    ps.setString(1, roomId);
+                    ps.setString(2, e.getKey());
+                    ps.setLong(3, e.getValue());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            });
+        }
+        return vector;
+    }
+}
@@ -1,142 +1,269 @@
 package com.example.lanchat.store;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
+// Schema changes are numbered steps recorded in PRAGMA user_version. Each step runs once, in its
+// own transaction, so opening an up-to-date database costs a single pragma read.
 public class Schema {
-    
-    public static void createTables(Connection conn) throws SQLException {
-        try (Statement stmt = conn.createStatement()) {
-            // Identity table
-            stmt.execute("CREATE TABLE IF NOT EXISTS identity (" +
-                    "node_id TEXT PRIMARY KEY, " +
-                    "display_name TEXT, " +
-                    "p2p_port INTEGER, " +
-                    "web_port INTEGER, " +
-                    "created_at INTEGER, " +
-                    "last_startup INTEGER" +
-                    ")");
-            
-            // Peers table
-            stmt.execute("CREATE TABLE IF NOT EXISTS peers (" +
-                    "peer_node_id TEXT PRIMARY KEY, " +
-                    "peer_name TEXT, " +
-                    "last_ip TEXT, " +
-                    "last_p2p_port INTEGER, " +
-                    "last_seen INTEGER, " +
-                    "remark TEXT" +
-                    ")");
-
-            stmt.execute("CREATE TABLE IF NOT EXISTS conversations (" +
-                    "conv_id TEXT PRIMARY KEY, " +
-                    "conv_type TEXT, " +
-                    "peer_node_id TEXT, " +
-                    "room_id TEXT, " +
-                    "title TEXT, " +
-                    "created_at INTEGER, " +
-                    "last_msg_ts INTEGER" +
-                    ")");
-            try {
-                stmt.execute("ALTER TABLE conversations ADD COLUMN room_id TEXT");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("CREATE INDEX IF NOT EXISTS idx_conversations_last_msg_ts ON conversations(last_msg_ts DESC)");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS uniq_conversations_private_peer ON conversations(conv_type, peer_node_id)");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS uniq_conversations_room ON conversations(conv_type, room_id)");
-            } catch (SQLException ignored) {
-            }
 
-            stmt.execute("CREATE TABLE IF NOT EXISTS messages (" +
-                    "msg_id TEXT PRIMARY KEY, " +
-                    "conv_id TEXT, " +
-                    "chat_type TEXT, " +
-                    "room_id TEXT, " +
-                    "direction TEXT, " +
-                    "from_node_id TEXT, " +
-                    "to_node_id TEXT, " +
-                    "content TEXT, " +
-                    "content_type TEXT, " +
-                    "ts INTEGER, " +
-                    "updated_at INTEGER, " +
-                    "clock_value TEXT, " +
-                    "status TEXT" +
-                    ")");
-            try {
-                stmt.execute("ALTER TABLE messages ADD COLUMN chat_type TEXT");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("ALTER TABLE messages ADD COLUMN room_id TEXT");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("ALTER TABLE messages ADD COLUMN updated_at INTEGER");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("UPDATE messages SET updated_at = ts WHERE updated_at IS NULL");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_conv_ts ON messages(conv_id, ts DESC)");
-            } catch (SQLException ignored) {
-            }
-            try {
-                stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_ts ON messages(room_id, ts DESC)");
-            } catch (SQLException ignored) {
-            }
+    private interface Step {
+        void run(Statement stmt) throws SQLException;
+    }
+
+    private static final class Migration {
+        final int version;
+        final String name;
+        final Step step;
+
+        Migration(int version, String name, Step step) {
+            this.version = version;
+            this.name = name;
+            this.step = step;
+        }
+    }
+
+    // Append only: a released step must never be edited or renumbered.
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "base tables, messages.clock", Schema::baseAndClock),
+            new Migration(2, "messages.seq change sequence", Schema::changeSeq),
+            new Migration(3, "seen_messages retention index", stmt ->
+                    stmt.execute("CREATE INDEX IF NOT EXISTS idx_seen_messages_first_seen ON seen_messages(first_seen_ts)")),
+            new Migration(4, "messages.origin_seq, room version vectors", Schema::originSeq),
+            new Migration(5, "room_digest hash tree leaves", Schema::roomDigest),
+            new Migration(6, "outbox ACK tracking", Schema::outboxAck)
+    );
+
+    public static final int VERSION = MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+
+    public static void migrate(Connection conn) throws SQLException {
+        int current = userVersion(conn);
+        for (Migration m : MIGRATIONS) {
+            if (m.version <= current) continue;
+            long start = System.nanoTime();
+            inTransaction(conn, stmt -> {
+                m.step.run(stmt);
+                stmt.execute("PRAGMA user_version = " + m.version);
+            });
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Schema migration " + m.version + " (" + m.name + ") took " + ms + " ms");
+        }
+    }
+
+    static int userVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // Version 1 also brings databases written before versioning up to date, hence the
+    // IF NOT EXISTS / addColumnIfMissing guards.
+    private static void baseAndClock(Statement stmt) throws SQLException {
+        // Identity table
+        stmt.execute("CREATE TABLE IF NOT EXISTS identity (" +
+                "node_id TEXT PRIMARY KEY, " +
+                "display_name TEXT, " +
+                "p2p_port INTEGER, " +
+                "web_port INTEGER, " +
+                "created_at INTEGER, " +
+                "last_startup INTEGER" +
+                ")");
 
-            stmt.execute("CREATE TABLE IF NOT EXISTS seen_messages (" +
-                    "msg_id TEXT PRIMARY KEY, " +
-                    "first_seen_ts INTEGER" +
-                    ")");
-
-            stmt.execute("CREATE TABLE IF NOT EXISTS rooms (" +
-                    "room_id TEXT PRIMARY KEY, " +
-                    "room_name TEXT, " +
-                    "created_at INTEGER, " +
-                    "policy TEXT, " +
-                    "room_key_hash TEXT" +
-                    ")");
-
-            stmt.execute("CREATE TABLE IF NOT EXISTS room_members (" +
-                    "room_id TEXT, " +
-                    "member_node_id TEXT, " +
-                    "member_name TEXT, " +
-                    "last_known_ip TEXT, " +
-                    "last_known_p2p_port INTEGER, " +
-                    "last_seen INTEGER, " +
-                    "role TEXT, " +
-                    "PRIMARY KEY(room_id, member_node_id)" +
-                    ")");
-            try {
-                stmt.execute("ALTER TABLE room_members ADD COLUMN role TEXT");
-            } catch (SQLException ignored) {
+        // Peers table
+        stmt.execute("CREATE TABLE IF NOT EXISTS peers (" +
+                "peer_node_id TEXT PRIMARY KEY, " +
+                "peer_name TEXT, " +
+                "last_ip TEXT, " +
+                "last_p2p_port INTEGER, " +
+                "last_seen INTEGER, " +
+                "remark TEXT" +
+                ")");
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS conversations (" +
+                "conv_id TEXT PRIMARY KEY, " +
+                "conv_type TEXT, " +
+                "peer_node_id TEXT, " +
+                "room_id TEXT, " +
+                "title TEXT, " +
+                "created_at INTEGER, " +
+                "last_msg_ts INTEGER" +
+                ")");
+        addColumnIfMissing(stmt, "conversations", "room_id", "TEXT");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_conversations_last_msg_ts ON conversations(last_msg_ts DESC)");
+        try {
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS uniq_conversations_private_peer ON conversations(conv_type, peer_node_id)");
+        } catch (SQLException ignored) {
+            // Old databases may already hold duplicates; lookups still work without the index.
+        }
+        try {
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS uniq_conversations_room ON conversations(conv_type, room_id)");
+        } catch (SQLException ignored) {
+            // Old databases may already hold duplicates; lookups still work without the index.
+        }
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS messages (" +
+                "msg_id TEXT PRIMARY KEY, " +
+                "conv_id TEXT, " +
+                "chat_type TEXT, " +
+                "room_id TEXT, " +
+                "direction TEXT, " +
+                "from_node_id TEXT, " +
+                "to_node_id TEXT, " +
+                "content TEXT, " +
+                "content_type TEXT, " +
+                "ts INTEGER, " +
+                "updated_at INTEGER, " +
+                "clock_value TEXT, " +
+                "status TEXT" +
+                ")");
+        addColumnIfMissing(stmt, "messages", "chat_type", "TEXT");
+        addColumnIfMissing(stmt, "messages", "room_id", "TEXT");
+        addColumnIfMissing(stmt, "messages", "updated_at", "INTEGER");
+        stmt.execute("UPDATE messages SET updated_at = ts WHERE updated_at IS NULL");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_conv_ts ON messages(conv_id, ts DESC)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_ts ON messages(room_id, ts DESC)");
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS seen_messages (" +
+                "msg_id TEXT PRIMARY KEY, " +
+                "first_seen_ts INTEGER" +
+                ")");
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS rooms (" +
+                "room_id TEXT PRIMARY KEY, " +
+                "room_name TEXT, " +
+                "created_at INTEGER, " +
+                "policy TEXT, " +
+                "room_key_hash TEXT" +
+                ")");
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS room_members (" +
+                "room_id TEXT, " +
+                "member_node_id TEXT, " +
+                "member_name TEXT, " +
+                "last_known_ip TEXT, " +
+                "last_known_p2p_port INTEGER, " +
+                "last_seen INTEGER, " +
+                "role TEXT, " +
+                "PRIMARY KEY(room_id, member_node_id)" +
+                ")");
+        addColumnIfMissing(stmt, "room_members", "role", "TEXT");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_room_members_room_id ON room_members(room_id)");
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS room_member_events (" +
+                "event_id TEXT PRIMARY KEY, " +
+                "room_id TEXT, " +
+                "op TEXT, " +
+                "member_node_id TEXT, " +
+                "clock_value TEXT, " +
+                "ts INTEGER" +
+                ")");
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS room_cursor (" +
+                "room_id TEXT PRIMARY KEY, " +
+                "last_clock_value TEXT, " +
+                "updated_at INTEGER" +
+                ")");
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS outbox (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "peer_node_id TEXT NOT NULL, " +
+                "msg_id TEXT NOT NULL, " +
+                "envelope TEXT NOT NULL, " +
+                "created_at INTEGER, " +
+                "attempts INTEGER DEFAULT 0, " +
+                "next_attempt_at INTEGER DEFAULT 0, " +
+                "UNIQUE(peer_node_id, msg_id)" +
+                ")");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_outbox_peer ON outbox(peer_node_id, id)");
+
+        // messages.clock: INTEGER copy of clock_value so room sync can page on an index
+        // instead of sorting CAST(clock_value AS INTEGER) over the whole room.
+        stmt.execute("ALTER TABLE messages ADD COLUMN clock INTEGER NOT NULL DEFAULT 0");
+        stmt.execute("UPDATE messages SET clock = CAST(clock_value AS INTEGER) WHERE clock_value IS NOT NULL");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_clock ON messages(room_id, clock, ts, msg_id)");
+    }
+
+    // messages.seq: per-database change sequence, bumped by trigger on every insert and
+    // status change, so polling can ask for "everything after seq N" on an index.
+    private static void changeSeq(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE messages ADD COLUMN seq INTEGER NOT NULL DEFAULT 0");
+        stmt.execute("UPDATE messages SET seq = rowid");
+        stmt.execute("CREATE TABLE IF NOT EXISTS change_seq (" +
+                "id INTEGER PRIMARY KEY CHECK (id = 1), " +
+                "value INTEGER NOT NULL" +
+                ")");
+        stmt.execute("INSERT OR REPLACE INTO change_seq (id, value) VALUES (1, (SELECT COALESCE(MAX(seq), 0) FROM messages))");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_conv_seq ON messages(conv_id, seq)");
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS messages_seq_insert AFTER INSERT ON messages BEGIN " +
+                "UPDATE change_seq SET value = value + 1 WHERE id = 1; " +
+                "UPDATE messages SET seq = (SELECT value FROM change_seq WHERE id = 1) WHERE rowid = NEW.rowid; " +
+                "END");
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS messages_seq_status AFTER UPDATE OF status ON messages " +
+                "WHEN NEW.status IS NOT OLD.status BEGIN " +
+                "UPDATE change_seq SET value = value + 1 WHERE id = 1; " +
+                "UPDATE messages SET seq = (SELECT value FROM change_seq WHERE id = 1) WHERE rowid = NEW.rowid; " +
+                "END");
+    }
+
+    // messages.origin_seq: 1, 2, 3... per (room, sender), assigned by the sender, so room sync can
+    // ask each member for exactly the sequence numbers it is missing. Rows from before this step,
+    // or from peers that don't number their messages, keep 0 and sync by Lamport clock; the partial
+    // index serves that clock order without carrying any of the numbered rows.
+    private static void originSeq(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE messages ADD COLUMN origin_seq INTEGER NOT NULL DEFAULT 0");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_origin ON messages(room_id, from_node_id, origin_seq)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_legacy_clock ON messages(room_id, clock, ts, msg_id) WHERE origin_seq = 0");
+        stmt.execute("CREATE TABLE IF NOT EXISTS room_vector (" +
+                "room_id TEXT NOT NULL, " +
+                "origin_node_id TEXT NOT NULL, " +
+                "seq INTEGER NOT NULL, " +
+                "PRIMARY KEY(room_id, origin_node_id)" +
+                ")");
+    }
+
+    // room_digest: one row per (room, clock bucket) holding the XOR of the bucket's message id
+    // hashes and their count; see RoomDigestDao. Filled from the existing rows once.
+    private static void roomDigest(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS room_digest (" +
+                "room_id TEXT NOT NULL, " +
+                "bucket INTEGER NOT NULL, " +
+                "hash INTEGER NOT NULL, " +
+                "count INTEGER NOT NULL, " +
+                "PRIMARY KEY(room_id, bucket)" +
+                ")");
+        RoomDigestDao.rebuild(stmt.getConnection());
+    }
+
+    // outbox.await_ack: the row is kept after its frame is written, until the peer ACKs msg_id;
+    // sent_at is when it was last written (0 = not yet). Rows from before this step don't wait.
+    private static void outboxAck(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE outbox ADD COLUMN await_ack INTEGER NOT NULL DEFAULT 0");
+        stmt.execute("ALTER TABLE outbox ADD COLUMN sent_at INTEGER NOT NULL DEFAULT 0");
+    }
+
+    private static void addColumnIfMissing(Statement stmt, String table, String column, String type) throws SQLException {
+        try (Statement info = stmt.getConnection().createStatement();
+             ResultSet rs = info.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return;
             }
-            stmt.execute("CREATE INDEX IF NOT EXISTS idx_room_members_room_id ON room_members(room_id)");
-
-            stmt.execute("CREATE TABLE IF NOT EXISTS room_member_events (" +
-                    "event_id TEXT PRIMARY KEY, " +
-                    "room_id TEXT, " +
-                    "op TEXT, " +
-                    "member_node_id TEXT, " +
-                    "clock_value TEXT, " +
-                    "ts INTEGER" +
-                    ")");
-
-            stmt.execute("CREATE TABLE IF NOT EXISTS room_cursor (" +
-                    "room_id TEXT PRIMARY KEY, " +
-                    "last_clock_value TEXT, " +
-                    "updated_at INTEGER" +
-                    ")");
+        }
+        stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
+
+    private static void inTransaction(Connection conn, Step step) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            step.run(stmt);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
         }
     }
 }
@@ -1,20 +1,19 @@
 package com.example.lanchat.store;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.List;
 
 public class SeenDao {
 
+    // True the first time msgId is seen. Backed by Db's SeenLog: an in-memory filter answers
+    // new ids without a query and the seen_messages insert happens in a later batch.
     public boolean markSeen(String msgId, long now) throws SQLException {
-        Connection conn = Db.getConnection();
-        String sql = "INSERT OR IGNORE INTO seen_messages (msg_id, first_seen_ts) VALUES (?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, msgId);
-            ps.setLong(2, now);
-            int changed = ps.executeUpdate();
-            return changed > 0;
-        }
+        return Db.seenLog().markSeen(msgId, now);
     }
-}
 
+    // Records a whole page directly in seen_messages (one executeBatch, joins the caller's
+    // transaction); ids already seen are ignored.
+    public void markSeenAll(List<String> msgIds, long now) throws SQLException {
+        Db.seenLog().markSeenAll(msgIds, now);
+    }
+}
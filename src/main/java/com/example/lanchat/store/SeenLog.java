@@ -0,0 +1,197 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.util.BloomFilter;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Front of seen_messages. Bloom filters holding every id in the table (plus pending ones)
+// answer "definitely new" without a query; only filter hits are checked against the table.
+// New ids are claimed in memory and inserted in batches by a background flusher.
+//
+// Filters rotate with the retention prune: each generation holds ids first seen in one slice of
+// SEEN_RETENTION_MS, and is dropped once Maintenance has pruned that slice from the table. Ids
+// older than the horizon are then new to the filter; a replay of one is caught when its insert
+// hits messages.msg_id.
+class SeenLog {
+
+    private static final class Generation {
+        // first_seen_ts / SLICE_MS of the newest id it may hold
+        final long slice;
+        final BloomFilter filter = new BloomFilter(Settings.SEEN_FILTER_MIN_CAPACITY, Settings.SEEN_FILTER_FPP);
+
+        Generation(long slice) {
+            this.slice = slice;
+        }
+    }
+
+    private static final long SLICE_MS = Math.max(1, Settings.SEEN_RETENTION_MS / Settings.SEEN_FILTER_GENERATIONS);
+
+    // Oldest first.
+    private final List<Generation> filters = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    SeenLog() throws SQLException {
+        warm(System.currentTimeMillis());
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lanchat-seen-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly,
+                Settings.SEEN_FLUSH_INTERVAL_MS, Settings.SEEN_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Only the rows the prune keeps, oldest first off idx_seen_messages_first_seen, so startup
+    // doesn't grow with the message history.
+    private void warm(long now) throws SQLException {
+        Db.read(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT msg_id, first_seen_ts FROM seen_messages WHERE first_seen_ts >= ? ORDER BY first_seen_ts")) {
+                ps.setLong(1, now - Settings.SEEN_RETENTION_MS);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        remember(rs.getString(1), rs.getLong(2));
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    boolean markSeen(String msgId, long now) throws SQLException {
+        if (mightContain(msgId)) {
+            if (pending.containsKey(msgId) || existsInTable(msgId)) return false;
+        }
+        if (pending.putIfAbsent(msgId, now) != null) return false;
+        remember(msgId, now);
+        if (pending.size() >= Settings.SEEN_FLUSH_BATCH) {
+            flusher.execute(this::flushQuietly);
+        }
+        return true;
+    }
+
+    void markSeenAll(List<String> msgIds, long now) throws SQLException {
+        if (msgIds.isEmpty()) return;
+        for (String msgId : msgIds) {
+            remember(msgId, now);
+        }
+        Db.execute(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "INSERT OR IGNORE INTO seen_messages (msg_id, first_seen_ts) VALUES (?, ?)");
+            for (String msgId : msgIds) {
+                ps.setString(1, msgId);
+                ps.setLong(2, now);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        });
+    }
+
+    private boolean mightContain(String msgId) {
+        for (Generation g : filters) {
+            if (g.filter.mightContain(msgId)) return true;
+        }
+        return false;
+    }
+
+    // A new generation starts with each slice, or sooner when the newest is at capacity. An id
+    // never goes into a generation older than its own slice, so dropping by slice is safe.
+    private void remember(String msgId, long firstSeenTs) {
+        long slice = Math.floorDiv(firstSeenTs, SLICE_MS);
+        Generation last = filters.isEmpty() ? null : filters.get(filters.size() - 1);
+        if (last == null || last.slice < slice || last.filter.isFull()) {
+            synchronized (filters) {
+                last = filters.isEmpty() ? null : filters.get(filters.size() - 1);
+                if (last == null || last.slice < slice || last.filter.isFull()) {
+                    last = new Generation(last == null ? slice : Math.max(slice, last.slice));
+                    filters.add(last);
+                }
+            }
+        }
+        last.filter.put(msgId);
+    }
+
+    // Called by Maintenance once seen_messages holds nothing first seen before cutoff.
+    void expire(long cutoff) {
+        synchronized (filters) {
+            for (Generation g : filters) {
+                if ((g.slice + 1) * SLICE_MS > cutoff) break;
+                filters.remove(g);
+            }
+        }
+    }
+
+    int generations() {
+        return filters.size();
+    }
+
+    private boolean existsInTable(String msgId) throws SQLException {
+        return Db.read(conn -> {
+            PreparedStatement ps = Db.prepare(conn, "SELECT 1 FROM seen_messages WHERE msg_id = ? " +
+                    "UNION ALL SELECT 1 FROM messages WHERE msg_id = ? LIMIT 1");
+            ps.setString(1, msgId);
+            ps.setString(2, msgId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        });
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            System.err.println("seen_messages flush failed: " + e.getMessage());
+        }
+    }
+
+    // Ids stay in pending until their insert is committed, so lookups never miss them.
+    synchronized void flush() throws SQLException {
+        while (!pending.isEmpty()) {
+            List<Map.Entry<String, Long>> batch = new ArrayList<>();
+            for (Map.Entry<String, Long> e : pending.entrySet()) {
+                batch.add(Map.entry(e.getKey(), e.getValue()));
+                if (batch.size() >= Settings.SEEN_FLUSH_BATCH) break;
+            }
+            if (batch.isEmpty()) return;
+            StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO seen_messages (msg_id, first_seen_ts) VALUES ");
+            for (int i = 0; i < batch.size(); i++) {
+                sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            }
+            // Row count varies per flush, so this one stays out of the statement cache.
+            Db.execute(conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                    int idx = 1;
+                    for (Map.Entry<String, Long> e : batch) {
+                        ps.setString(idx++, e.getKey());
+                        ps.setLong(idx++, e.getValue());
+                    }
+                    ps.executeUpdate();
+                }
+            });
+            for (Map.Entry<String, Long> e : batch) {
+                pending.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.lanchat.store;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Prepared statements kept open per connection, keyed by SQL text. A connection is only ever
+// used by one thread at a time (reader lease or the writer thread), so the map is unsynchronized.
+class StatementCache {
+
+    static final LongAdder HITS = new LongAdder();
+    static final LongAdder MISSES = new LongAdder();
+
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements;
+
+    StatementCache(Connection conn, int capacity) {
+        this.conn = conn;
+        this.statements = new LinkedHashMap<>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) return false;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps != null) {
+            HITS.increment();
+            ps.clearParameters();
+            return ps;
+        }
+        MISSES.increment();
+        ps = conn.prepareStatement(sql);
+        statements.put(sql, ps);
+        return ps;
+    }
+
+    void close() {
+        for (PreparedStatement ps : statements.values()) {
+            closeQuietly(ps);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.core.Settings;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.sqlite.SQLiteConfig;
+
+// One read-write connection confined to a writer thread, plus a fixed set of read-only
+// connections handed out one caller at a time. Work submitted from the writer thread itself
+// (nested DAO calls inside a write) runs inline on the writer connection.
+class Storage {
+
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
+    private final Connection writer;
+    private final ExecutorService writerThread;
+    private final List<Connection> readers = new ArrayList<>();
+    private final BlockingQueue<Connection> idleReaders;
+    private final Map<Connection, StatementCache> caches = new IdentityHashMap<>();
+    private volatile Thread writerOwner;
+
+    Storage(String url, int readConnections) throws SQLException {
+        writer = DriverManager.getConnection(url);
+        try (Statement stmt = writer.createStatement()) {
+            // Only takes effect on a new, empty file (so before WAL writes the header); older
+            // files keep auto_vacuum=NONE until a full VACUUM.
+            stmt.execute("PRAGMA auto_vacuum=INCREMENTAL;");
+            stmt.execute("PRAGMA journal_mode=WAL;");
+            stmt.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS + ";");
+            stmt.execute("PRAGMA journal_size_limit=" + Settings.DB_WAL_SIZE_LIMIT_BYTES + ";");
+        }
+        Schema.migrate(writer);
+        caches.put(writer, new StatementCache(writer, Settings.DB_STATEMENT_CACHE_SIZE));
+
+        idleReaders = new ArrayBlockingQueue<>(readConnections);
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setBusyTimeout(BUSY_TIMEOUT_MS);
+        try {
+            for (int i = 0; i < readConnections; i++) {
+                Connection reader = DriverManager.getConnection(url, config.toProperties());
+                readers.add(reader);
+                caches.put(reader, new StatementCache(reader, Settings.DB_STATEMENT_CACHE_SIZE));
+                idleReaders.add(reader);
+            }
+        } catch (SQLException e) {
+            closeAll();
+            throw e;
+        }
+
+        writerThread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "lanchat-db-writer");
+            t.setDaemon(true);
+            writerOwner = t;
+            return t;
+        });
+    }
+
+    <T> T read(Db.SqlWork<T> work) throws SQLException {
+        if (Thread.currentThread() == writerOwner) return work.run(writer);
+        Connection conn;
+        try {
+            conn = idleReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read connection", e);
+        }
+        try {
+            return work.run(conn);
+        } finally {
+            idleReaders.add(conn);
+        }
+    }
+
+    <T> T write(Db.SqlWork<T> work) throws SQLException {
+        if (Thread.currentThread() == writerOwner) return work.run(writer);
+        Future<T> f;
+        try {
+            f = writerThread.submit(() -> work.run(writer));
+        } catch (RejectedExecutionException e) {
+            throw new SQLException("Database is closed", e);
+        }
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for write", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        StatementCache cache = caches.get(conn);
+        if (cache == null) throw new IllegalStateException("Connection not owned by this Db");
+        return cache.prepare(sql);
+    }
+
+    void close() {
+        writerThread.shutdown();
+        try {
+            writerThread.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeAll();
+    }
+
+    private void closeAll() {
+        for (StatementCache cache : caches.values()) {
+            cache.close();
+        }
+        for (Connection reader : readers) {
+            try {
+                reader.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        try {
+            writer.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
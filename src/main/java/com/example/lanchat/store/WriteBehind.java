@@ -0,0 +1,130 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.store.PeerDao.Peer;
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+
+// Hot rows that are rewritten on every message or discovery beacon (conversation last_msg_ts,
+// room member last_seen, peer last_seen). Only the latest value per key is kept; changed keys
+// are written together in one transaction every WRITE_BEHIND_FLUSH_MS. The owning DAOs
+// overlay pending values on their reads, so callers never see the lag.
+class WriteBehind {
+
+    interface Writer<K, V> {
+        void write(Connection conn, List<Map.Entry<K, V>> batch) throws SQLException;
+    }
+
+    static final class Buffer<K, V> {
+        private final Map<K, V> pending = new ConcurrentHashMap<>();
+        private final BinaryOperator<V> merge;
+        private final Writer<K, V> writer;
+
+        Buffer(BinaryOperator<V> merge, Writer<K, V> writer) {
+            this.merge = merge;
+            this.writer = writer;
+        }
+
+        // merge must return a fresh value: flush only drops entries that are still the ones it wrote.
+        void put(K key, V value) {
+            pending.merge(key, value, merge);
+        }
+
+        V get(K key) {
+            return pending.get(key);
+        }
+
+        V remove(K key) {
+            return pending.remove(key);
+        }
+
+        boolean isEmpty() {
+            return pending.isEmpty();
+        }
+
+        // Readers take this before querying: a value flushed while the query runs is then still
+        // applied, rather than lost between the old snapshot the query sees and the buffer.
+        Map<K, V> snapshot() {
+            return pending.isEmpty() ? Map.of() : new HashMap<>(pending);
+        }
+
+        private Runnable write(Connection conn) throws SQLException {
+            List<Map.Entry<K, V>> batch = new ArrayList<>();
+            for (Map.Entry<K, V> e : pending.entrySet()) {
+                batch.add(Map.entry(e.getKey(), e.getValue()));
+            }
+            if (batch.isEmpty()) return () -> { };
+            writer.write(conn, batch);
+            return () -> {
+                for (Map.Entry<K, V> e : batch) {
+                    pending.remove(e.getKey(), e.getValue());
+                }
+            };
+        }
+    }
+
+    final Buffer<String, Long> conversationLastMsgTs = new Buffer<>((a, b) -> b, ConversationDao::writeLastMsgTs);
+    final Buffer<String, RoomMember> roomMembers = new Buffer<>(RoomMemberDao::merge, RoomMemberDao::writeMembers);
+    final Buffer<String, Peer> peers = new Buffer<>((a, b) -> b, PeerDao::writePeers);
+
+    private final List<Buffer<?, ?>> buffers = List.of(conversationLastMsgTs, roomMembers, peers);
+    private final ScheduledExecutorService flusher;
+
+    WriteBehind() {
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lanchat-write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly,
+                Settings.WRITE_BEHIND_FLUSH_MS, Settings.WRITE_BEHIND_FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            System.err.println("Write-behind flush failed: " + e.getMessage());
+        }
+    }
+
+    // Snapshots are taken on the writer thread, so an immediate write to the same key (which
+    // takes the key out of the buffer first) can never be overtaken by an older snapshot.
+    void flush() throws SQLException {
+        boolean empty = true;
+        for (Buffer<?, ?> b : buffers) {
+            empty &= b.isEmpty();
+        }
+        if (empty) return;
+        List<Runnable> committed = Db.transaction(conn -> {
+            List<Runnable> out = new ArrayList<>();
+            for (Buffer<?, ?> b : buffers) {
+                out.add(b.write(conn));
+            }
+            return out;
+        });
+        for (Runnable r : committed) {
+            r.run();
+        }
+    }
+
+    void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+}
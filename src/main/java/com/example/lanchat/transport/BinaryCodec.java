@@ -0,0 +1,257 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+// Protocol v2 frame: [int32 length][flags][type][protocolVersion][msgId][from][ts][clock][payload JSON].
+final class BinaryCodec {
+
+    private static final int HAS_MSG_ID = 1;
+    private static final int MSG_ID_UUID = 1 << 1;
+    private static final int HAS_FROM = 1 << 2;
+    private static final int FROM_NODE_UUID = 1 << 3;
+    private static final int HAS_PAYLOAD = 1 << 4;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_OTHER = 255;
+    private static final String[] TYPES = {
+            null,
+            MessageType.PRESENCE,
+            MessageType.HELLO,
+            MessageType.ERROR,
+            MessageType.CHAT,
+            MessageType.ACK,
+            MessageType.CHAT_TEST,
+            MessageType.JOIN_REQUEST,
+            MessageType.JOIN_ACCEPT,
+            MessageType.MEMBER_EVENT,
+            MessageType.SYNC_REQUEST,
+            MessageType.SYNC_RESPONSE,
+            MessageType.INVITE
+    };
+
+    private BinaryCodec() {
+    }
+
+    static byte[] encode(MessageEnvelope env) {
+        Out out = new Out(128);
+        out.writeInt(0);
+        int flags = 0;
+        byte[] msgUuid = env.msgId != null ? uuidBytes(env.msgId) : null;
+        byte[] fromUuid = env.from != null && env.from.nodeId != null ? uuidBytes(env.from.nodeId) : null;
+        if (env.msgId != null) flags |= HAS_MSG_ID;
+        if (msgUuid != null) flags |= MSG_ID_UUID;
+        if (env.from != null) flags |= HAS_FROM;
+        if (fromUuid != null) flags |= FROM_NODE_UUID;
+        if (env.payload != null) flags |= HAS_PAYLOAD;
+        out.writeByte(flags);
+
+        int typeCode = typeCode(env.type);
+        out.writeByte(typeCode);
+        if (typeCode == TYPE_OTHER) out.writeString(env.type);
+        out.writeVarLong(env.protocolVersion);
+
+        if (msgUuid != null) {
+            out.writeBytes(msgUuid, 0, 16);
+        } else if (env.msgId != null) {
+            out.writeString(env.msgId);
+        }
+        if (env.from != null) {
+            if (fromUuid != null) {
+                out.writeBytes(fromUuid, 0, 16);
+            } else {
+                out.writeString(env.from.nodeId);
+            }
+            out.writeString(env.from.name);
+        }
+        out.writeVarLong(env.ts);
+        out.writeVarLong(env.clock);
+        if (env.payload != null) {
+            byte[] json = Framing.GSON.toJson(env.payload).getBytes(StandardCharsets.UTF_8);
+            out.writeBytes(json, 0, json.length);
+        }
+
+        int bodyLen = out.size - 4;
+        out.buf[0] = (byte) (bodyLen >>> 24);
+        out.buf[1] = (byte) (bodyLen >>> 16);
+        out.buf[2] = (byte) (bodyLen >>> 8);
+        out.buf[3] = (byte) bodyLen;
+        return out.toByteArray();
+    }
+
+    static int bodyLength(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+    }
+
+    static MessageEnvelope decode(byte[] buf, int off, int len, Utf8Reader utf8) {
+        In in = new In(buf, off, off + len);
+        MessageEnvelope env = new MessageEnvelope();
+        int flags = in.readByte();
+        int typeCode = in.readByte();
+        if (typeCode == TYPE_OTHER) {
+            env.type = in.readString();
+        } else if (typeCode != TYPE_NULL) {
+            if (typeCode >= TYPES.length) throw new IllegalArgumentException("Unknown type code " + typeCode);
+            env.type = TYPES[typeCode];
+        }
+        env.protocolVersion = (int) in.readVarLong();
+
+        if ((flags & MSG_ID_UUID) != 0) {
+            env.msgId = in.readUuid();
+        } else if ((flags & HAS_MSG_ID) != 0) {
+            env.msgId = in.readString();
+        }
+        if ((flags & HAS_FROM) != 0) {
+            MessageEnvelope.NodeInfo from = new MessageEnvelope.NodeInfo();
+            from.nodeId = (flags & FROM_NODE_UUID) != 0 ? in.readUuid() : in.readString();
+            from.name = in.readString();
+            env.from = from;
+        }
+        env.ts = in.readVarLong();
+        env.clock = in.readVarLong();
+        if ((flags & HAS_PAYLOAD) != 0) {
+            env.payload = JsonParser.parseReader(utf8.reset(buf, in.pos, in.end - in.pos));
+        }
+        return env;
+    }
+
+    private static int typeCode(String type) {
+        if (type == null) return TYPE_NULL;
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) return i;
+        }
+        return TYPE_OTHER;
+    }
+
+    private static byte[] uuidBytes(String s) {
+        if (s.length() != 36) return null;
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(s);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!uuid.toString().equals(s)) return null;
+        byte[] b = new byte[16];
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            b[i] = (byte) (msb >>> (56 - 8 * i));
+            b[8 + i] = (byte) (lsb >>> (56 - 8 * i));
+        }
+        return b;
+    }
+
+    private static final class Out {
+        byte[] buf;
+        int size;
+
+        Out(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void ensure(int extra) {
+            if (size + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >>> 24);
+            buf[size++] = (byte) (v >>> 16);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void writeVarLong(long v) {
+            long z = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((z & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((z & 0x7F) | 0x80);
+                z >>>= 7;
+            }
+            buf[size++] = (byte) z;
+        }
+
+        void writeBytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        // Length is stored +1 so that 0 can mean null.
+        void writeString(String s) {
+            if (s == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(b.length + 1L);
+            writeBytes(b, 0, b.length);
+        }
+
+        byte[] toByteArray() {
+            return size == buf.length ? buf : Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static final class In {
+        final byte[] buf;
+        final int end;
+        int pos;
+
+        In(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int readByte() {
+            if (pos >= end) throw new IllegalArgumentException("Truncated frame");
+            return buf[pos++] & 0xff;
+        }
+
+        long readVarLong() {
+            long z = 0;
+            int shift = 0;
+            while (true) {
+                int b = readByte();
+                z |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+                shift += 7;
+                if (shift > 63) throw new IllegalArgumentException("Bad varint");
+            }
+            return (z >>> 1) ^ -(z & 1);
+        }
+
+        String readString() {
+            long n = readVarLong();
+            if (n == 0) return null;
+            int len = (int) (n - 1);
+            if (len < 0 || pos + len > end) throw new IllegalArgumentException("Truncated frame");
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        String readUuid() {
+            if (pos + 16 > end) throw new IllegalArgumentException("Truncated frame");
+            long msb = 0;
+            long lsb = 0;
+            for (int i = 0; i < 8; i++) {
+                msb = (msb << 8) | (buf[pos + i] & 0xff);
+                lsb = (lsb << 8) | (buf[pos + 8 + i] & 0xff);
+            }
+            pos += 16;
+            return new UUID(msb, lsb).toString();
+        }
+    }
+}
@@ -6,21 +6,18 @@ import com.example.lanchat.protocol.MessageEnvelope;
 import com.example.lanchat.protocol.MessageType;
 import com.example.lanchat.store.IdentityDao.Identity;
 import com.example.lanchat.store.PeerDao;
-import com.example.lanchat.util.LruTtlSet;
-import com.example.lanchat.util.Net;
+import com.example.lanchat.util.BucketedTtlSet;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class Connection implements AutoCloseable {
+public abstract class Connection implements AutoCloseable {
 
     public interface MessageHandler {
         void onMessage(PeerInfo remote, MessageEnvelope message);
@@ -31,42 +28,43 @@ public class Connection implements AutoCloseable {
         void onClosed(Connection conn);
     }
 
-    private final Socket socket;
     private final Identity localIdentity;
     private final PeerDao peerDao;
-    private final LruTtlSet seenMsgIds;
+    private final BucketedTtlSet seenMsgIds;
     private final MessageHandler messageHandler;
     private final HandshakeListener handshakeListener;
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final CountDownLatch handshakeDone = new CountDownLatch(1);
-    private final BufferedInputStream in;
-    private final BufferedOutputStream out;
+    private final OutboundQueue outbound = new OutboundQueue();
 
     private volatile PeerInfo remotePeer;
+    private volatile boolean handshaken;
+    private volatile int wireVersion = Framing.PROTOCOL_V1;
     private volatile long lastActiveAtMs;
 
-    public Connection(
-            Socket socket,
+    protected Connection(
             Identity localIdentity,
             PeerDao peerDao,
-            LruTtlSet seenMsgIds,
+            BucketedTtlSet seenMsgIds,
             MessageHandler messageHandler,
             HandshakeListener handshakeListener
-    ) throws IOException {
-        this.socket = socket;
+    ) {
         this.localIdentity = localIdentity;
         this.peerDao = peerDao;
         this.seenMsgIds = seenMsgIds;
         this.messageHandler = messageHandler;
         this.handshakeListener = handshakeListener;
-        this.in = Framing.wrapIn(socket.getInputStream());
-        this.out = Framing.wrapOut(socket.getOutputStream());
         this.lastActiveAtMs = System.currentTimeMillis();
     }
 
-    public Socket socket() {
-        return socket;
-    }
+    public abstract String remoteIp();
+
+    public abstract String formatRemote();
+
+    // Called when a frame was queued and no writer currently owns the queue.
+    protected abstract void scheduleFlush();
+
+    protected abstract void closeTransport();
 
     public PeerInfo remotePeer() {
         return remotePeer;
@@ -80,73 +78,90 @@ public class Connection implements AutoCloseable {
         return closed.get();
     }
 
+    public boolean isHandshaken() {
+        return handshaken;
+    }
+
+    public int wireVersion() {
+        return wireVersion;
+    }
+
+    public int outboundDepth() {
+        return outbound.depth();
+    }
+
+    OutboundQueue outbound() {
+        return outbound;
+    }
+
+    // Both sides send HELLO as v1 and then switch to the highest version both advertise.
+    static int negotiateVersion(MessageEnvelope hello) {
+        if (hello.payload == null || !hello.payload.isJsonObject()) return Framing.PROTOCOL_V1;
+        JsonObject payload = hello.payload.getAsJsonObject();
+        if (!payload.has("supportedVersions") || !payload.get("supportedVersions").isJsonArray()) return Framing.PROTOCOL_V1;
+        int best = Framing.PROTOCOL_V1;
+        JsonArray arr = payload.getAsJsonArray("supportedVersions");
+        for (int i = 0; i < arr.size(); i++) {
+            int v = arr.get(i).getAsInt();
+            if (v > best && v <= Framing.MAX_SUPPORTED_VERSION) best = v;
+        }
+        return best;
+    }
+
     public boolean awaitHandshake(long timeoutMs) throws InterruptedException {
         return handshakeDone.await(timeoutMs, TimeUnit.MILLISECONDS);
     }
 
-    public void runReadLoop() {
-        try {
-            socket.setSoTimeout(Settings.HELLO_TIMEOUT_MS);
-            sendHello();
-            MessageEnvelope first = readNext();
-            if (first == null) {
-                close();
-                return;
-            }
-            if (!MessageType.HELLO.equals(first.type)) {
+    protected void onFrame(MessageEnvelope msg) {
+        if (msg == null || isClosed()) return;
+        lastActiveAtMs = System.currentTimeMillis();
+        if (!handshaken) {
+            if (!MessageType.HELLO.equals(msg.type)) {
                 sendErrorAndClose(Errors.BAD_MESSAGE, "Expected HELLO");
                 return;
             }
-            if (!handleHello(first)) {
+            if (!handleHello(msg)) {
                 return;
             }
-
-            handshakeDone.countDown();
+            handshaken = true;
+            // Register before releasing awaitHandshake so callers never dial a second connection.
             handshakeListener.onHandshakeSuccess(this, remotePeer);
-            socket.setSoTimeout(0);
+            handshakeDone.countDown();
+            return;
+        }
 
-            while (!isClosed()) {
-                MessageEnvelope msg = readNext();
-                if (msg == null) {
-                    close();
-                    return;
-                }
-                lastActiveAtMs = System.currentTimeMillis();
-                if (msg.msgId != null) {
-                    boolean firstSeen = seenMsgIds.addIfAbsent(msg.msgId, lastActiveAtMs);
-                    if (!firstSeen) {
-                        continue;
-                    }
-                }
-                if (MessageType.HELLO.equals(msg.type)) {
-                    continue;
-                }
-                if (MessageType.ERROR.equals(msg.type)) {
-                    continue;
-                }
-                PeerInfo rp = remotePeer;
-                if (rp != null && messageHandler != null) {
-                    messageHandler.onMessage(rp, msg);
-                }
+        if (msg.msgId != null && !awaitsAck(msg)) {
+            boolean firstSeen = seenMsgIds.addIfAbsent(msg.msgId, lastActiveAtMs);
+            if (!firstSeen) {
+                return;
             }
-        } catch (Framing.FrameTooLargeException e) {
-            sendErrorAndClose(Errors.TOO_LARGE, "Frame too large: " + e.sizeBytes);
-        } catch (IOException e) {
-            close();
-        } catch (Exception e) {
-            close();
+        }
+        if (MessageType.HELLO.equals(msg.type)) {
+            return;
+        }
+        if (MessageType.ERROR.equals(msg.type)) {
+            return;
+        }
+        PeerInfo rp = remotePeer;
+        if (rp != null && messageHandler != null) {
+            messageHandler.onMessage(rp, msg);
         }
     }
 
-    private MessageEnvelope readNext() throws IOException, Framing.FrameTooLargeException {
-        MessageEnvelope msg = Framing.readMessage(in);
-        if (msg != null) {
-            lastActiveAtMs = System.currentTimeMillis();
-        }
-        return msg;
+    // Private chat messages pass the msgId dedup: the sender's outbox writes one again until it
+    // gets the ACK, so a repeat must reach MessageService to be ACKed again after a lost ACK.
+    // Storing it twice is prevented there.
+    private static boolean awaitsAck(MessageEnvelope msg) {
+        if (!MessageType.CHAT.equals(msg.type) || msg.payload == null || !msg.payload.isJsonObject()) return false;
+        JsonObject payload = msg.payload.getAsJsonObject();
+        return payload.has("chatType") && "PRIVATE".equals(payload.get("chatType").getAsString());
     }
 
-    private void sendHello() throws IOException, Framing.FrameTooLargeException {
+    protected void onFrameTooLarge(int sizeBytes) {
+        sendErrorAndClose(Errors.TOO_LARGE, "Frame too large: " + sizeBytes);
+    }
+
+    protected void sendHello() throws IOException, Framing.FrameTooLargeException {
         MessageEnvelope env = new MessageEnvelope();
         env.protocolVersion = 1;
         env.type = MessageType.HELLO;
@@ -157,11 +172,14 @@ public class Connection implements AutoCloseable {
         JsonObject payload = new JsonObject();
         payload.addProperty("p2pPort", localIdentity.p2pPort);
         JsonArray supported = new JsonArray();
-        supported.add(1);
+        for (int v = Framing.PROTOCOL_V1; v <= Framing.MAX_SUPPORTED_VERSION; v++) {
+            supported.add(v);
+        }
         payload.add("supportedVersions", supported);
         env.payload = payload;
 
-        send(env);
+        // Always v1: the peer's HELLO may already have switched wireVersion.
+        enqueue(Framing.encode(env, Framing.PROTOCOL_V1));
     }
 
     private boolean handleHello(MessageEnvelope hello) {
@@ -199,30 +217,40 @@ public class Connection implements AutoCloseable {
             }
         }
 
-        String ip = socket.getInetAddress().getHostAddress();
-        PeerInfo rp = new PeerInfo(hello.from.nodeId, hello.from.name, ip, p2pPort);
+        PeerInfo rp = new PeerInfo(hello.from.nodeId, hello.from.name, remoteIp(), p2pPort);
         this.remotePeer = rp;
+        this.wireVersion = negotiateVersion(hello);
 
         try {
-            peerDao.upsertPeer(rp.nodeId, rp.name, rp.ip, rp.p2pPort, System.currentTimeMillis());
+            peerDao.touchPeer(rp.nodeId, rp.name, rp.ip, rp.p2pPort, System.currentTimeMillis());
         } catch (Exception ignored) {
         }
-        System.out.println("Handshake OK: " + Net.formatRemote(socket) + " => " + rp);
+        System.out.println("Handshake OK: " + formatRemote() + " => " + rp + " v" + wireVersion);
         return true;
     }
 
-    public void send(MessageEnvelope env) throws IOException, Framing.FrameTooLargeException {
+    // Queues the frame and returns once it is encoded; the future completes when it hit the socket.
+    public CompletableFuture<Void> send(MessageEnvelope env) throws IOException, Framing.FrameTooLargeException {
         Objects.requireNonNull(env, "env");
-        synchronized (out) {
-            Framing.writeMessage(out, env);
-        }
+        return enqueue(Framing.encode(env, wireVersion));
+    }
+
+    public CompletableFuture<Void> send(EncodedEnvelope encoded) throws IOException, Framing.FrameTooLargeException {
+        return enqueue(encoded.bytes(wireVersion));
+    }
+
+    private CompletableFuture<Void> enqueue(byte[] frame) throws IOException {
+        if (isClosed()) throw new IOException("Connection closed");
+        OutboundQueue.Frame f = outbound.offer(frame);
+        if (outbound.claim()) scheduleFlush();
+        return f.done;
     }
 
-    private void sendErrorAndClose(String code, String message) {
+    protected void sendErrorAndClose(String code, String message) {
         try {
             MessageEnvelope.NodeInfo from = new MessageEnvelope.NodeInfo(localIdentity.nodeId, localIdentity.displayName);
             MessageEnvelope err = Errors.buildError(from, code, message);
-            send(err);
+            send(err).get(Settings.PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         } catch (Exception ignored) {
         } finally {
             close();
@@ -232,11 +260,11 @@ public class Connection implements AutoCloseable {
     @Override
     public void close() {
         if (!closed.compareAndSet(false, true)) return;
-        Net.safeClose(socket);
+        closeTransport();
         handshakeDone.countDown();
         if (handshakeListener != null) {
             handshakeListener.onClosed(this);
         }
-        System.out.println("Connection closed: " + Net.formatRemote(socket));
+        System.out.println("Connection closed: " + formatRemote());
     }
 }
@@ -3,53 +3,70 @@ package com.example.lanchat.transport;
 import com.example.lanchat.core.Settings;
 import com.example.lanchat.store.IdentityDao.Identity;
 import com.example.lanchat.store.PeerDao;
-import com.example.lanchat.util.LruTtlSet;
+import com.example.lanchat.util.BucketedTtlSet;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 public class ConnectionManager implements Connection.HandshakeListener {
 
     private final Identity identity;
     private final PeerDao peerDao;
-    private final LruTtlSet seenMsgIds;
+    private final BucketedTtlSet seenMsgIds;
     private final ExecutorService ioPool;
+    private final NioEventLoopGroup eventLoops;
     private volatile Connection.MessageHandler messageHandler;
+    private volatile Consumer<PeerInfo> connectedListener;
     private final Map<String, Connection> byPeerNodeId = new ConcurrentHashMap<>();
+    private final Map<String, Connection> byAddr = new ConcurrentHashMap<>();
+    // In-flight dials keyed by "node:<nodeId>" or "addr:<ip>:<port>"; late callers share the result.
+    private final Map<String, CompletableFuture<Connection>> dialing = new ConcurrentHashMap<>();
 
-    public ConnectionManager(Identity identity, PeerDao peerDao, LruTtlSet seenMsgIds, ExecutorService ioPool) {
+    public ConnectionManager(Identity identity, PeerDao peerDao, BucketedTtlSet seenMsgIds, ExecutorService ioPool) {
+        this(identity, peerDao, seenMsgIds, ioPool, null);
+    }
+
+    public ConnectionManager(Identity identity, PeerDao peerDao, BucketedTtlSet seenMsgIds, ExecutorService ioPool, NioEventLoopGroup eventLoops) {
         this.identity = identity;
         this.peerDao = peerDao;
         this.seenMsgIds = seenMsgIds;
         this.ioPool = ioPool;
+        this.eventLoops = eventLoops;
     }
 
     public void setMessageHandler(Connection.MessageHandler messageHandler) {
         this.messageHandler = messageHandler;
     }
 
+    public void setConnectedListener(Consumer<PeerInfo> connectedListener) {
+        this.connectedListener = connectedListener;
+    }
+
     public Connection getByPeerNodeId(String peerNodeId) {
         return byPeerNodeId.get(peerNodeId);
     }
 
+    public int connectionCount() {
+        return byPeerNodeId.size();
+    }
+
     public Connection getByAddr(String ip, int port) {
-        for (Connection c : byPeerNodeId.values()) {
-            PeerInfo rp = c.remotePeer();
-            if (rp == null) continue;
-            if (rp.p2pPort == port && rp.ip.equals(ip) && !c.isClosed()) {
-                return c;
-            }
-        }
-        return null;
+        Connection c = byAddr.get(addrKey(ip, port));
+        return c != null && !c.isClosed() ? c : null;
+    }
+
+    private static String addrKey(String ip, int port) {
+        return ip + ":" + port;
     }
 
     public Connection connectTo(String ip, int port) throws Exception {
-        Socket socket = new Socket();
-        socket.connect(new InetSocketAddress(ip, port), Settings.PROBE_TIMEOUT_MS);
-        Connection conn = new Connection(socket, identity, peerDao, seenMsgIds, messageHandler, this);
-        ioPool.submit(conn::runReadLoop);
+        Connection conn = eventLoops != null ? connectNio(ip, port) : connectBlocking(ip, port);
         boolean ok = conn.awaitHandshake(Settings.HELLO_TIMEOUT_MS);
         if (!ok || conn.remotePeer() == null) {
             conn.close();
@@ -58,24 +75,79 @@ public class ConnectionManager implements Connection.HandshakeListener {
         return conn;
     }
 
-    public Connection getOrConnect(String peerNodeId, String ip, int port) throws Exception {
-        Connection existing = byPeerNodeId.get(peerNodeId);
-        if (existing != null && !existing.isClosed() && existing.remotePeer() != null) {
-            return existing;
+    private Connection connectBlocking(String ip, int port) throws Exception {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(ip, port), Settings.PROBE_TIMEOUT_MS);
+        SocketConnection conn = new SocketConnection(socket, identity, peerDao, seenMsgIds, messageHandler, this);
+        ioPool.submit(conn::runReadLoop);
+        return conn;
+    }
+
+    private Connection connectNio(String ip, int port) throws Exception {
+        NioConnection conn = eventLoops.connect(ip, port, identity, peerDao, seenMsgIds, messageHandler, this);
+        try {
+            conn.awaitConnect(Settings.PROBE_TIMEOUT_MS);
+        } catch (Exception e) {
+            conn.close();
+            throw e;
         }
-        Connection conn = connectTo(ip, port);
+        return conn;
+    }
+
+    public Connection getOrConnect(String peerNodeId, String ip, int port) throws Exception {
+        Connection existing = usable(byPeerNodeId.get(peerNodeId));
+        if (existing != null) return existing;
+        Connection conn = singleFlight("node:" + peerNodeId, () -> {
+            Connection c = usable(byPeerNodeId.get(peerNodeId));
+            return c != null ? c : getOrConnectAddr(ip, port);
+        });
         PeerInfo rp = conn.remotePeer();
         if (rp == null) {
-            conn.close();
             throw new IllegalStateException("No remote peer");
         }
         if (!peerNodeId.equals(rp.nodeId)) {
-            conn.close();
+            // Someone else lives at that address now; the connection stays up for them.
             throw new IllegalStateException("peerNodeId mismatch");
         }
         return conn;
     }
 
+    public Connection getOrConnectAddr(String ip, int port) throws Exception {
+        Connection existing = usable(getByAddr(ip, port));
+        if (existing != null) return existing;
+        return singleFlight("addr:" + addrKey(ip, port), () -> {
+            Connection c = usable(getByAddr(ip, port));
+            return c != null ? c : connectTo(ip, port);
+        });
+    }
+
+    private static Connection usable(Connection c) {
+        return c != null && !c.isClosed() && c.remotePeer() != null ? c : null;
+    }
+
+    private Connection singleFlight(String key, Callable<Connection> dial) throws Exception {
+        CompletableFuture<Connection> mine = new CompletableFuture<>();
+        CompletableFuture<Connection> inflight = dialing.putIfAbsent(key, mine);
+        if (inflight != null) {
+            try {
+                return inflight.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception cause) throw cause;
+                throw e;
+            }
+        }
+        try {
+            Connection c = dial.call();
+            mine.complete(c);
+            return c;
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            dialing.remove(key, mine);
+        }
+    }
+
     @Override
     public void onHandshakeSuccess(Connection conn, PeerInfo remote) {
         if (remote == null) return;
@@ -87,6 +159,9 @@ public class ConnectionManager implements Connection.HandshakeListener {
             }
             return conn;
         });
+        byAddr.put(addrKey(remote.ip, remote.p2pPort), conn);
+        Consumer<PeerInfo> listener = connectedListener;
+        if (listener != null) listener.accept(remote);
     }
 
     @Override
@@ -94,6 +169,7 @@ public class ConnectionManager implements Connection.HandshakeListener {
         PeerInfo remote = conn.remotePeer();
         if (remote == null) return;
         byPeerNodeId.remove(remote.nodeId, conn);
+        byAddr.remove(addrKey(remote.ip, remote.p2pPort), conn);
     }
 
     public void closeAll() {
@@ -104,5 +180,6 @@ public class ConnectionManager implements Connection.HandshakeListener {
             }
         }
         byPeerNodeId.clear();
+        byAddr.clear();
     }
 }
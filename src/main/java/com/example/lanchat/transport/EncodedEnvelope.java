@@ -0,0 +1,27 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+
+// One envelope sent to many connections: encoded at most once per wire version.
+public final class EncodedEnvelope {
+
+    private final MessageEnvelope env;
+    private final byte[][] byVersion = new byte[Framing.MAX_SUPPORTED_VERSION + 1][];
+
+    public EncodedEnvelope(MessageEnvelope env) {
+        this.env = env;
+    }
+
+    public MessageEnvelope envelope() {
+        return env;
+    }
+
+    synchronized byte[] bytes(int version) throws Framing.FrameTooLargeException {
+        byte[] b = byVersion[version];
+        if (b == null) {
+            b = Framing.encode(env, version);
+            byVersion[version] = b;
+        }
+        return b;
+    }
+}
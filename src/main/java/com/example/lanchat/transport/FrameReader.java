@@ -0,0 +1,142 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+// Per-connection: one reusable buffer, leftover bytes kept between frames, frames decoded in place.
+// Starts in protocol v1 (JSON lines); switched to v2 (length-prefixed binary) once HELLO negotiates it.
+public final class FrameReader {
+
+    private static final int INITIAL_BUFFER_BYTES = 8 * 1024;
+
+    private final int maxFrameBytes;
+    private final Utf8Reader utf8 = new Utf8Reader();
+    private byte[] buf;
+    private int start;
+    private int end;
+    private int scanFrom;
+    private int version = Framing.PROTOCOL_V1;
+
+    public FrameReader(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+        this.buf = new byte[Math.min(INITIAL_BUFFER_BYTES, maxFrameBytes + 4)];
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+        this.scanFrom = start;
+    }
+
+    public MessageEnvelope read(InputStream in) throws IOException, Framing.FrameTooLargeException {
+        while (true) {
+            MessageEnvelope msg = next();
+            if (msg != null) return msg;
+            ensureWritable();
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                return finish();
+            }
+            end += n;
+        }
+    }
+
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureWritable();
+        int n = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+        if (n > 0) end += n;
+        return n;
+    }
+
+    public MessageEnvelope next() throws Framing.FrameTooLargeException {
+        if (version == Framing.PROTOCOL_V2) return nextBinary();
+        while (true) {
+            int nl = indexOfNewline(scanFrom, end);
+            if (nl < 0) {
+                scanFrom = end;
+                if (end - start > maxFrameBytes) {
+                    throw new Framing.FrameTooLargeException(end - start);
+                }
+                return null;
+            }
+            int len = nl - start;
+            if (len > maxFrameBytes) {
+                throw new Framing.FrameTooLargeException(len);
+            }
+            int off = start;
+            start = nl + 1;
+            scanFrom = start;
+            MessageEnvelope msg = len == 0 ? null : decode(off, len);
+            if (start == end) {
+                start = 0;
+                end = 0;
+                scanFrom = 0;
+            }
+            if (msg != null) return msg;
+        }
+    }
+
+    private MessageEnvelope nextBinary() throws Framing.FrameTooLargeException {
+        if (end - start < 4) return null;
+        int len = BinaryCodec.bodyLength(buf, start);
+        if (len < 0 || len > maxFrameBytes) {
+            throw new Framing.FrameTooLargeException(len);
+        }
+        if (end - start - 4 < len) return null;
+        int off = start + 4;
+        start = off + len;
+        MessageEnvelope msg = BinaryCodec.decode(buf, off, len, utf8);
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        scanFrom = start;
+        return msg;
+    }
+
+    private MessageEnvelope finish() throws Framing.FrameTooLargeException {
+        if (version == Framing.PROTOCOL_V2) return null;
+        int len = end - start;
+        if (len == 0) return null;
+        if (len > maxFrameBytes) throw new Framing.FrameTooLargeException(len);
+        MessageEnvelope msg = decode(start, len);
+        start = 0;
+        end = 0;
+        scanFrom = 0;
+        return msg;
+    }
+
+    private MessageEnvelope decode(int off, int len) {
+        return Framing.GSON.fromJson(utf8.reset(buf, off, len), MessageEnvelope.class);
+    }
+
+    private int indexOfNewline(int from, int to) {
+        byte[] b = buf;
+        for (int i = from; i < to; i++) {
+            if (b[i] == '\n') return i;
+        }
+        return -1;
+    }
+
+    private void ensureWritable() {
+        if (end < buf.length) return;
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            scanFrom -= start;
+            start = 0;
+            return;
+        }
+        int cap = maxFrameBytes + 4;
+        if (buf.length < cap) {
+            buf = Arrays.copyOf(buf, Math.min(buf.length * 2, cap));
+        }
+    }
+}
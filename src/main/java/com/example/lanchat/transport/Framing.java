@@ -3,74 +3,60 @@ package com.example.lanchat.transport;
 import com.example.lanchat.core.Settings;
 import com.example.lanchat.protocol.MessageEnvelope;
 import com.google.gson.Gson;
-import java.io.BufferedInputStream;
+import com.google.gson.JsonElement;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public final class Framing {
 
-    private static final Gson GSON = new Gson();
+    public static final int PROTOCOL_V1 = 1;
+    public static final int PROTOCOL_V2 = 2;
+    public static final int MAX_SUPPORTED_VERSION = PROTOCOL_V2;
 
-    private Framing() {
-    }
+    // Upper bound for one coalesced write; larger backlogs are flushed in several batches.
+    static final int MAX_BATCH_FRAMES = 256;
+    static final long MAX_BATCH_BYTES = 256 * 1024;
+
+    static final Gson GSON = new Gson();
 
-    public static BufferedInputStream wrapIn(InputStream in) {
-        return new BufferedInputStream(in);
+    private Framing() {
     }
 
     public static BufferedOutputStream wrapOut(OutputStream out) {
-        return new BufferedOutputStream(out);
+        return new BufferedOutputStream(out, 64 * 1024);
     }
 
-    public static MessageEnvelope readMessage(BufferedInputStream in) throws IOException, FrameTooLargeException {
-        byte[] line = readLineBytes(in, Settings.MAX_MESSAGE_BYTES);
-        if (line == null) return null;
-        String json = new String(line, StandardCharsets.UTF_8);
-        return GSON.fromJson(json, MessageEnvelope.class);
+    public static byte[] encode(MessageEnvelope env, int version) throws FrameTooLargeException {
+        if (version != PROTOCOL_V2) return encode(env);
+        byte[] frame = BinaryCodec.encode(env);
+        if (frame.length - 4 > Settings.MAX_MESSAGE_BYTES) {
+            throw new FrameTooLargeException(frame.length - 4);
+        }
+        return frame;
     }
 
-    public static void writeMessage(BufferedOutputStream out, MessageEnvelope env) throws IOException, FrameTooLargeException {
+    public static byte[] encode(MessageEnvelope env) throws FrameTooLargeException {
         String json = GSON.toJson(env);
         byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
         if (bytes.length > Settings.MAX_MESSAGE_BYTES) {
             throw new FrameTooLargeException(bytes.length);
         }
-        out.write(bytes);
-        out.write('\n');
-        out.flush();
+        byte[] frame = Arrays.copyOf(bytes, bytes.length + 1);
+        frame[bytes.length] = '\n';
+        return frame;
     }
 
-    private static byte[] readLineBytes(BufferedInputStream in, int maxBytes) throws IOException, FrameTooLargeException {
-        int b;
-        int count = 0;
-        byte[] buf = new byte[Math.min(1024, maxBytes)];
-        while (true) {
-            b = in.read();
-            if (b == -1) {
-                if (count == 0) return null;
-                break;
-            }
-            if (b == '\n') {
-                break;
-            }
-            if (count >= maxBytes) {
-                throw new FrameTooLargeException(count + 1);
-            }
-            if (count == buf.length) {
-                int newLen = Math.min(buf.length * 2, maxBytes);
-                byte[] nb = new byte[newLen];
-                System.arraycopy(buf, 0, nb, 0, buf.length);
-                buf = nb;
-            }
-            buf[count++] = (byte) b;
-        }
-        if (count == 0) return new byte[0];
-        byte[] out = new byte[count];
-        System.arraycopy(buf, 0, out, 0, count);
-        return out;
+    // Size of a JSON value as both wire versions write it (HTML-escaped, UTF-8).
+    public static int jsonBytes(JsonElement json) {
+        return GSON.toJson(json).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    public static void writeMessage(BufferedOutputStream out, MessageEnvelope env) throws IOException, FrameTooLargeException {
+        out.write(encode(env));
+        out.flush();
     }
 
     public static class FrameTooLargeException extends Exception {
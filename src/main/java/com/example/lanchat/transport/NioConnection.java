@@ -0,0 +1,237 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.store.PeerDao;
+import com.example.lanchat.util.BucketedTtlSet;
+import com.example.lanchat.util.Net;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioConnection extends Connection implements NioEventLoop.Handler {
+
+    private final SocketChannel channel;
+    private final InetSocketAddress remoteAddress;
+    private final NioEventLoop loop;
+    private final NioEventLoopGroup group;
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+
+    // Owned by the event loop thread.
+    private final FrameReader reader = new FrameReader(Settings.MAX_MESSAGE_BYTES);
+    private boolean helloRead;
+    private SelectionKey key;
+    private final ArrayDeque<OutboundQueue.Frame> writing = new ArrayDeque<>();
+    private ByteBuffer[] gather = new ByteBuffer[16];
+
+    private final ConcurrentLinkedQueue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean inboundScheduled = new AtomicBoolean(false);
+
+    NioConnection(
+            SocketChannel channel,
+            InetSocketAddress remoteAddress,
+            NioEventLoop loop,
+            NioEventLoopGroup group,
+            Identity localIdentity,
+            PeerDao peerDao,
+            BucketedTtlSet seenMsgIds,
+            MessageHandler messageHandler,
+            HandshakeListener handshakeListener
+    ) {
+        super(localIdentity, peerDao, seenMsgIds, messageHandler, handshakeListener);
+        this.channel = channel;
+        this.remoteAddress = remoteAddress;
+        this.loop = loop;
+        this.group = group;
+    }
+
+    @Override
+    public String remoteIp() {
+        return remoteAddress.getAddress().getHostAddress();
+    }
+
+    @Override
+    public String formatRemote() {
+        return remoteIp() + ":" + remoteAddress.getPort();
+    }
+
+    public void awaitConnect(long timeoutMs) throws IOException, InterruptedException {
+        try {
+            connected.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("connect timed out");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new ConnectException(String.valueOf(e.getCause()));
+        }
+    }
+
+    // Loop thread only; the channel is registered with no interest ops until this runs.
+    void activate(SelectionKey key) {
+        this.key = key;
+        if (isClosed()) {
+            Net.safeClose(channel);
+            return;
+        }
+        try {
+            key.interestOps(outboundDepth() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            connected.complete(null);
+            sendHello();
+            group.scheduleHandshakeTimeout(this);
+        } catch (Exception e) {
+            onFailure(e);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                activate(key);
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flushOutbound();
+        }
+    }
+
+    @Override
+    public void onFailure(Exception e) {
+        connected.completeExceptionally(e);
+        close();
+    }
+
+    private void read() throws IOException {
+        int n = reader.readFrom(channel);
+        try {
+            MessageEnvelope msg;
+            while ((msg = reader.next()) != null) {
+                if (!helloRead && MessageType.HELLO.equals(msg.type)) {
+                    helloRead = true;
+                    reader.setVersion(negotiateVersion(msg));
+                }
+                MessageEnvelope frame = msg;
+                dispatch(() -> onFrame(frame));
+            }
+        } catch (Framing.FrameTooLargeException e) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            dispatch(() -> onFrameTooLarge(e.sizeBytes));
+            return;
+        } catch (RuntimeException e) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            dispatch(this::close);
+            return;
+        }
+        if (n < 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            dispatch(this::close);
+        }
+    }
+
+    // Frames are handled on the worker pool, one at a time per connection, so handlers may block.
+    private void dispatch(Runnable task) {
+        inbound.add(task);
+        if (inboundScheduled.compareAndSet(false, true)) {
+            group.workers().execute(this::drainInbound);
+        }
+    }
+
+    private void drainInbound() {
+        while (true) {
+            Runnable task;
+            while ((task = inbound.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    close();
+                }
+            }
+            inboundScheduled.set(false);
+            if (inbound.isEmpty() || !inboundScheduled.compareAndSet(false, true)) return;
+        }
+    }
+
+    @Override
+    protected void scheduleFlush() {
+        loop.execute(() -> {
+            try {
+                flushOutbound();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    // Loop thread only. Everything queued goes out in gathering writes; the drain claim is held
+    // until the queue is empty, so a partial write just waits for OP_WRITE.
+    private void flushOutbound() throws IOException {
+        if (key == null || !key.isValid() || !channel.isConnected()) return;
+        OutboundQueue queue = outbound();
+        while (true) {
+            queue.drainTo(writing, Framing.MAX_BATCH_FRAMES, Framing.MAX_BATCH_BYTES);
+            if (writing.isEmpty()) {
+                if (queue.release()) continue;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+            if (gather.length < writing.size()) gather = new ByteBuffer[Math.max(writing.size(), gather.length * 2)];
+            int count = 0;
+            for (OutboundQueue.Frame f : writing) {
+                gather[count++] = f.buf;
+            }
+            long n = channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            int done = 0;
+            while (!writing.isEmpty() && !writing.peek().buf.hasRemaining()) {
+                writing.poll().done.complete(null);
+                done++;
+            }
+            TransportMetrics.onFlush(done, n);
+            if (!writing.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    private void failOutbound(IOException cause) {
+        OutboundQueue.Frame f;
+        while ((f = writing.poll()) != null) {
+            f.done.completeExceptionally(cause);
+        }
+        do {
+            outbound().failAll(cause);
+        } while (outbound().release());
+    }
+
+    @Override
+    protected void closeTransport() {
+        connected.completeExceptionally(new ConnectException("Connection closed"));
+        loop.execute(() -> {
+            try {
+                flushOutbound();
+            } catch (IOException ignored) {
+            }
+            Net.safeClose(channel);
+            failOutbound(new IOException("Connection closed"));
+        });
+    }
+}
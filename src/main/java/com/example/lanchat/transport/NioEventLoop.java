@@ -0,0 +1,103 @@
+package com.example.lanchat.transport;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class NioEventLoop implements Runnable {
+
+    interface Handler {
+        void onReady(SelectionKey key) throws IOException;
+
+        default void onFailure(Exception e) {
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    CompletableFuture<SelectionKey> register(SelectableChannel channel, int ops, Handler handler) {
+        CompletableFuture<SelectionKey> f = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                f.complete(channel.register(selector, ops, handler));
+            } catch (Exception e) {
+                f.completeExceptionally(e);
+                handler.onFailure(e);
+            }
+        });
+        return f;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.onReady(key);
+                    } catch (Exception e) {
+                        handler.onFailure(e);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+        } catch (IOException e) {
+            System.err.println("NIO event loop failed: " + e.getMessage());
+        } finally {
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("NIO event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
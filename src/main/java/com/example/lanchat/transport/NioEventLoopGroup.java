@@ -0,0 +1,109 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.store.PeerDao;
+import com.example.lanchat.util.BucketedTtlSet;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NioEventLoopGroup implements AutoCloseable {
+
+    private final NioEventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    public NioEventLoopGroup(int loopCount, ExecutorService workers) {
+        this.loops = new NioEventLoop[Math.max(1, loopCount)];
+        this.workers = workers;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lanchat-nio-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop("lanchat-nio-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw new IllegalStateException("Failed to open selector", e);
+        }
+    }
+
+    NioEventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    NioConnection accept(
+            SocketChannel channel,
+            Identity identity,
+            PeerDao peerDao,
+            BucketedTtlSet seenMsgIds,
+            Connection.MessageHandler messageHandler,
+            Connection.HandshakeListener handshakeListener
+    ) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        NioEventLoop loop = next();
+        NioConnection conn = new NioConnection(channel, remote, loop, this, identity, peerDao, seenMsgIds, messageHandler, handshakeListener);
+        loop.register(channel, 0, conn).thenAcceptAsync(conn::activate, loop::execute);
+        return conn;
+    }
+
+    NioConnection connect(
+            String ip,
+            int port,
+            Identity identity,
+            PeerDao peerDao,
+            BucketedTtlSet seenMsgIds,
+            Connection.MessageHandler messageHandler,
+            Connection.HandshakeListener handshakeListener
+    ) throws IOException {
+        InetSocketAddress remote = new InetSocketAddress(ip, port);
+        SocketChannel channel = SocketChannel.open();
+        NioEventLoop loop = next();
+        NioConnection conn = new NioConnection(channel, remote, loop, this, identity, peerDao, seenMsgIds, messageHandler, handshakeListener);
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (channel.connect(remote)) {
+                loop.register(channel, 0, conn).thenAcceptAsync(conn::activate, loop::execute);
+            } else {
+                loop.register(channel, SelectionKey.OP_CONNECT, conn);
+            }
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    ExecutorService workers() {
+        return workers;
+    }
+
+    void scheduleHandshakeTimeout(Connection conn) {
+        timer.schedule(() -> {
+            if (!conn.isHandshaken()) conn.close();
+        }, Settings.HELLO_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        for (NioEventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.lanchat.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Frames waiting to be written on one connection. Senders only enqueue; whoever holds the
+// drain claim writes everything that is ready as one batch.
+final class OutboundQueue {
+
+    static final class Frame {
+        final ByteBuffer buf;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Frame(byte[] bytes) {
+            this.buf = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    Frame offer(byte[] bytes) {
+        Frame f = new Frame(bytes);
+        frames.add(f);
+        TransportMetrics.onEnqueued(depth.incrementAndGet());
+        return f;
+    }
+
+    // True if the caller now owns draining and must schedule the writer.
+    boolean claim() {
+        return draining.compareAndSet(false, true);
+    }
+
+    // Called by the drain owner once the queue looked empty; true if it must keep draining.
+    boolean release() {
+        draining.set(false);
+        return !frames.isEmpty() && draining.compareAndSet(false, true);
+    }
+
+    int depth() {
+        return depth.get();
+    }
+
+    Frame poll() {
+        Frame f = frames.poll();
+        if (f != null) {
+            depth.decrementAndGet();
+            TransportMetrics.onDequeued(1);
+        }
+        return f;
+    }
+
+    int drainTo(Collection<Frame> batch, int maxFrames, long maxBytes) {
+        int n = 0;
+        long bytes = 0;
+        Frame f;
+        while (n < maxFrames && bytes < maxBytes && (f = poll()) != null) {
+            batch.add(f);
+            bytes += f.buf.remaining();
+            n++;
+        }
+        return n;
+    }
+
+    void failAll(Throwable cause) {
+        Frame f;
+        while ((f = poll()) != null) {
+            f.done.completeExceptionally(cause);
+        }
+    }
+}
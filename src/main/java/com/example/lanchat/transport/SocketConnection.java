@@ -0,0 +1,125 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.store.PeerDao;
+import com.example.lanchat.util.BucketedTtlSet;
+import com.example.lanchat.util.Net;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+public class SocketConnection extends Connection {
+
+    private static final ExecutorService WRITERS = TransportEngine.newCachedExecutor("lanchat-writer-");
+
+    private final Socket socket;
+    private final InputStream in;
+    private final FrameReader reader = new FrameReader(Settings.MAX_MESSAGE_BYTES);
+    private final BufferedOutputStream out;
+
+    public SocketConnection(
+            Socket socket,
+            Identity localIdentity,
+            PeerDao peerDao,
+            BucketedTtlSet seenMsgIds,
+            MessageHandler messageHandler,
+            HandshakeListener handshakeListener
+    ) throws IOException {
+        super(localIdentity, peerDao, seenMsgIds, messageHandler, handshakeListener);
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.in = socket.getInputStream();
+        this.out = Framing.wrapOut(socket.getOutputStream());
+    }
+
+    public Socket socket() {
+        return socket;
+    }
+
+    @Override
+    public String remoteIp() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public String formatRemote() {
+        return Net.formatRemote(socket);
+    }
+
+    public void runReadLoop() {
+        try {
+            socket.setSoTimeout(Settings.HELLO_TIMEOUT_MS);
+            sendHello();
+            while (!isClosed()) {
+                MessageEnvelope msg = reader.read(in);
+                if (msg == null) {
+                    close();
+                    return;
+                }
+                boolean wasHandshaken = isHandshaken();
+                if (!wasHandshaken && MessageType.HELLO.equals(msg.type)) {
+                    reader.setVersion(negotiateVersion(msg));
+                }
+                onFrame(msg);
+                if (!wasHandshaken && isHandshaken()) {
+                    socket.setSoTimeout(0);
+                }
+            }
+        } catch (Framing.FrameTooLargeException e) {
+            onFrameTooLarge(e.sizeBytes);
+        } catch (IOException e) {
+            close();
+        } catch (Exception e) {
+            close();
+        }
+    }
+
+    @Override
+    protected void scheduleFlush() {
+        WRITERS.execute(this::drainOutbound);
+    }
+
+    // Writes every frame that is ready, then flushes once per batch.
+    private void drainOutbound() {
+        OutboundQueue queue = outbound();
+        List<OutboundQueue.Frame> batch = new ArrayList<>();
+        try {
+            do {
+                while (queue.drainTo(batch, Framing.MAX_BATCH_FRAMES, Framing.MAX_BATCH_BYTES) > 0) {
+                    long bytes = 0;
+                    for (OutboundQueue.Frame f : batch) {
+                        out.write(f.buf.array());
+                        bytes += f.buf.remaining();
+                    }
+                    out.flush();
+                    TransportMetrics.onFlush(batch.size(), bytes);
+                    for (OutboundQueue.Frame f : batch) {
+                        f.done.complete(null);
+                    }
+                    batch.clear();
+                }
+            } while (queue.release());
+        } catch (IOException e) {
+            for (OutboundQueue.Frame f : batch) {
+                f.done.completeExceptionally(e);
+            }
+            close();
+            do {
+                queue.failAll(e);
+            } while (queue.release());
+        }
+    }
+
+    @Override
+    protected void closeTransport() {
+        Net.safeClose(socket);
+        outbound().failAll(new IOException("Connection closed"));
+    }
+}
@@ -1,11 +1,18 @@
 package com.example.lanchat.transport;
 
+import com.example.lanchat.core.Settings;
 import com.example.lanchat.store.IdentityDao.Identity;
 import com.example.lanchat.store.PeerDao;
-import com.example.lanchat.util.LruTtlSet;
+import com.example.lanchat.util.BucketedTtlSet;
+import com.example.lanchat.util.Net;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -14,35 +21,55 @@ public class TcpServer {
     private final int port;
     private final Identity identity;
     private final PeerDao peerDao;
-    private final LruTtlSet seenMsgIds;
+    private final BucketedTtlSet seenMsgIds;
     private final ExecutorService ioPool;
+    private final NioEventLoopGroup eventLoops;
     private final Connection.MessageHandler messageHandler;
     private final Connection.HandshakeListener handshakeListener;
     private final AtomicBoolean running = new AtomicBoolean(false);
 
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
 
     public TcpServer(
             int port,
             Identity identity,
             PeerDao peerDao,
-            LruTtlSet seenMsgIds,
+            BucketedTtlSet seenMsgIds,
             ExecutorService ioPool,
             Connection.MessageHandler messageHandler,
             Connection.HandshakeListener handshakeListener
+    ) {
+        this(port, identity, peerDao, seenMsgIds, ioPool, null, messageHandler, handshakeListener);
+    }
+
+    public TcpServer(
+            int port,
+            Identity identity,
+            PeerDao peerDao,
+            BucketedTtlSet seenMsgIds,
+            ExecutorService ioPool,
+            NioEventLoopGroup eventLoops,
+            Connection.MessageHandler messageHandler,
+            Connection.HandshakeListener handshakeListener
     ) {
         this.port = port;
         this.identity = identity;
         this.peerDao = peerDao;
         this.seenMsgIds = seenMsgIds;
         this.ioPool = ioPool;
+        this.eventLoops = eventLoops;
         this.messageHandler = messageHandler;
         this.handshakeListener = handshakeListener;
     }
 
     public void start() throws IOException {
         if (!running.compareAndSet(false, true)) return;
-        serverSocket = new ServerSocket(port);
+        if (eventLoops != null) {
+            startNio();
+            return;
+        }
+        serverSocket = new ServerSocket(port, Settings.TCP_ACCEPT_BACKLOG);
         serverSocket.setReuseAddress(true);
         System.out.println("TCP Server listening on " + port);
         ioPool.submit(this::acceptLoop);
@@ -53,7 +80,7 @@ public class TcpServer {
             try {
                 Socket socket = serverSocket.accept();
                 System.out.println("Inbound connected: " + socket.getRemoteSocketAddress());
-                Connection conn = new Connection(socket, identity, peerDao, seenMsgIds, messageHandler, handshakeListener);
+                SocketConnection conn = new SocketConnection(socket, identity, peerDao, seenMsgIds, messageHandler, handshakeListener);
                 ioPool.submit(conn::runReadLoop);
             } catch (IOException e) {
                 if (running.get()) {
@@ -64,12 +91,34 @@ public class TcpServer {
         }
     }
 
+    private void startNio() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), Settings.TCP_ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        System.out.println("TCP Server listening on " + port + " (nio)");
+        eventLoops.next().register(serverChannel, SelectionKey.OP_ACCEPT, key -> acceptReady());
+    }
+
+    private void acceptReady() throws IOException {
+        SocketChannel channel;
+        while (running.get() && (channel = serverChannel.accept()) != null) {
+            System.out.println("Inbound connected: " + channel.getRemoteAddress());
+            try {
+                eventLoops.accept(channel, identity, peerDao, seenMsgIds, messageHandler, handshakeListener);
+            } catch (IOException e) {
+                Net.safeClose(channel);
+            }
+        }
+    }
+
     public void stop() {
         if (!running.compareAndSet(true, false)) return;
         try {
             if (serverSocket != null) serverSocket.close();
         } catch (Exception ignored) {
         }
+        Net.safeClose(serverChannel);
     }
 }
 
@@ -0,0 +1,51 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.core.Settings;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public enum TransportEngine {
+    POOLED,
+    VIRTUAL,
+    NIO;
+
+    public static TransportEngine parse(String value) {
+        if (value == null || value.isBlank()) return POOLED;
+        return TransportEngine.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public ExecutorService newIoExecutor() {
+        if (this == VIRTUAL) {
+            return newPerConnectionExecutor();
+        }
+        if (this == NIO) {
+            // Handler workers: threads only exist while frames are being handled, not per idle socket.
+            return newCachedExecutor("lanchat-worker-");
+        }
+        return Executors.newFixedThreadPool(Settings.TCP_IO_THREADS);
+    }
+
+    // Virtual threads need a Java 21 runtime; on older runtimes fall back to one platform thread per connection.
+    private static ExecutorService newPerConnectionExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return newCachedExecutor("lanchat-conn-");
+        }
+    }
+
+    static ExecutorService newCachedExecutor(String namePrefix) {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, namePrefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newCachedThreadPool(tf);
+    }
+}
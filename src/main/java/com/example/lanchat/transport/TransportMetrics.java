@@ -0,0 +1,66 @@
+package com.example.lanchat.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide counters for the outbound write path.
+public final class TransportMetrics {
+
+    private static final AtomicLong QUEUED_FRAMES = new AtomicLong();
+    private static final AtomicLong MAX_QUEUE_DEPTH = new AtomicLong();
+    private static final LongAdder FLUSHES = new LongAdder();
+    private static final LongAdder FLUSHED_FRAMES = new LongAdder();
+    private static final LongAdder FLUSHED_BYTES = new LongAdder();
+
+    private TransportMetrics() {
+    }
+
+    static void onEnqueued(int connectionDepth) {
+        QUEUED_FRAMES.incrementAndGet();
+        MAX_QUEUE_DEPTH.accumulateAndGet(connectionDepth, Math::max);
+    }
+
+    static void onDequeued(int frames) {
+        QUEUED_FRAMES.addAndGet(-frames);
+    }
+
+    static void onFlush(int frames, long bytes) {
+        FLUSHES.increment();
+        FLUSHED_FRAMES.add(frames);
+        FLUSHED_BYTES.add(bytes);
+    }
+
+    public static Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.queuedFrames = QUEUED_FRAMES.get();
+        s.maxQueueDepth = MAX_QUEUE_DEPTH.get();
+        s.flushes = FLUSHES.sum();
+        s.flushedFrames = FLUSHED_FRAMES.sum();
+        s.flushedBytes = FLUSHED_BYTES.sum();
+        return s;
+    }
+
+    public static class Snapshot {
+        public long queuedFrames;
+        public long maxQueueDepth;
+        public long flushes;
+        public long flushedFrames;
+        public long flushedBytes;
+
+        public double framesPerFlush() {
+            return flushes == 0 ? 0 : (double) flushedFrames / flushes;
+        }
+
+        public double bytesPerFlush() {
+            return flushes == 0 ? 0 : (double) flushedBytes / flushes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "queued=%d maxDepth=%d flushes=%d frames/flush=%.1f bytes/flush=%.0f",
+                    queuedFrames, maxQueueDepth, flushes, framesPerFlush(), bytesPerFlush()
+            );
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.lanchat.transport;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Reusable Reader over a byte range so Gson can decode without building a String first.
+final class Utf8Reader extends Reader {
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer in = ByteBuffer.allocate(0);
+    private boolean flushed;
+
+    Utf8Reader reset(byte[] bytes, int off, int len) {
+        in = ByteBuffer.wrap(bytes, off, len);
+        decoder.reset();
+        flushed = false;
+        return this;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) return 0;
+        if (flushed) return -1;
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        decoder.decode(in, out, true);
+        if (!in.hasRemaining() && !decoder.flush(out).isOverflow()) {
+            flushed = true;
+        }
+        int n = out.position() - off;
+        return n == 0 && flushed ? -1 : n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
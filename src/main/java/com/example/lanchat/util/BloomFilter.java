@@ -0,0 +1,68 @@
+package com.example.lanchat.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free Bloom filter over strings: no false negatives, about fpp false positives at capacity.
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashes;
+    private final int capacity;
+    private final AtomicInteger added = new AtomicInteger();
+
+    public BloomFilter(int capacity, double fpp) {
+        this.capacity = Math.max(1, capacity);
+        long m = (long) Math.ceil(-this.capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) Math.max(1, (m + 63) / 64));
+        this.bitCount = bits.length() * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) bitCount / this.capacity * Math.log(2)));
+    }
+
+    public void put(String key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long idx = Math.floorMod(h1 + (long) i * h2, bitCount);
+            int word = (int) (idx >>> 6);
+            long mask = 1L << idx;
+            long cur;
+            while (((cur = bits.get(word)) & mask) == 0) {
+                if (bits.compareAndSet(word, cur, cur | mask)) break;
+            }
+        }
+        added.incrementAndGet();
+    }
+
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long idx = Math.floorMod(h1 + (long) i * h2, bitCount);
+            if ((bits.get((int) (idx >>> 6)) & (1L << idx)) == 0) return false;
+        }
+        return true;
+    }
+
+    public boolean isFull() {
+        return added.get() >= capacity;
+    }
+
+    // 64-bit FNV-1a over chars followed by a murmur3 finalizer.
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
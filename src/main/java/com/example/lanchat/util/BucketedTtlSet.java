@@ -0,0 +1,85 @@
+package com.example.lanchat.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Concurrent replacement for LruTtlSet. Keys are spread over independently locked shards; each
+// shard keeps a ring of time-bucket generations and expires a whole generation at once, so a
+// check is a handful of hash lookups. Entries live between ttl and ttl + one bucket, unless a
+// shard goes over its share of maxSize, in which case its oldest generation is dropped early.
+public class BucketedTtlSet {
+
+    private static final int SHARDS = 64;
+    private static final int GENERATIONS = 8;
+
+    private final long bucketMs;
+    private final int shardCap;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    public BucketedTtlSet(int maxSize, long ttlMs) {
+        this.bucketMs = Math.max(1, (ttlMs + GENERATIONS - 2) / (GENERATIONS - 1));
+        this.shardCap = Math.max(GENERATIONS, (maxSize + SHARDS - 1) / SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    public boolean addIfAbsent(String key, long now) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (SHARDS - 1)].addIfAbsent(key, now / bucketMs, shardCap);
+    }
+
+    public int size() {
+        int n = 0;
+        for (Shard s : shards) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    private static final class Shard {
+        private final List<Set<String>> gens = new ArrayList<>(GENERATIONS);
+        private int head;
+        private long headBucket = Long.MIN_VALUE;
+        private int size;
+
+        Shard() {
+            for (int i = 0; i < GENERATIONS; i++) {
+                gens.add(new HashSet<>());
+            }
+        }
+
+        synchronized boolean addIfAbsent(String key, long bucket, int cap) {
+            if (bucket > headBucket) {
+                long steps = headBucket == Long.MIN_VALUE ? GENERATIONS : bucket - headBucket;
+                for (long i = 0; i < Math.min(steps, GENERATIONS); i++) {
+                    advance();
+                }
+                headBucket = bucket;
+            }
+            for (Set<String> gen : gens) {
+                if (gen.contains(key)) return false;
+            }
+            gens.get(head).add(key);
+            size++;
+            while (size > cap) {
+                advance();
+            }
+            return true;
+        }
+
+        private void advance() {
+            head = (head + 1) % GENERATIONS;
+            Set<String> oldest = gens.get(head);
+            size -= oldest.size();
+            oldest.clear();
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
@@ -343,21 +343,29 @@ public class ApiRoutes {
         String roomId = q(req, "roomId");
         String peerNodeId = q(req, "peerNodeId");
         long sinceTs = qLong(req, "sinceTs", 0);
+        // sinceSeq is exact; sinceTs is kept for older clients and can miss same-millisecond updates.
+        boolean bySeq = q(req, "sinceSeq") != null;
+        long sinceSeq = qLong(req, "sinceSeq", 0);
         int limit = qInt(req, "limit", 200);
         limit = Math.max(1, Math.min(limit, 500));
 
         try {
             String resolvedConvId = resolveConvId(convId, roomId, peerNodeId);
             if (resolvedConvId == null) return gson.toJson(Dto.fail("Missing convId/roomId/peerNodeId"));
-            List<Message> list = messageDao.listMessagesUpdatedAfter(sinceTs, resolvedConvId, limit);
+            List<Message> list = bySeq
+                    ? messageDao.listMessagesChangedAfter(sinceSeq, resolvedConvId, limit)
+                    : messageDao.listMessagesUpdatedAfter(sinceTs, resolvedConvId, limit);
             long max = sinceTs;
+            long maxSeq = sinceSeq;
             List<Dto.MessageDto> out = new ArrayList<>();
             for (Message m : list) {
                 out.add(toMessageDto(m));
                 max = Math.max(max, m.updatedAt);
+                maxSeq = Math.max(maxSeq, m.seq);
             }
             Dto.PollResponse pr = new Dto.PollResponse();
             pr.maxTs = max;
+            pr.maxSeq = maxSeq;
             pr.messages = out;
             return gson.toJson(Dto.ok(pr));
         } catch (SQLException e) {
@@ -397,6 +405,7 @@ public class ApiRoutes {
         dto.ts = m.ts;
         dto.updatedAt = m.updatedAt;
         dto.status = m.status;
+        dto.seq = m.seq;
         return dto;
     }
 
@@ -76,6 +76,7 @@ public final class Dto {
         public long ts;
         public long updatedAt;
         public String status;
+        public long seq;
     }
 
     public static final class SendPrivateRequest {
@@ -136,6 +137,7 @@ public final class Dto {
 
     public static final class PollResponse {
         public long maxTs;
+        public long maxSeq;
         public List<MessageDto> messages;
     }
 }
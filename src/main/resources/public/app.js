@@ -314,7 +314,7 @@ function renderMessages(scrollToBottom) {
     div.className = isOut ? "msg msgOut" : "msg msgIn";
     
     const status = isOut ? (m.status || "SENT") : "";
-    const displayStatus = status === "DELIVERED" ? "已送达" : (status === "SENT" ? "已发送" : status);
+    const displayStatus = status === "DELIVERED" ? "已送达" : (status === "SENT" ? "已发送" : (status === "QUEUED" ? "待发送" : status));
     const from = isOut ? "我" : (m.fromName || m.fromNodeId || "未知");
     
     div.innerHTML = `
@@ -385,8 +385,8 @@ async function loadLatest() {
   const msgs = await apiGet(url);
   upsertMessages(msgs);
   let max = 0;
-  for (const m of msgs) max = Math.max(max, m.updatedAt || m.ts || 0);
-  state.pollSince = max || Date.now();
+  for (const m of msgs) max = Math.max(max, m.seq || 0);
+  state.pollSince = max;
   renderMessages(true);
 }
 
@@ -413,7 +413,7 @@ function buildMessagesUrl(beforeTs, limit) {
 function buildPollUrl() {
   const cur = state.current;
   const qp = new URLSearchParams();
-  qp.set("sinceTs", String(state.pollSince || 0));
+  qp.set("sinceSeq", String(state.pollSince || 0));
   qp.set("limit", "200");
   if (cur.type === "ROOM") qp.set("roomId", cur.roomId);
   if (cur.type === "PRIVATE") qp.set("peerNodeId", cur.peerNodeId);
@@ -426,7 +426,7 @@ async function pollOnce() {
     const data = await apiGet(buildPollUrl());
     if (!data || !data.messages) return;
     upsertMessages(data.messages);
-    state.pollSince = Math.max(state.pollSince, data.maxTs || 0);
+    state.pollSince = Math.max(state.pollSince, data.maxSeq || 0);
     if (data.messages.length > 0) renderMessages(true);
   } catch (e) {
     console.error(e);
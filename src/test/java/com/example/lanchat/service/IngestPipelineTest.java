@@ -0,0 +1,117 @@
+package com.example.lanchat.service;
+
+import com.example.lanchat.store.ConversationDao;
+import com.example.lanchat.store.ConversationDao.Conversation;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.MessageDao;
+import com.example.lanchat.store.MessageDao.Message;
+import com.example.lanchat.store.RoomMemberDao;
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import com.example.lanchat.store.SeenDao;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class IngestPipelineTest {
+
+    private IngestPipeline ingest;
+
+    @After
+    public void tearDown() {
+        if (ingest != null) ingest.shutdown();
+        Db.close();
+    }
+
+    @Test
+    public void burstIsCommittedInBatchesAndDuplicatesAreReported() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        ingest = new IngestPipeline();
+
+        int n = 5000;
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            futures.add(ingest.submit(roomItem("room-" + (i % 4), "m-" + i, 1000 + i)));
+        }
+        for (CompletableFuture<Boolean> f : futures) {
+            assertTrue(f.get(30, TimeUnit.SECONDS));
+        }
+        assertTrue(String.valueOf(ingest.batches()), ingest.batches() < n / 10);
+
+        assertFalse(ingest.submit(roomItem("room-0", "m-0", 1000)).get(5, TimeUnit.SECONDS));
+
+        List<Message> latest = new MessageDao().listLatestRoomMessages("room-3", 1);
+        assertEquals("m-4999", latest.get(0).msgId);
+        Conversation conv = new ConversationDao().getByRoom("room-3");
+        assertNotNull(conv);
+        assertEquals(1000 + 4999, conv.lastMsgTs);
+    }
+
+    @Test
+    public void repeatsDoNotTouchTheSender() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        ingest = new IngestPipeline();
+
+        IngestPipeline.Item first = roomItem("room-1", "m-1", 1000);
+        first.sender = sender("room-1", "10.0.0.1", 1000);
+        assertTrue(ingest.submit(first).get(5, TimeUnit.SECONDS));
+        IngestPipeline.Item repeat = roomItem("room-1", "m-1", 1000);
+        repeat.sender = sender("room-1", "10.0.0.2", 2000);
+        assertFalse(ingest.submit(repeat).get(5, TimeUnit.SECONDS));
+
+        RoomMember member = new RoomMemberDao().getMember("room-1", "node-b");
+        assertEquals("10.0.0.1", member.lastKnownIp);
+        assertEquals(1000, member.lastSeen);
+    }
+
+    @Test
+    public void committedIdsAreSeen() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        ingest = new IngestPipeline();
+
+        assertTrue(ingest.submit(roomItem("room-1", "m-1", 1000)).get(5, TimeUnit.SECONDS));
+
+        assertFalse(new SeenDao().markSeen("m-1", System.currentTimeMillis()));
+    }
+
+    private static RoomMember sender(String roomId, String ip, long lastSeen) {
+        RoomMember m = new RoomMember();
+        m.roomId = roomId;
+        m.memberNodeId = "node-b";
+        m.memberName = "node-b";
+        m.lastKnownIp = ip;
+        m.lastKnownP2pPort = 19000;
+        m.lastSeen = lastSeen;
+        return m;
+    }
+
+    private static IngestPipeline.Item roomItem(String roomId, String msgId, long ts) {
+        Message m = new Message();
+        m.msgId = msgId;
+        m.chatType = "ROOM";
+        m.roomId = roomId;
+        m.direction = "IN";
+        m.fromNodeId = "node-b";
+        m.content = "hello";
+        m.contentType = "text/plain";
+        m.ts = ts;
+        m.clockValue = String.valueOf(ts);
+        m.status = "DELIVERED";
+        IngestPipeline.Item item = new IngestPipeline.Item();
+        item.message = m;
+        item.convTitle = roomId;
+        return item;
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.lanchat.service;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.store.OutboxDao;
+import com.example.lanchat.store.PeerDao;
+import com.example.lanchat.transport.TransportEngine;
+import com.google.gson.JsonObject;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutboxServiceTest {
+
+    private TransportService a;
+    private TransportService b;
+    private OutboxService outbox;
+
+    @After
+    public void tearDown() {
+        if (outbox != null) outbox.shutdown();
+        if (a != null) a.stop();
+        if (b != null) b.stop();
+        Db.close();
+    }
+
+    @Test
+    public void queuedMessageSurvivesRestartAndIsDeliveredWhenPeerComesUp() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        new PeerDao().upsertPeer(idb.nodeId, idb.displayName, "127.0.0.1", idb.p2pPort, System.currentTimeMillis());
+
+        a = new TransportService(ida, TransportEngine.POOLED);
+        a.start();
+        outbox = new OutboxService(a);
+        outbox.start();
+        outbox.enqueue(idb.nodeId, chat("m1", "while offline"));
+        Thread.sleep(500);
+        assertEquals(1, new OutboxDao().countForPeer(idb.nodeId));
+
+        outbox.shutdown();
+        a.stop();
+        Db.close();
+        Db.init(db.toString());
+        assertEquals(1, new OutboxDao().countForPeer(idb.nodeId));
+
+        b = new TransportService(idb, TransportEngine.POOLED);
+        CompletableFuture<String> atB = new CompletableFuture<>();
+        b.onMessage((remote, env) -> atB.complete(env.msgId));
+        b.start();
+
+        a = new TransportService(ida, TransportEngine.POOLED);
+        a.start();
+        outbox = new OutboxService(a);
+        a.onPeerConnected(p -> outbox.onPeerOnline(p.nodeId));
+        outbox.start();
+        outbox.onPeerOnline(idb.nodeId);
+
+        assertEquals("m1", atB.get(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (new OutboxDao().countForPeer(idb.nodeId) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, new OutboxDao().countForPeer(idb.nodeId));
+    }
+
+    @Test
+    public void awaitedMessageStaysQueuedUntilTheAckArrives() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        new PeerDao().upsertPeer(idb.nodeId, idb.displayName, "127.0.0.1", idb.p2pPort, System.currentTimeMillis());
+
+        b = new TransportService(idb, TransportEngine.POOLED);
+        AtomicInteger atB = new AtomicInteger();
+        b.onMessage((remote, env) -> atB.incrementAndGet());
+        b.start();
+        a = new TransportService(ida, TransportEngine.POOLED);
+        a.start();
+        outbox = new OutboxService(a);
+        outbox.start();
+
+        outbox.enqueue(idb.nodeId, chat("m1", "written"), true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (atB.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        // Written once, then held for the ACK rather than resent or dropped.
+        Thread.sleep(3 * Settings.OUTBOX_TICK_MS);
+        assertEquals(1, atB.get());
+        assertEquals(1, new OutboxDao().countForPeer(idb.nodeId));
+
+        outbox.onAck(idb.nodeId, "m1");
+        assertEquals(0, new OutboxDao().countForPeer(idb.nodeId));
+    }
+
+    @Test
+    public void resendAfterALostAckReachesThePeerAndIsAcked() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        new PeerDao().upsertPeer(idb.nodeId, idb.displayName, "127.0.0.1", idb.p2pPort, System.currentTimeMillis());
+
+        // B loses the ACK for the first copy and answers the second.
+        b = new TransportService(idb, TransportEngine.POOLED);
+        AtomicInteger atB = new AtomicInteger();
+        b.onMessage((remote, env) -> {
+            if (atB.incrementAndGet() < 2) return;
+            MessageEnvelope ack = new MessageEnvelope();
+            ack.protocolVersion = 1;
+            ack.type = MessageType.ACK;
+            ack.msgId = "ack-" + env.msgId;
+            ack.from = new MessageEnvelope.NodeInfo(idb.nodeId, idb.displayName);
+            JsonObject payload = new JsonObject();
+            payload.addProperty("ackMsgId", env.msgId);
+            ack.payload = payload;
+            b.sendAsync(remote.nodeId, remote.ip, remote.p2pPort, ack);
+        });
+        b.start();
+        a = new TransportService(ida, TransportEngine.POOLED);
+        a.onMessage((remote, env) -> {
+            if (MessageType.ACK.equals(env.type)) outbox.onAck(remote.nodeId, env.payload.getAsJsonObject().get("ackMsgId").getAsString());
+        });
+        a.start();
+        outbox = new OutboxService(a, 500);
+        outbox.start();
+
+        MessageEnvelope env = chat("m1", "written twice");
+        env.type = MessageType.CHAT;
+        env.from = new MessageEnvelope.NodeInfo(ida.nodeId, ida.displayName);
+        env.payload.getAsJsonObject().addProperty("chatType", "PRIVATE");
+        outbox.enqueue(idb.nodeId, env, true);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (new OutboxDao().countForPeer(idb.nodeId) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, new OutboxDao().countForPeer(idb.nodeId));
+        assertEquals(2, atB.get());
+    }
+
+    @Test
+    public void sightingsOfAPeerInBackoffDoNotRedialIt() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        new PeerDao().upsertPeer(idb.nodeId, idb.displayName, "127.0.0.1", idb.p2pPort, System.currentTimeMillis());
+
+        a = new TransportService(ida, TransportEngine.POOLED);
+        a.start();
+        outbox = new OutboxService(a);
+        outbox.start();
+        outbox.enqueue(idb.nodeId, chat("m1", "nobody listening"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (attempts(idb.nodeId) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, attempts(idb.nodeId));
+
+        // Discovery sees B every couple of seconds; none of that beats the backoff.
+        for (int i = 0; i < 5; i++) {
+            outbox.onPeerSeen(idb.nodeId);
+            Thread.sleep(50);
+        }
+        assertEquals(1, attempts(idb.nodeId));
+    }
+
+    private static int attempts(String peerNodeId) throws Exception {
+        return new OutboxDao().listForPeer(peerNodeId, Long.MAX_VALUE, 1).get(0).attempts;
+    }
+
+    private static MessageEnvelope chat(String msgId, String text) {
+        MessageEnvelope env = new MessageEnvelope();
+        env.type = MessageType.CHAT_TEST;
+        env.msgId = msgId;
+        JsonObject payload = new JsonObject();
+        payload.addProperty("text", text);
+        env.payload = payload;
+        return env;
+    }
+
+    private static Identity identity(String nodeId, int port) {
+        Identity id = new Identity();
+        id.nodeId = nodeId;
+        id.displayName = nodeId;
+        id.p2pPort = port;
+        id.webPort = 0;
+        return id;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
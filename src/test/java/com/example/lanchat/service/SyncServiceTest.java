@@ -0,0 +1,354 @@
+package com.example.lanchat.service;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.store.MessageDao;
+import com.example.lanchat.store.MessageDao.Message;
+import com.example.lanchat.store.RoomCursorDao;
+import com.example.lanchat.store.RoomDigestDao;
+import com.example.lanchat.store.RoomMemberDao;
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import com.example.lanchat.transport.TransportEngine;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncServiceTest {
+
+    private final List<TransportService> transports = new ArrayList<>();
+    private final List<SyncService> services = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        services.forEach(SyncService::shutdown);
+        transports.forEach(TransportService::stop);
+        Db.close();
+    }
+
+    @Test
+    public void catchUpStreamsSeveralPagesPerRequest() throws Exception {
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        int total = seedRoom("room-1", 2000, ida, idb);
+
+        AtomicInteger requests = new AtomicInteger();
+        SyncService syncA = start(ida, null);
+        start(idb, env -> {
+            if (!isHeadProbe(env)) requests.incrementAndGet();
+            return true;
+        });
+
+        syncA.syncRoom("room-1");
+
+        assertEquals(String.valueOf(total), new RoomCursorDao().getCursor("room-1"));
+        int pages = (total + 199) / 200;
+        assertEquals((pages + Settings.SYNC_CREDIT_PAGES - 1) / Settings.SYNC_CREDIT_PAGES, requests.get());
+    }
+
+    @Test
+    public void longMessagesArePagedByBytesAndTheLimitFollows() throws Exception {
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        seedRoom("room-1", 0, ida, idb);
+        // 200 of these make a page far over MAX_MESSAGE_BYTES.
+        List<Message> seed = new ArrayList<>();
+        for (int i = 1; i <= 300; i++) {
+            Message m = roomMsg("long" + i, "room-1", 1000 + i, i);
+            m.content = "y".repeat(2000);
+            seed.add(m);
+        }
+        new MessageDao().insertAllIgnore(seed);
+
+        AtomicInteger lastLimit = new AtomicInteger();
+        SyncService syncA = start(ida, null);
+        start(idb, env -> {
+            JsonObject payload = env.payload.getAsJsonObject();
+            if (payload.has("limit")) lastLimit.set(payload.get("limit").getAsInt());
+            return true;
+        });
+
+        syncA.syncRoom("room-1");
+
+        assertEquals("300", new RoomCursorDao().getCursor("room-1"));
+        assertTrue(String.valueOf(lastLimit.get()), lastLimit.get() < 200);
+    }
+
+    @Test
+    public void rangesOfAStalledSourceMoveToTheOthers() throws Exception {
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        Identity idc = identity("node-c", freePort());
+        int total = seedRoom("room-1", 3000, ida, idb, idc);
+
+        AtomicInteger rangesB = new AtomicInteger();
+        AtomicInteger rangesC = new AtomicInteger();
+        SyncService syncA = start(ida, null);
+        start(idb, env -> {
+            if (!isHeadProbe(env)) rangesB.incrementAndGet();
+            return true;
+        });
+        // C reports its head but never answers a range request.
+        start(idc, env -> {
+            if (isHeadProbe(env)) return true;
+            rangesC.incrementAndGet();
+            return false;
+        });
+
+        syncA.syncRoom("room-1");
+
+        assertEquals(String.valueOf(total), new RoomCursorDao().getCursor("room-1"));
+        assertEquals(1, rangesC.get());
+        assertTrue(rangesB.get() > 1);
+    }
+
+    @Test
+    public void vectorRequestGetsExactlyTheMissingNumberedMessages() throws Exception {
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        seedRoom("room-1", 0, ida, idb);
+        List<Message> seed = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            seed.add(numbered("x" + i, "node-x", i, 100 - i));
+        }
+        for (int i = 1; i <= 3; i++) {
+            seed.add(numbered("y" + i, "node-y", i, 50 + i));
+        }
+        seed.add(roomMsg("legacy", "room-1", 1000, 7));
+        new MessageDao().insertAllIgnore(seed);
+
+        start(idb, null);
+        TransportService t = new TransportService(ida, TransportEngine.POOLED);
+        transports.add(t);
+        CompletableFuture<JsonObject> response = new CompletableFuture<>();
+        t.onMessage((remote, env) -> {
+            if (MessageType.SYNC_RESPONSE.equals(env.type)) response.complete(env.payload.getAsJsonObject());
+        });
+        t.start();
+
+        JsonObject vector = new JsonObject();
+        vector.addProperty("node-x", 2);
+        vector.addProperty("node-y", 3);
+        JsonObject payload = new JsonObject();
+        payload.addProperty("roomId", "room-1");
+        payload.add("vector", vector);
+        MessageEnvelope req = new MessageEnvelope();
+        req.protocolVersion = 1;
+        req.type = MessageType.SYNC_REQUEST;
+        req.msgId = "req-1";
+        req.from = new MessageEnvelope.NodeInfo(ida.nodeId, ida.displayName);
+        req.payload = payload;
+        t.send(idb.nodeId, "127.0.0.1", idb.p2pPort, req);
+
+        JsonObject resp = response.get(5, TimeUnit.SECONDS);
+        JsonArray messages = resp.getAsJsonArray("messages");
+        assertEquals(3, messages.size());
+        for (int i = 0; i < 3; i++) {
+            JsonObject m = messages.get(i).getAsJsonObject();
+            assertEquals("x" + (i + 3), m.get("msgId").getAsString());
+            assertEquals(i + 3, m.getAsJsonObject("payload").get("originSeq").getAsLong());
+        }
+        assertFalse(resp.get("hasMore").getAsBoolean());
+    }
+
+    @Test
+    public void repairOfMatchingHistoriesStopsAtTheTopLevel() throws Exception {
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        seedRoom("room-1", 500, ida, idb);
+
+        AtomicInteger requests = new AtomicInteger();
+        SyncService syncA = start(ida, null);
+        start(idb, env -> {
+            requests.incrementAndGet();
+            return env.payload.getAsJsonObject().has("digest");
+        });
+
+        assertEquals(0, syncA.repairRoom("room-1"));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void repairFetchesJustTheBucketWhoseLeafDiffers() throws Exception {
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        seedRoom("room-1", 500, ida, idb);
+        long bucket = 5;
+
+        // B answers digest requests itself, with the nodes over one leaf changed; range requests
+        // go to its sync service.
+        List<JsonObject> ranges = new ArrayList<>();
+        SyncService syncA = start(ida, null);
+        TransportService t = new TransportService(idb, TransportEngine.POOLED);
+        SyncService syncB = new SyncService(idb, new LamportClock(), t);
+        t.onMessage((remote, env) -> {
+            JsonObject payload = env.payload.getAsJsonObject();
+            if (!MessageType.SYNC_REQUEST.equals(env.type) || !payload.has("digest")) {
+                if (MessageType.SYNC_REQUEST.equals(env.type)) {
+                    synchronized (ranges) {
+                        ranges.add(payload);
+                    }
+                }
+                syncB.onMessage(remote, env);
+                return;
+            }
+            try {
+                t.send(remote.nodeId, remote.ip, remote.p2pPort, digestAnswer(idb, env, bucket));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        transports.add(t);
+        services.add(syncB);
+
+        assertEquals(0, syncA.repairRoom("room-1"));
+
+        assertEquals(1, ranges.size());
+        JsonObject range = ranges.get(0);
+        assertEquals(String.valueOf(bucket * RoomDigestDao.BUCKET_CLOCKS - 1),
+                range.getAsJsonObject("since").get("clockValue").getAsString());
+        assertEquals((bucket + 1) * RoomDigestDao.BUCKET_CLOCKS - 1, range.get("until").getAsLong());
+    }
+
+    // Both nodes share the database, so a catch-up inserts nothing; the cursor and the requests
+    // a source sees show how the pages travelled.
+    private static int seedRoom(String roomId, int total, Identity... members) throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        long now = System.currentTimeMillis();
+        RoomMemberDao dao = new RoomMemberDao();
+        for (Identity id : members) {
+            dao.upsert(member(roomId, id, now));
+        }
+        List<Message> seed = new ArrayList<>();
+        for (int i = 1; i <= total; i++) {
+            seed.add(roomMsg("m" + i, roomId, now + i, i));
+        }
+        new MessageDao().insertAllIgnore(seed);
+        return total;
+    }
+
+    // filter sees every SYNC_REQUEST and returns whether the node should answer it.
+    private SyncService start(Identity id, Predicate<MessageEnvelope> filter) throws Exception {
+        TransportService t = new TransportService(id, TransportEngine.POOLED);
+        SyncService svc = new SyncService(id, new LamportClock(), t);
+        t.onMessage((remote, env) -> {
+            if (filter != null && MessageType.SYNC_REQUEST.equals(env.type) && !filter.test(env)) return;
+            svc.onMessage(remote, env);
+        });
+        t.start();
+        transports.add(t);
+        services.add(svc);
+        return svc;
+    }
+
+    // The real nodes of the requested level, except that the one over leaf bucket counts one
+    // message more.
+    private static MessageEnvelope digestAnswer(Identity id, MessageEnvelope req, long bucket) throws Exception {
+        JsonObject payload = req.payload.getAsJsonObject();
+        JsonObject digest = payload.getAsJsonObject("digest");
+        int level = digest.get("level").getAsInt();
+        List<Long> parents = null;
+        if (digest.has("parents")) {
+            parents = new ArrayList<>();
+            for (JsonElement e : digest.getAsJsonArray("parents")) {
+                parents.add(e.getAsLong());
+            }
+        }
+        Map<Long, RoomDigestDao.Node> nodes = new RoomDigestDao().level("room-1", level, parents);
+        long changed = bucket >> (RoomDigestDao.FANOUT_BITS * level);
+        if (parents == null || parents.contains(changed >> RoomDigestDao.FANOUT_BITS)) {
+            nodes.computeIfAbsent(changed, k -> new RoomDigestDao.Node()).count++;
+        }
+        JsonObject answer = new JsonObject();
+        nodes.forEach((n, node) -> answer.addProperty(String.valueOf(n), node.toString()));
+
+        JsonObject out = new JsonObject();
+        out.addProperty("roomId", payload.get("roomId").getAsString());
+        out.addProperty("requestId", req.msgId);
+        out.add("messages", new JsonArray());
+        out.addProperty("hasMore", false);
+        out.add("digest", answer);
+        MessageEnvelope resp = new MessageEnvelope();
+        resp.protocolVersion = 1;
+        resp.type = MessageType.SYNC_RESPONSE;
+        resp.msgId = "digest-" + req.msgId;
+        resp.from = new MessageEnvelope.NodeInfo(id.nodeId, id.displayName);
+        resp.payload = out;
+        return resp;
+    }
+
+    private static boolean isHeadProbe(MessageEnvelope env) {
+        JsonObject payload = env.payload.getAsJsonObject();
+        return payload.has("headOnly") && payload.get("headOnly").getAsBoolean();
+    }
+
+    private static RoomMember member(String roomId, Identity id, long lastSeen) {
+        RoomMember m = new RoomMember();
+        m.roomId = roomId;
+        m.memberNodeId = id.nodeId;
+        m.memberName = id.displayName;
+        m.lastKnownIp = "127.0.0.1";
+        m.lastKnownP2pPort = id.p2pPort;
+        m.lastSeen = lastSeen;
+        return m;
+    }
+
+    private static Message roomMsg(String msgId, String roomId, long ts, long clock) {
+        Message m = new Message();
+        m.msgId = msgId;
+        m.convId = "conv-" + roomId;
+        m.chatType = "ROOM";
+        m.roomId = roomId;
+        m.direction = "IN";
+        m.fromNodeId = "node-b";
+        m.content = "x";
+        m.contentType = "text/plain";
+        m.ts = ts;
+        m.updatedAt = ts;
+        m.clockValue = String.valueOf(clock);
+        m.status = "RECEIVED";
+        return m;
+    }
+
+    private static Message numbered(String msgId, String origin, long originSeq, long clock) {
+        Message m = roomMsg(msgId, "room-1", 1000 + clock, clock);
+        m.fromNodeId = origin;
+        m.originSeq = originSeq;
+        return m;
+    }
+
+    private static Identity identity(String nodeId, int port) {
+        Identity id = new Identity();
+        id.nodeId = nodeId;
+        id.displayName = nodeId;
+        id.p2pPort = port;
+        id.webPort = 0;
+        return id;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.MessageDao.Message;
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BulkApplyTest {
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void pageIsAppliedInOneTransactionWithExactInsertCount() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        MessageDao messageDao = new MessageDao();
+        RoomMemberDao memberDao = new RoomMemberDao();
+        SeenDao seenDao = new SeenDao();
+
+        messageDao.insert(msg("m-3"));
+        List<Message> page = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            page.add(msg("m-" + i));
+            ids.add("m-" + i);
+        }
+        page.add(msg("m-7"));
+
+        int inserted = Db.transaction(conn -> {
+            seenDao.markSeenAll(ids, 1);
+            int n = messageDao.insertAllIgnore(page);
+            memberDao.upsertAll(List.of(member("a", "Alice"), member("b", "Bob")));
+            return n;
+        });
+
+        assertEquals(499, inserted);
+        assertEquals(0, messageDao.insertAllIgnore(page));
+        assertFalse(seenDao.markSeen("m-250", 2));
+        assertEquals(2, memberDao.listMembers("room-1").size());
+    }
+
+    private static Message msg(String msgId) {
+        Message m = new Message();
+        m.msgId = msgId;
+        m.convId = "conv-1";
+        m.chatType = "ROOM";
+        m.roomId = "room-1";
+        m.direction = "IN";
+        m.fromNodeId = "a";
+        m.content = "x";
+        m.contentType = "text/plain";
+        m.ts = 1000;
+        m.clockValue = "1";
+        m.status = "DELIVERED";
+        return m;
+    }
+
+    private static RoomMember member(String nodeId, String name) {
+        RoomMember m = new RoomMember();
+        m.roomId = "room-1";
+        m.memberNodeId = nodeId;
+        m.memberName = name;
+        m.lastSeen = 1;
+        return m;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.MessageDao.Message;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Hot DAO calls against a real (temp file) database.
+// mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+//   -Dexec.args="-cp %classpath org.openjdk.jmh.Main DaoBenchmark"
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DaoBenchmark {
+
+    private MessageDao messageDao;
+    private PeerDao peerDao;
+    private long seq;
+
+    @Setup
+    public void setup() throws Exception {
+        Path db = Files.createTempFile("lanchat-bench-", ".db");
+        Db.init(db.toString());
+        messageDao = new MessageDao();
+        peerDao = new PeerDao();
+        for (int i = 0; i < 1000; i++) {
+            peerDao.upsertPeer("peer-" + i, "Peer " + i, "10.0.0." + (i % 250), 19000 + i, i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Benchmark
+    public void messageInsert() throws Exception {
+        long n = seq++;
+        Message m = new Message();
+        m.msgId = "bench-" + n;
+        m.convId = "conv-1";
+        m.chatType = "ROOM";
+        m.roomId = "room-1";
+        m.direction = "IN";
+        m.fromNodeId = "peer-1";
+        m.content = "hello";
+        m.contentType = "text/plain";
+        m.ts = n;
+        m.clockValue = String.valueOf(n);
+        m.status = "DELIVERED";
+        messageDao.insert(m);
+    }
+
+    @Benchmark
+    public PeerDao.Peer getPeerByNodeId() throws Exception {
+        return peerDao.getPeerByNodeId("peer-" + (seq++ % 1000));
+    }
+}
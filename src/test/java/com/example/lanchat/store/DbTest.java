@@ -0,0 +1,108 @@
+package com.example.lanchat.store;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DbTest {
+
+    @Before
+    public void setUp() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+    }
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void readsAreNotBlockedBySlowWrite() throws Exception {
+        new PeerDao().upsertPeer("p1", "P1", "127.0.0.1", 1, 1);
+
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> slowWrite = CompletableFuture.runAsync(() -> {
+            try {
+                Db.execute(conn -> {
+                    try (Statement st = conn.createStatement()) {
+                        st.executeUpdate("UPDATE peers SET peer_name = 'P1b'");
+                    }
+                    writing.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        assertEquals("P1b", new PeerDao().getPeerByNodeId("p1").name);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        release.countDown();
+        slowWrite.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void readInsideWriteSeesItsOwnChanges() throws Exception {
+        int count = Db.write(conn -> {
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("INSERT INTO peers (peer_node_id, peer_name) VALUES ('p2', 'P2')");
+            }
+            return Db.read(c -> {
+                try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM peers")) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            });
+        });
+        assertEquals(1, count);
+    }
+
+    @Test
+    public void repeatedStatementsComeFromCache() throws Exception {
+        PeerDao dao = new PeerDao();
+        dao.upsertPeer("p4", "P4", "127.0.0.1", 4, 4);
+        // getPeerByNodeId is served by DirectoryCache; a list query always reaches SQLite.
+        for (int i = 0; i < 20; i++) {
+            dao.listOnlinePeers(10, 100);
+        }
+        long misses = Db.statementCacheMisses();
+        long hits = Db.statementCacheHits();
+        for (int i = 0; i < 100; i++) {
+            dao.listOnlinePeers(10, 100);
+        }
+        assertEquals(misses, Db.statementCacheMisses());
+        assertEquals(hits + 100, Db.statementCacheHits());
+    }
+
+    @Test
+    public void readConnectionsAreReadOnly() throws Exception {
+        try {
+            Db.read(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    return st.executeUpdate("INSERT INTO peers (peer_node_id, peer_name) VALUES ('p3', 'P3')");
+                }
+            });
+            fail("write through a read connection");
+        } catch (SQLException expected) {
+        }
+    }
+}
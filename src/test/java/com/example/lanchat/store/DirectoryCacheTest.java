@@ -0,0 +1,115 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectoryCacheTest {
+
+    @Before
+    public void setUp() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+    }
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void repeatedLookupsRunNoStatements() throws Exception {
+        PeerDao peers = new PeerDao();
+        RoomMemberDao members = new RoomMemberDao();
+        peers.upsertPeer("n1", "Node1", "10.0.0.1", 19000, 1000);
+        members.upsert(member("r1", "n1", "Alice"));
+
+        assertEquals("Node1", peers.getPeerByNodeId("n1").name);
+        assertNull(peers.getPeerByNodeId("unknown"));
+        assertTrue(members.isMember("r1", "n1"));
+
+        long before = statements();
+        for (int i = 0; i < 500; i++) {
+            assertEquals("Alice", members.getMember("r1", "n1").memberName);
+            assertTrue(members.isMember("r1", "n1"));
+            assertFalse(members.isMember("r1", "n2"));
+            assertEquals("Node1", peers.getPeerByNodeId("n1").name);
+            assertNull(peers.getPeerByNodeId("unknown"));
+        }
+        assertEquals(0, statements() - before);
+
+        // Returned objects are copies.
+        members.getMember("r1", "n1").memberName = "changed";
+        assertEquals("Alice", members.getMember("r1", "n1").memberName);
+    }
+
+    @Test
+    public void writesAreVisibleAndRollbacksAreNot() throws Exception {
+        PeerDao peers = new PeerDao();
+        RoomMemberDao members = new RoomMemberDao();
+        assertNull(peers.getPeerByNodeId("n1"));
+        assertFalse(members.isMember("r1", "n1"));
+
+        peers.touchPeer("n1", "Node1", "10.0.0.1", 19000, 1000);
+        members.upsert(member("r1", "n1", "Alice"));
+        assertEquals("Node1", peers.getPeerByNodeId("n1").name);
+        assertEquals(1, members.listMembers("r1").size());
+
+        try {
+            Db.transaction(conn -> {
+                members.upsert(member("r1", "n2", "Bob"));
+                peers.upsertPeer("n2", "Node2", "10.0.0.2", 19000, 1000);
+                throw new SQLException("boom");
+            });
+            fail();
+        } catch (SQLException expected) {
+        }
+        assertFalse(members.isMember("r1", "n2"));
+        assertNull(peers.getPeerByNodeId("n2"));
+
+        members.removeMember("r1", "n1");
+        assertFalse(members.isMember("r1", "n1"));
+        assertTrue(members.listMembers("r1").isEmpty());
+    }
+
+    @Test
+    public void unknownPeerLookupsStayBounded() throws Exception {
+        PeerDao peers = new PeerDao();
+        for (int i = 0; i < DirectoryCache.MISS_CAP + 500; i++) {
+            assertNull(peers.getPeerByNodeId("stranger-" + i));
+        }
+        assertEquals(DirectoryCache.MISS_CAP, Db.directory().cachedMisses());
+
+        // The most recent misses are still answered from memory; a write replaces the miss.
+        String last = "stranger-" + (DirectoryCache.MISS_CAP + 499);
+        long before = statements();
+        assertNull(peers.getPeerByNodeId(last));
+        assertEquals(0, statements() - before);
+        peers.touchPeer(last, "Late", "10.0.0.9", 19000, 1000);
+        assertEquals("Late", peers.getPeerByNodeId(last).name);
+        assertEquals(DirectoryCache.MISS_CAP - 1, Db.directory().cachedMisses());
+    }
+
+    private static long statements() {
+        return Db.statementCacheHits() + Db.statementCacheMisses();
+    }
+
+    private static RoomMember member(String roomId, String nodeId, String name) {
+        RoomMember m = new RoomMember();
+        m.roomId = roomId;
+        m.memberNodeId = nodeId;
+        m.memberName = name;
+        m.lastSeen = 1000;
+        return m;
+    }
+}
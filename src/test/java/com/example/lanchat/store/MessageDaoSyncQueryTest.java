@@ -7,7 +7,10 @@ import java.util.List;
 import org.junit.After;
 import org.junit.Test;
 
+import static com.example.lanchat.store.QueryPlans.plan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class MessageDaoSyncQueryTest {
 
@@ -33,6 +36,77 @@ public class MessageDaoSyncQueryTest {
         assertEquals(2, after1.size());
         assertEquals("m2", after1.get(0).msgId);
         assertEquals("m3", after1.get(1).msgId);
+
+        String plan = plan(MessageDao.ROOM_AFTER_CLOCK_SQL, roomId, 1L, Long.MAX_VALUE, 10);
+        assertTrue(plan, plan.contains("idx_messages_room_clock"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void keysetPagingKeepsTiesAndUsesRoomClockIndex() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        MessageDao dao = new MessageDao();
+        insertRoomMsg(dao, "a", "conv-1", "room-1", 1000, 5);
+        insertRoomMsg(dao, "b", "conv-1", "room-1", 1000, 5);
+        insertRoomMsg(dao, "c", "conv-1", "room-1", 1001, 5);
+        insertRoomMsg(dao, "d", "conv-1", "room-1", 900, 6);
+        insertRoomMsg(dao, "x", "conv-2", "room-2", 1000, 5);
+
+        List<Message> page1 = dao.listRoomMessagesAfterClock("room-1", "0", 2);
+        assertEquals("a", page1.get(0).msgId);
+        assertEquals("b", page1.get(1).msgId);
+        List<Message> page2 = dao.listRoomMessagesAfter("room-1", 5, 1000, "b", 10);
+        assertEquals(2, page2.size());
+        assertEquals("c", page2.get(0).msgId);
+        assertEquals("d", page2.get(1).msgId);
+        List<Message> bounded = dao.listRoomMessagesAfter("room-1", 5, 1000, "a", 5, false, 10);
+        assertEquals(2, bounded.size());
+        assertEquals("c", bounded.get(1).msgId);
+        assertEquals(6, dao.maxRoomClock("room-1", false));
+
+        String plan = plan(MessageDao.ROOM_AFTER_KEYSET_SQL, "room-1", 5L, 1000L, "b", Long.MAX_VALUE, 10);
+        assertTrue(plan, plan.contains("idx_messages_room_clock"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        String legacyPlan = plan(MessageDao.LEGACY_ROOM_AFTER_KEYSET_SQL, "room-1", 5L, 1000L, "b", Long.MAX_VALUE, 10);
+        assertTrue(legacyPlan, legacyPlan.contains("idx_messages_room_legacy_clock"));
+        assertFalse(legacyPlan, legacyPlan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void changeSequenceReturnsEveryInsertAndStatusChangeOnce() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        MessageDao dao = new MessageDao();
+        insertRoomMsg(dao, "a", "conv-1", "room-1", 1000, 1);
+        insertRoomMsg(dao, "b", "conv-1", "room-1", 1000, 2);
+        insertRoomMsg(dao, "x", "conv-2", "room-2", 1000, 1);
+
+        List<Message> first = dao.listMessagesChangedAfter(0, "conv-1", 10);
+        assertEquals(2, first.size());
+        assertEquals("a", first.get(0).msgId);
+        assertEquals("b", first.get(1).msgId);
+        long cursor = first.get(1).seq;
+        assertTrue(cursor > first.get(0).seq);
+
+        // Same-millisecond status change plus a duplicate insert that must not bump the sequence.
+        dao.updateStatus("a", "READ");
+        dao.updateStatus("a", "READ");
+        Message dup = first.get(1);
+        assertEquals(0, dao.insertAllIgnore(List.of(dup)));
+
+        List<Message> next = dao.listMessagesChangedAfter(cursor, "conv-1", 10);
+        assertEquals(1, next.size());
+        assertEquals("a", next.get(0).msgId);
+        assertEquals("READ", next.get(0).status);
+        assertTrue(dao.listMessagesChangedAfter(next.get(0).seq, "conv-1", 10).isEmpty());
+
+        String plan = plan(MessageDao.CHANGED_AFTER_SQL, "conv-1", cursor, 10);
+        assertTrue(plan, plan.contains("idx_messages_conv_seq"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
     }
 
     private static void insertRoomMsg(MessageDao dao, String msgId, String convId, String roomId, long ts, long clock) throws Exception {
@@ -0,0 +1,26 @@
+package com.example.lanchat.store;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+final class QueryPlans {
+
+    private QueryPlans() {
+    }
+
+    // EXPLAIN QUERY PLAN details for sql, one step per line; args are bound in order.
+    static String plan(String sql, Object... args) throws Exception {
+        return Db.read(conn -> {
+            StringBuilder sb = new StringBuilder();
+            try (PreparedStatement ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+                for (int i = 0; i < args.length; i++) {
+                    ps.setObject(i + 1, args[i]);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) sb.append(rs.getString("detail")).append('\n');
+                }
+            }
+            return sb.toString();
+        });
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.MessageDao.Message;
+import com.example.lanchat.store.RoomDigestDao.Node;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class RoomDigestDaoTest {
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void incrementalLeavesMatchARebuildAndFoldIntoLevels() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        MessageDao dao = new MessageDao();
+        RoomDigestDao digests = new RoomDigestDao();
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            batch.add(msg("m" + i, i % 2 == 0 ? "room-1" : "room-2", i * 7L));
+        }
+        dao.insertAllIgnore(batch);
+        dao.insertAllIgnore(batch.subList(0, 100));
+        dao.insertIgnore(msg("m0", "room-1", 0));
+        dao.insert(msg("single", "room-1", 20000));
+
+        Map<Long, Node> leaves = digests.level("room-1", 0, null);
+        Map<Long, Node> top = digests.level("room-1", RoomDigestDao.LEVELS - 1, null);
+        long count = 0;
+        for (Node n : leaves.values()) {
+            count += n.count;
+        }
+        assertEquals(1501, count);
+        assertEquals(1, top.size());
+        assertEquals(1501, top.get(0L).count);
+
+        Db.execute(conn -> {
+            RoomDigestDao.rebuild(conn);
+        });
+        assertEquals(leaves, digests.level("room-1", 0, null));
+        assertEquals(top, digests.level("room-1", RoomDigestDao.LEVELS - 1, null));
+
+        // Level 1 under parent 0 (level 2) is folded from the first 256 leaves only.
+        Map<Long, Node> children = digests.level("room-1", 1, List.of(0L));
+        Node first = new Node();
+        for (Map.Entry<Long, Node> e : leaves.entrySet()) {
+            if (e.getKey() < 16) first.add(e.getValue().hash, e.getValue().count);
+        }
+        assertEquals(first, children.get(0L));
+        assertEquals(first, Node.parse(first.toString()));
+
+        dao.insert(msg("late", "room-1", 5));
+        assertNotEquals(leaves.get(0L), digests.level("room-1", 0, null).get(0L));
+        assertEquals(leaves.get(1L), digests.level("room-1", 0, null).get(1L));
+    }
+
+    private static Message msg(String msgId, String roomId, long clock) {
+        Message m = new Message();
+        m.msgId = msgId;
+        m.convId = "conv-" + roomId;
+        m.chatType = "ROOM";
+        m.roomId = roomId;
+        m.direction = "IN";
+        m.fromNodeId = "n1";
+        m.content = "x";
+        m.contentType = "text/plain";
+        m.ts = 1000 + clock;
+        m.clockValue = String.valueOf(clock);
+        m.status = "DELIVERED";
+        return m;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.MessageDao.Message;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+import static com.example.lanchat.store.QueryPlans.plan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoomVectorDaoTest {
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void vectorStopsAtGapsAndLowClocksAreStillFound() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        MessageDao dao = new MessageDao();
+        RoomVectorDao vectors = new RoomVectorDao();
+        // n2 restarted, so its clocks run far below n1's; numbering doesn't care.
+        dao.insertAllIgnore(List.of(
+                msg("a1", "n1", 1, 500), msg("a2", "n1", 2, 501), msg("a4", "n1", 4, 503),
+                msg("b1", "n2", 1, 3), msg("b2", "n2", 2, 4)));
+
+        Map<String, Long> v = vectors.advance("room-1");
+        assertEquals(2L, (long) v.get("n1"));
+        assertEquals(2L, (long) v.get("n2"));
+        assertEquals(Map.of("n1", 4L, "n2", 2L), dao.originHeads("room-1"));
+
+        dao.insertAllIgnore(List.of(msg("a3", "n1", 3, 502), msg("b3", "n2", 3, 5)));
+        v = vectors.advance("room-1");
+        assertEquals(4L, (long) v.get("n1"));
+        assertEquals(3L, (long) v.get("n2"));
+
+        List<Message> missing = dao.listRoomMessagesFromOrigin("room-1", "n2", 1, Long.MAX_VALUE, 10);
+        assertEquals(2, missing.size());
+        assertEquals("b2", missing.get(0).msgId);
+        assertEquals(3, missing.get(1).originSeq);
+
+        String plan = plan(MessageDao.ROOM_FROM_ORIGIN_SQL, "room-1", "n2", 1L, Long.MAX_VALUE, 10);
+        assertTrue(plan, plan.contains("idx_messages_room_origin"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void ownMessagesAreNumberedPerRoom() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        MessageDao dao = new MessageDao();
+        Message a = msg("m1", "me", 0, 1);
+        Message b = msg("m2", "me", 0, 2);
+        Message c = msg("m3", "me", 0, 3);
+        c.roomId = "room-2";
+        dao.insertNumbered(a);
+        dao.insertNumbered(b);
+        dao.insertNumbered(c);
+        assertEquals(1, a.originSeq);
+        assertEquals(2, b.originSeq);
+        assertEquals(1, c.originSeq);
+    }
+
+    private static Message msg(String msgId, String from, long originSeq, long clock) {
+        Message m = new Message();
+        m.msgId = msgId;
+        m.convId = "conv-1";
+        m.chatType = "ROOM";
+        m.roomId = "room-1";
+        m.direction = "IN";
+        m.fromNodeId = from;
+        m.content = "x";
+        m.contentType = "text/plain";
+        m.ts = 1000 + clock;
+        m.clockValue = String.valueOf(clock);
+        m.status = "DELIVERED";
+        m.originSeq = originSeq;
+        return m;
+    }
+}
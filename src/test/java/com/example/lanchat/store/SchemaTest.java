@@ -0,0 +1,61 @@
+package com.example.lanchat.store;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SchemaTest {
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void legacyDatabaseIsUpgradedOnceAndNotTouchedAgain() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        String url = "jdbc:sqlite:" + db;
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE messages (msg_id TEXT PRIMARY KEY, conv_id TEXT, direction TEXT, " +
+                    "from_node_id TEXT, to_node_id TEXT, content TEXT, content_type TEXT, ts INTEGER, " +
+                    "clock_value TEXT, status TEXT)");
+            stmt.execute("INSERT INTO messages (msg_id, conv_id, ts, clock_value) VALUES ('m1', 'c1', 1000, '7')");
+        }
+
+        Db.init(db.toString());
+        assertEquals(Schema.VERSION, (int) Db.read(Schema::userVersion));
+        Db.read(conn -> {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT updated_at, clock, seq, chat_type FROM messages WHERE msg_id = 'm1'")) {
+                assertTrue(rs.next());
+                assertEquals(1000, rs.getLong("updated_at"));
+                assertEquals(7, rs.getLong("clock"));
+                assertTrue(rs.getLong("seq") > 0);
+            }
+            return null;
+        });
+        Db.close();
+
+        // A backfill that ran on every startup would overwrite this NULL.
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("UPDATE messages SET updated_at = NULL");
+        }
+        Db.init(db.toString());
+        assertEquals(Schema.VERSION, (int) Db.read(Schema::userVersion));
+        long nulls = Db.read(conn -> {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM messages WHERE updated_at IS NULL")) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+        assertEquals(1, nulls);
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.core.Settings;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeenDaoTest {
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void seenIdsSurviveRestart() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        SeenDao dao = new SeenDao();
+        long now = System.currentTimeMillis();
+        assertTrue(dao.markSeen("m-1", now));
+        assertFalse(dao.markSeen("m-1", now + 1));
+        assertTrue(dao.markSeen("m-2", now + 2));
+
+        Db.close();
+        Db.init(db.toString());
+        assertEquals(2, countRows());
+        assertFalse(dao.markSeen("m-1", now + 1000));
+        assertFalse(dao.markSeen("m-2", now + 1000));
+        assertTrue(dao.markSeen("m-3", now + 1000));
+    }
+
+    @Test
+    public void rowsWrittenBeforeFilterAreStillDuplicates() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        Db.execute(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO seen_messages (msg_id, first_seen_ts) VALUES (?, ?)")) {
+                ps.setString(1, "legacy");
+                ps.setLong(2, System.currentTimeMillis() - 1000);
+                ps.executeUpdate();
+            }
+        });
+        Db.close();
+        Db.init(db.toString());
+
+        assertFalse(new SeenDao().markSeen("legacy", System.currentTimeMillis()));
+    }
+
+    @Test
+    public void concurrentCallersAdmitEachIdOnce() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        SeenDao dao = new SeenDao();
+
+        AtomicInteger admitted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread th = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    try {
+                        if (dao.markSeen("id-" + i, i)) admitted.incrementAndGet();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertEquals(2000, admitted.get());
+
+        Db.close();
+        Db.init(db.toString());
+        assertEquals(2000, countRows());
+    }
+
+    @Test
+    public void prunedIdsStayDuplicatesWhileTheMessageIsStored() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        SeenDao dao = new SeenDao();
+        long now = System.currentTimeMillis();
+        // A whole filter slice before the horizon, so its generation goes with the prune.
+        long old = now - Settings.SEEN_RETENTION_MS - Settings.SEEN_RETENTION_MS / Settings.SEEN_FILTER_GENERATIONS - 1;
+        for (int i = 0; i < Settings.SEEN_PRUNE_CHUNK + 10; i++) {
+            assertTrue(dao.markSeen("old-" + i, old));
+        }
+        assertTrue(dao.markSeen("recent", now));
+        Db.seenLog().flush();
+        assertEquals(2, Db.seenLog().generations());
+
+        MessageDao.Message m = new MessageDao.Message();
+        m.msgId = "old-0";
+        m.convId = "conv-1";
+        m.ts = old;
+        new MessageDao().insert(m);
+
+        Maintenance.Snapshot stats = Db.runMaintenance(now);
+        assertEquals(Settings.SEEN_PRUNE_CHUNK + 10, stats.seenPruned);
+        assertEquals(1, countRows());
+        assertEquals(1, Db.maintenanceMetrics().runs);
+        assertTrue(stats.toString(), stats.pagesReclaimed > 0);
+
+        assertEquals(1, Db.seenLog().generations());
+        assertFalse(dao.markSeen("recent", now));
+        // Past the horizon the filters have forgotten it; the stored message still stops a replay.
+        assertTrue(dao.markSeen("old-0", now));
+        assertFalse(new MessageDao().insertIgnore(m));
+        Db.close();
+        Db.init(db.toString());
+        assertEquals(1, Db.seenLog().generations());
+        assertFalse(dao.markSeen("recent", now));
+        // Past the horizon and never stored: admitted again.
+        assertTrue(dao.markSeen("old-1", now));
+    }
+
+    private static int countRows() throws Exception {
+        return Db.read(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM seen_messages");
+                 ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+}
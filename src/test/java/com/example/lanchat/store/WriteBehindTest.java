@@ -0,0 +1,117 @@
+package com.example.lanchat.store;
+
+import com.example.lanchat.store.ConversationDao.Conversation;
+import com.example.lanchat.store.PeerDao.Peer;
+import com.example.lanchat.store.RoomMemberDao.RoomMember;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindTest {
+
+    private Path db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+    }
+
+    @After
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Test
+    public void readsSeeBufferedValuesBeforeTheyAreFlushed() throws Exception {
+        ConversationDao convs = new ConversationDao();
+        Conversation a = convs.getOrCreatePrivate("peer-a", "A", 100);
+        Conversation b = convs.getOrCreatePrivate("peer-b", "B", 200);
+        for (long ts = 300; ts <= 400; ts++) {
+            convs.updateLastMsgTs(a.convId, ts);
+        }
+        assertEquals(100, queryLong("SELECT last_msg_ts FROM conversations WHERE conv_id = '" + a.convId + "'"));
+        assertEquals(400, convs.getByPeer("PRIVATE", "peer-a").lastMsgTs);
+        assertEquals(a.convId, convs.listConversations().get(0).convId);
+        assertEquals(b.convId, convs.listConversations().get(1).convId);
+
+        PeerDao peers = new PeerDao();
+        peers.touchPeer("n1", "Node1", "10.0.0.1", 19000, 5000);
+        assertNull(queryString("SELECT peer_name FROM peers WHERE peer_node_id = 'n1'"));
+        assertEquals("10.0.0.1", peers.getPeerByNodeId("n1").ip);
+        assertEquals(1, peers.listOnlinePeers(5000, 1000).size());
+        assertTrue(peers.listOnlinePeers(9000, 1000).isEmpty());
+
+        RoomMemberDao members = new RoomMemberDao();
+        members.touch(member("r1", "n1", "Node1", "10.0.0.1", 19000, 5000));
+        members.touch(member("r1", "n1", "Node1", null, 0, 6000));
+        assertTrue(members.isMember("r1", "n1"));
+        RoomMember m = members.getMember("r1", "n1");
+        assertEquals("10.0.0.1", m.lastKnownIp);
+        assertEquals(19000, m.lastKnownP2pPort);
+        assertEquals(6000, m.lastSeen);
+        assertEquals(1, members.listMembers("r1").size());
+
+        Db.flushWriteBehind();
+        assertEquals(400, queryLong("SELECT last_msg_ts FROM conversations WHERE conv_id = '" + a.convId + "'"));
+        assertEquals("Node1", queryString("SELECT peer_name FROM peers WHERE peer_node_id = 'n1'"));
+        assertEquals(6000, queryLong("SELECT last_seen FROM room_members WHERE room_id = 'r1' AND member_node_id = 'n1'"));
+        assertEquals(19000, queryLong("SELECT last_known_p2p_port FROM room_members WHERE room_id = 'r1' AND member_node_id = 'n1'"));
+    }
+
+    @Test
+    public void directWritesWinOverBufferedOnesAndCloseFlushes() throws Exception {
+        RoomMemberDao members = new RoomMemberDao();
+        members.touch(member("r1", "n1", "Old", "10.0.0.1", 19000, 5000));
+        members.removeMember("r1", "n1");
+        Db.flushWriteBehind();
+        assertFalse(members.isMember("r1", "n1"));
+
+        PeerDao peers = new PeerDao();
+        peers.touchPeer("n2", "Stale", "10.0.0.2", 19000, 5000);
+        peers.upsertPeer("n2", "Fresh", "10.0.0.3", 19001, 6000);
+        Db.flushWriteBehind();
+        assertEquals("Fresh", peers.getPeerByNodeId("n2").name);
+
+        peers.touchPeer("n3", "Node3", "10.0.0.4", 19000, 7000);
+        Db.close();
+        Db.init(db.toString());
+        assertEquals("Node3", queryString("SELECT peer_name FROM peers WHERE peer_node_id = 'n3'"));
+    }
+
+    private static RoomMember member(String roomId, String nodeId, String name, String ip, int port, long lastSeen) {
+        RoomMember m = new RoomMember();
+        m.roomId = roomId;
+        m.memberNodeId = nodeId;
+        m.memberName = name;
+        m.lastKnownIp = ip;
+        m.lastKnownP2pPort = port;
+        m.lastSeen = lastSeen;
+        return m;
+    }
+
+    private static long queryLong(String sql) throws Exception {
+        return Db.read(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1L;
+            }
+        });
+    }
+
+    private static String queryString(String sql) throws Exception {
+        return Db.read(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.core.Settings;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.store.PeerDao;
+import com.example.lanchat.util.BucketedTtlSet;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ConnectionManagerTest {
+
+    private final List<Connection> serverSide = new ArrayList<>();
+    private ServerSocket listener;
+    private ExecutorService pool;
+    private ConnectionManager manager;
+
+    @After
+    public void tearDown() throws Exception {
+        if (manager != null) manager.closeAll();
+        synchronized (serverSide) {
+            for (Connection c : serverSide) c.close();
+        }
+        if (listener != null) listener.close();
+        if (pool != null) pool.shutdownNow();
+        Db.close();
+    }
+
+    @Test
+    public void concurrentCallersShareOneDial() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+        PeerDao peerDao = new PeerDao();
+        pool = Executors.newCachedThreadPool();
+
+        listener = new ServerSocket(0);
+        int port = listener.getLocalPort();
+        AtomicInteger accepted = new AtomicInteger();
+        Identity serverId = identity("server", port);
+        pool.submit(() -> {
+            while (!listener.isClosed()) {
+                try {
+                    Socket s = listener.accept();
+                    accepted.incrementAndGet();
+                    SocketConnection conn = new SocketConnection(s, serverId, peerDao, new BucketedTtlSet(100, 60_000), null, noop());
+                    synchronized (serverSide) {
+                        serverSide.add(conn);
+                    }
+                    pool.submit(conn::runReadLoop);
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        });
+
+        manager = new ConnectionManager(identity("client", 1), peerDao,
+                new BucketedTtlSet(Settings.SEEN_MSG_MAX_SIZE, Settings.SEEN_MSG_TTL_MS), pool);
+
+        int callers = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Connection>> results = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            boolean byNode = i % 2 == 0;
+            results.add(pool.submit(() -> {
+                start.await();
+                return byNode
+                        ? manager.getOrConnect("server", "127.0.0.1", port)
+                        : manager.getOrConnectAddr("127.0.0.1", port);
+            }));
+        }
+        start.countDown();
+
+        Set<Connection> distinct = new HashSet<>();
+        for (Future<Connection> f : results) {
+            distinct.add(f.get());
+        }
+        assertEquals(1, distinct.size());
+        assertEquals(1, accepted.get());
+        assertSame(distinct.iterator().next(), manager.getByAddr("127.0.0.1", port));
+    }
+
+    private static Connection.HandshakeListener noop() {
+        return new Connection.HandshakeListener() {
+            @Override
+            public void onHandshakeSuccess(Connection conn, PeerInfo remote) {
+            }
+
+            @Override
+            public void onClosed(Connection conn) {
+            }
+        };
+    }
+
+    private static Identity identity(String nodeId, int port) {
+        Identity id = new Identity();
+        id.nodeId = nodeId;
+        id.displayName = nodeId;
+        id.p2pPort = port;
+        id.webPort = 0;
+        return id;
+    }
+}
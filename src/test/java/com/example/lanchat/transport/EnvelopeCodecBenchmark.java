@@ -0,0 +1,69 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JSON lines (v1) vs length-prefixed binary (v2) for a typical room message.
+// mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+//   -Dexec.args="-cp %classpath org.openjdk.jmh.Main EnvelopeCodec"
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeCodecBenchmark {
+
+    @Param({"1", "2"})
+    public int version;
+
+    private MessageEnvelope env;
+    private byte[] frame;
+    private FrameReader reader;
+
+    @Setup
+    public void setup() throws Exception {
+        env = new MessageEnvelope();
+        env.protocolVersion = 1;
+        env.type = MessageType.CHAT;
+        env.msgId = UUID.randomUUID().toString();
+        env.from = new MessageEnvelope.NodeInfo(UUID.randomUUID().toString(), "alice");
+        env.ts = System.currentTimeMillis();
+        env.clock = 12345;
+        JsonObject payload = new JsonObject();
+        payload.addProperty("chatType", "ROOM");
+        payload.addProperty("roomId", UUID.randomUUID().toString());
+        payload.addProperty("content", "see you at the standup in five minutes");
+        payload.addProperty("contentType", "text/plain");
+        env.payload = payload;
+
+        frame = Framing.encode(env, version);
+        reader = new FrameReader(64 * 1024);
+        reader.setVersion(version);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return Framing.encode(env, version);
+    }
+
+    @Benchmark
+    public MessageEnvelope decode() throws Exception {
+        return reader.read(new ByteArrayInputStream(frame));
+    }
+}
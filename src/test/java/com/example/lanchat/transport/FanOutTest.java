@@ -0,0 +1,104 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.service.TransportService;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.google.gson.JsonObject;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FanOutTest {
+
+    private TransportService a;
+    private TransportService b;
+    private TransportService c;
+
+    @After
+    public void tearDown() {
+        if (a != null) a.stop();
+        if (b != null) b.stop();
+        if (c != null) c.stop();
+        Db.close();
+    }
+
+    @Test
+    public void deadMemberDoesNotHoldUpOthers() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        Identity idc = identity("node-c", freePort());
+        a = new TransportService(ida);
+        b = new TransportService(idb);
+        c = new TransportService(idc);
+        CompletableFuture<String> atB = new CompletableFuture<>();
+        CompletableFuture<String> atC = new CompletableFuture<>();
+        b.onMessage((remote, env) -> atB.complete(text(env)));
+        c.onMessage((remote, env) -> atC.complete(text(env)));
+        a.start();
+        b.start();
+        c.start();
+        a.connectToAddr("127.0.0.1", idb.p2pPort);
+
+        long started = System.currentTimeMillis();
+        Map<String, CompletableFuture<Void>> outcomes = a.fanOut(List.of(
+                new TransportService.Recipient("node-dead", "127.0.0.1", freePort()),
+                new TransportService.Recipient("node-b", "127.0.0.1", idb.p2pPort),
+                new TransportService.Recipient("node-c", "127.0.0.1", idc.p2pPort)
+        ), chat("hello room"));
+        assertTrue("fanOut blocked the caller", System.currentTimeMillis() - started < 1000);
+
+        assertEquals("hello room", atB.get(10, TimeUnit.SECONDS));
+        assertEquals("hello room", atC.get(10, TimeUnit.SECONDS));
+        outcomes.get("node-b").get(10, TimeUnit.SECONDS);
+        outcomes.get("node-c").get(10, TimeUnit.SECONDS);
+        try {
+            outcomes.get("node-dead").get(20, TimeUnit.SECONDS);
+            fail("dead member should fail");
+        } catch (ExecutionException expected) {
+        }
+    }
+
+    private static MessageEnvelope chat(String text) {
+        MessageEnvelope env = new MessageEnvelope();
+        env.type = MessageType.CHAT_TEST;
+        JsonObject payload = new JsonObject();
+        payload.addProperty("text", text);
+        env.payload = payload;
+        return env;
+    }
+
+    private static String text(MessageEnvelope env) {
+        return env.payload.getAsJsonObject().get("text").getAsString();
+    }
+
+    private static Identity identity(String nodeId, int port) {
+        Identity id = new Identity();
+        id.nodeId = nodeId;
+        id.displayName = nodeId;
+        id.p2pPort = port;
+        id.webPort = 0;
+        return id;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class FrameReaderTest {
+
+    @Test
+    public void readsFramesSplitAcrossSmallChunks() throws Exception {
+        String wire = "{\"type\":\"CHAT\",\"msgId\":\"a\",\"payload\":{\"content\":\"héllo 你好 😀\"}}\n"
+                + "\n"
+                + "{\"type\":\"ACK\",\"msgId\":\"b\"}\n"
+                + "{\"type\":\"CHAT\",\"msgId\":\"c\"}";
+        FrameReader reader = new FrameReader(1024);
+        InputStream in = new TrickleInputStream(wire.getBytes(StandardCharsets.UTF_8), 3);
+
+        MessageEnvelope first = reader.read(in);
+        assertEquals("a", first.msgId);
+        assertEquals("héllo 你好 😀", first.payload.getAsJsonObject().get("content").getAsString());
+        assertEquals("b", reader.read(in).msgId);
+        assertEquals("c", reader.read(in).msgId);
+        assertNull(reader.read(in));
+    }
+
+    @Test
+    public void keepsLeftoverBytesBetweenFramesInOneChunk() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("{\"type\":\"CHAT\",\"msgId\":\"m").append(i).append("\"}\n");
+        }
+        FrameReader reader = new FrameReader(64);
+        InputStream in = new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 200; i++) {
+            assertEquals("m" + i, reader.read(in).msgId);
+        }
+        assertNull(reader.read(in));
+    }
+
+    @Test
+    public void rejectsFramesOverLimit() throws Exception {
+        StringBuilder sb = new StringBuilder("{\"type\":\"CHAT\",\"msgId\":\"");
+        for (int i = 0; i < 200; i++) sb.append('x');
+        sb.append("\"}\n");
+        FrameReader reader = new FrameReader(100);
+        try {
+            reader.read(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)));
+            fail("expected FrameTooLargeException");
+        } catch (Framing.FrameTooLargeException e) {
+            assertEquals(true, e.sizeBytes > 100);
+        }
+    }
+
+    private static final class TrickleInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int pos;
+
+        TrickleInputStream(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= data.length) return -1;
+            int n = Math.min(Math.min(len, chunk), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.service.TransportService;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.google.gson.JsonObject;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class NioTransportTest {
+
+    private TransportService a;
+    private TransportService b;
+
+    @After
+    public void tearDown() {
+        if (a != null) a.stop();
+        if (b != null) b.stop();
+        Db.close();
+    }
+
+    @Test
+    public void nioPeerTalksToBlockingPeerBothWays() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        a = new TransportService(ida, TransportEngine.NIO);
+        b = new TransportService(idb, TransportEngine.POOLED);
+
+        CompletableFuture<String> atB = new CompletableFuture<>();
+        CompletableFuture<String> atA = new CompletableFuture<>();
+        b.onMessage((remote, env) -> atB.complete(remote.nodeId + ":" + text(env)));
+        a.onMessage((remote, env) -> atA.complete(remote.nodeId + ":" + text(env)));
+        a.start();
+        b.start();
+
+        a.sendToAddr("127.0.0.1", idb.p2pPort, chat("ping"));
+        assertEquals("node-a:ping", atB.get(10, TimeUnit.SECONDS));
+
+        b.send("node-a", "127.0.0.1", ida.p2pPort, chat("pong"));
+        assertEquals("node-b:pong", atA.get(10, TimeUnit.SECONDS));
+    }
+
+    private static MessageEnvelope chat(String text) {
+        MessageEnvelope env = new MessageEnvelope();
+        env.type = MessageType.CHAT_TEST;
+        JsonObject payload = new JsonObject();
+        payload.addProperty("text", text);
+        env.payload = payload;
+        return env;
+    }
+
+    private static String text(MessageEnvelope env) {
+        return env.payload.getAsJsonObject().get("text").getAsString();
+    }
+
+    private static Identity identity(String nodeId, int port) {
+        Identity id = new Identity();
+        id.nodeId = nodeId;
+        id.displayName = nodeId;
+        id.p2pPort = port;
+        id.webPort = 0;
+        return id;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
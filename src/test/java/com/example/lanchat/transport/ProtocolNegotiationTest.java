@@ -0,0 +1,154 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.service.TransportService;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ProtocolNegotiationTest {
+
+    private static final Gson GSON = new Gson();
+
+    private TransportService node;
+
+    @After
+    public void tearDown() {
+        if (node != null) node.stop();
+        Db.close();
+    }
+
+    @Test
+    public void binaryCodecRoundTrips() throws Exception {
+        MessageEnvelope env = new MessageEnvelope();
+        env.protocolVersion = 1;
+        env.type = MessageType.CHAT;
+        env.msgId = UUID.randomUUID().toString();
+        env.from = new MessageEnvelope.NodeInfo(UUID.randomUUID().toString(), "Zoë");
+        env.ts = 1_700_000_000_123L;
+        env.clock = 42;
+        JsonObject payload = new JsonObject();
+        payload.addProperty("content", "héllo 你好");
+        env.payload = payload;
+
+        MessageEnvelope back = roundTrip(env);
+        assertEquals(env.type, back.type);
+        assertEquals(env.msgId, back.msgId);
+        assertEquals(env.from.nodeId, back.from.nodeId);
+        assertEquals(env.from.name, back.from.name);
+        assertEquals(env.ts, back.ts);
+        assertEquals(env.clock, back.clock);
+        assertEquals(payload, back.payload);
+
+        MessageEnvelope odd = new MessageEnvelope();
+        odd.type = "CUSTOM";
+        odd.msgId = "not-a-uuid";
+        odd.from = new MessageEnvelope.NodeInfo("manual-node", null);
+        odd.clock = -1;
+        MessageEnvelope oddBack = roundTrip(odd);
+        assertEquals("CUSTOM", oddBack.type);
+        assertEquals("not-a-uuid", oddBack.msgId);
+        assertEquals("manual-node", oddBack.from.nodeId);
+        assertNull(oddBack.from.name);
+        assertEquals(-1, oddBack.clock);
+        assertNull(oddBack.payload);
+    }
+
+    @Test
+    public void v1OnlyPeerKeepsJsonLines() throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity id = new Identity();
+        id.nodeId = "node-v2";
+        id.displayName = "node-v2";
+        id.p2pPort = freePort();
+        node = new TransportService(id, TransportEngine.POOLED);
+        CompletableFuture<String> received = new CompletableFuture<>();
+        node.onMessage((remote, env) -> received.complete(env.payload.getAsJsonObject().get("text").getAsString()));
+        node.start();
+
+        try (Socket legacy = new Socket()) {
+            legacy.connect(new InetSocketAddress("127.0.0.1", id.p2pPort), 2000);
+            legacy.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(legacy.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = legacy.getOutputStream();
+
+            MessageEnvelope hello = GSON.fromJson(in.readLine(), MessageEnvelope.class);
+            assertEquals(MessageType.HELLO, hello.type);
+
+            writeLine(out, legacyHello());
+            writeLine(out, chat("from-legacy"));
+            assertEquals("from-legacy", received.get(5, TimeUnit.SECONDS));
+
+            node.send("legacy", "127.0.0.1", 1, chat("to-legacy"));
+            MessageEnvelope reply = GSON.fromJson(in.readLine(), MessageEnvelope.class);
+            assertEquals("to-legacy", reply.payload.getAsJsonObject().get("text").getAsString());
+        }
+    }
+
+    private static MessageEnvelope roundTrip(MessageEnvelope env) throws Exception {
+        byte[] frame = Framing.encode(env, Framing.PROTOCOL_V2);
+        FrameReader reader = new FrameReader(64 * 1024);
+        reader.setVersion(Framing.PROTOCOL_V2);
+        return reader.read(new java.io.ByteArrayInputStream(frame));
+    }
+
+    private static MessageEnvelope legacyHello() {
+        MessageEnvelope env = new MessageEnvelope();
+        env.protocolVersion = 1;
+        env.type = MessageType.HELLO;
+        env.msgId = UUID.randomUUID().toString();
+        env.from = new MessageEnvelope.NodeInfo("legacy", "legacy");
+        JsonObject payload = new JsonObject();
+        payload.addProperty("p2pPort", 1);
+        JsonArray supported = new JsonArray();
+        supported.add(1);
+        payload.add("supportedVersions", supported);
+        env.payload = payload;
+        return env;
+    }
+
+    private static MessageEnvelope chat(String text) {
+        MessageEnvelope env = new MessageEnvelope();
+        env.protocolVersion = 1;
+        env.type = MessageType.CHAT_TEST;
+        env.msgId = UUID.randomUUID().toString();
+        env.from = new MessageEnvelope.NodeInfo("legacy", "legacy");
+        JsonObject payload = new JsonObject();
+        payload.addProperty("text", text);
+        env.payload = payload;
+        return env;
+    }
+
+    private static void writeLine(OutputStream out, MessageEnvelope env) throws Exception {
+        out.write((GSON.toJson(env) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.service.TransportService;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.example.lanchat.store.PeerDao;
+import com.example.lanchat.util.BucketedTtlSet;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransportSoakTest {
+
+    private static final int CLIENTS = 520;
+
+    private TransportService server;
+    private ExecutorService clientPool;
+    private final List<Connection> clients = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Connection c : clients) c.close();
+        if (clientPool != null) clientPool.shutdownNow();
+        if (server != null) server.stop();
+        Db.close();
+    }
+
+    @Test
+    public void virtualEngineHoldsHundredsOfHandshakedConnections() throws Exception {
+        assertHandshakes(TransportEngine.VIRTUAL);
+    }
+
+    @Test
+    public void nioEngineHoldsHundredsOfHandshakedConnections() throws Exception {
+        assertHandshakes(TransportEngine.NIO);
+    }
+
+    private void assertHandshakes(TransportEngine engine) throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity serverId = identity("server", freePort());
+        server = new TransportService(serverId, engine);
+        server.start();
+
+        clientPool = TransportEngine.VIRTUAL.newIoExecutor();
+        PeerDao peerDao = new PeerDao();
+        BucketedTtlSet seen = new BucketedTtlSet(1000, 60_000);
+        Connection.HandshakeListener noop = new Connection.HandshakeListener() {
+            @Override
+            public void onHandshakeSuccess(Connection conn, PeerInfo remote) {
+            }
+
+            @Override
+            public void onClosed(Connection conn) {
+            }
+        };
+
+        for (int i = 0; i < CLIENTS; i++) {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress("127.0.0.1", serverId.p2pPort), 2000);
+            SocketConnection conn = new SocketConnection(socket, identity("client-" + i, 40000 + i), peerDao, seen, null, noop);
+            clients.add(conn);
+            clientPool.submit(conn::runReadLoop);
+        }
+        for (Connection c : clients) {
+            assertTrue("client handshake timed out", c.awaitHandshake(30_000));
+            assertTrue(c.remotePeer() != null);
+        }
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (server.connectionCount() < CLIENTS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(CLIENTS, server.connectionCount());
+    }
+
+    private static Identity identity(String nodeId, int port) {
+        Identity id = new Identity();
+        id.nodeId = nodeId;
+        id.displayName = nodeId;
+        id.p2pPort = port;
+        id.webPort = 0;
+        return id;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
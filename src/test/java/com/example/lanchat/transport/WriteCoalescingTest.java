@@ -0,0 +1,135 @@
+package com.example.lanchat.transport;
+
+import com.example.lanchat.protocol.MessageEnvelope;
+import com.example.lanchat.protocol.MessageType;
+import com.example.lanchat.service.TransportService;
+import com.example.lanchat.store.Db;
+import com.example.lanchat.store.IdentityDao.Identity;
+import com.google.gson.JsonObject;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class WriteCoalescingTest {
+
+    private static final int SENDERS = 8;
+    private static final int PER_SENDER = 500;
+
+    private TransportService a;
+    private TransportService b;
+
+    @After
+    public void tearDown() {
+        if (a != null) a.stop();
+        if (b != null) b.stop();
+        Db.close();
+    }
+
+    @Test
+    public void concurrentSendersOverBlockingSocket() throws Exception {
+        run(TransportEngine.POOLED);
+    }
+
+    @Test
+    public void concurrentSendersOverNio() throws Exception {
+        run(TransportEngine.NIO);
+    }
+
+    private void run(TransportEngine engine) throws Exception {
+        Path db = Files.createTempFile("lanchat-test-", ".db");
+        Db.init(db.toString());
+
+        Identity ida = identity("node-a", freePort());
+        Identity idb = identity("node-b", freePort());
+        a = new TransportService(ida, engine);
+        b = new TransportService(idb, engine);
+
+        CountDownLatch received = new CountDownLatch(SENDERS * PER_SENDER);
+        Map<Integer, Integer> lastSeq = new ConcurrentHashMap<>();
+        Map<Integer, Boolean> outOfOrder = new ConcurrentHashMap<>();
+        b.onMessage((remote, env) -> {
+            JsonObject p = env.payload.getAsJsonObject();
+            int sender = p.get("sender").getAsInt();
+            int seq = p.get("seq").getAsInt();
+            Integer prev = lastSeq.put(sender, seq);
+            if (prev != null && prev + 1 != seq) outOfOrder.put(sender, true);
+            received.countDown();
+        });
+        a.start();
+        b.start();
+        a.connectToAddr("127.0.0.1", idb.p2pPort);
+
+        TransportMetrics.Snapshot before = TransportMetrics.snapshot();
+        ExecutorService pool = Executors.newFixedThreadPool(SENDERS);
+        try {
+            List<Future<List<CompletableFuture<Void>>>> tasks = new ArrayList<>();
+            for (int s = 0; s < SENDERS; s++) {
+                int sender = s;
+                tasks.add(pool.submit(() -> {
+                    List<CompletableFuture<Void>> writes = new ArrayList<>();
+                    for (int i = 0; i < PER_SENDER; i++) {
+                        writes.add(a.send("node-b", "127.0.0.1", idb.p2pPort, msg(sender, i)));
+                    }
+                    return writes;
+                }));
+            }
+            for (Future<List<CompletableFuture<Void>>> t : tasks) {
+                CompletableFuture.allOf(t.get().toArray(new CompletableFuture<?>[0])).get(20, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertTrue("not all frames arrived", received.await(20, TimeUnit.SECONDS));
+        assertTrue("per-sender order broken", outOfOrder.isEmpty());
+        TransportMetrics.Snapshot after = TransportMetrics.snapshot();
+        assertTrue(after.flushedFrames - before.flushedFrames >= SENDERS * PER_SENDER);
+        assertTrue(after.flushes - before.flushes > 0);
+        // The gauge is process-wide: a handshake frame queued before the snapshot may drain
+        // after it, so nothing may be left beyond what was queued then.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (a.metrics().queuedFrames > before.queuedFrames && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(a.metrics().queuedFrames <= before.queuedFrames);
+    }
+
+    private static MessageEnvelope msg(int sender, int seq) {
+        MessageEnvelope env = new MessageEnvelope();
+        env.type = MessageType.CHAT_TEST;
+        JsonObject payload = new JsonObject();
+        payload.addProperty("sender", sender);
+        payload.addProperty("seq", seq);
+        env.payload = payload;
+        return env;
+    }
+
+    private static Identity identity(String nodeId, int port) {
+        Identity id = new Identity();
+        id.nodeId = nodeId;
+        id.displayName = nodeId;
+        id.p2pPort = port;
+        id.webPort = 0;
+        return id;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.lanchat.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BucketedTtlSetTest {
+
+    @Test
+    public void rejectsDuplicatesUntilExpired() {
+        BucketedTtlSet set = new BucketedTtlSet(1000, 70_000);
+        long t0 = 1_000_000_000L;
+        assertTrue(set.addIfAbsent("a", t0));
+        assertFalse(set.addIfAbsent("a", t0 + 1));
+        assertFalse(set.addIfAbsent("a", t0 + 69_999));
+        // ttl plus at most one 10s bucket
+        assertTrue(set.addIfAbsent("a", t0 + 80_001));
+    }
+
+    @Test
+    public void sizeStaysBounded() {
+        BucketedTtlSet set = new BucketedTtlSet(6400, 60_000);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 100_000; i++) {
+            set.addIfAbsent("k" + i, now);
+        }
+        assertTrue("size=" + set.size(), set.size() <= 6400);
+        assertTrue(set.size() > 0);
+    }
+
+    @Test
+    public void concurrentAddsAdmitEachKeyOnce() throws Exception {
+        BucketedTtlSet set = new BucketedTtlSet(50_000, 600_000);
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread th = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < 5000; i++) {
+                    if (set.addIfAbsent("m" + i, now)) admitted.incrementAndGet();
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+        start.countDown();
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertEquals(5000, admitted.get());
+    }
+}
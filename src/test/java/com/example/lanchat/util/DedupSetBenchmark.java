@@ -0,0 +1,76 @@
+package com.example.lanchat.util;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// 16 read loops hitting one shared dedup set, roughly 1 in 8 ids a redelivery.
+// mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+//   -Dexec.args="-cp %classpath org.openjdk.jmh.Main DedupSet"
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class DedupSetBenchmark {
+
+    private static final int MAX_SIZE = 50_000;
+    private static final long TTL_MS = 10 * 60 * 1000L;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"lru", "bucketed"})
+        public String impl;
+
+        LruTtlSet lru;
+        BucketedTtlSet bucketed;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            lru = new LruTtlSet(MAX_SIZE, TTL_MS);
+            bucketed = new BucketedTtlSet(MAX_SIZE, TTL_MS);
+        }
+
+        boolean addIfAbsent(String key, long now) {
+            return "lru".equals(impl) ? lru.addIfAbsent(key, now) : bucketed.addIfAbsent(key, now);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Ids {
+        final String[] ids = new String[8192];
+        int next;
+
+        @Setup
+        public void setup() {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i % 8 == 7 ? ids[ThreadLocalRandom.current().nextInt(i)] : UUID.randomUUID().toString();
+            }
+        }
+
+        String nextId() {
+            String id = ids[next];
+            next = (next + 1) & (ids.length - 1);
+            return id;
+        }
+    }
+
+    @Benchmark
+    public boolean addIfAbsent(Shared shared, Ids ids) {
+        return shared.addIfAbsent(ids.nextId(), System.currentTimeMillis());
+    }
+}